@@ -60,40 +60,190 @@ class DatabaseSessionFlushableGrailsPlugin {
 			return
 		}
 
-		sessionMemoryPersister(InMemoryPersister)
+		def conf = application.config.grails.plugin.databasesessionflushable
 
-		sessionJdbcMemoryPersister(JdbcPersister) {
-			transactionTemplate = { TransactionTemplate tmp ->
-				isolationLevelName = "ISOLATION_DEFAULT"
-				propagationBehaviorName = "PROPAGATION_NEVER"
-				transactionManager = ref("transactionManager")
+		sessionDeflateCompressor(DeflateSessionCompressor) {
+			if(conf.compression.level instanceof Number) level = conf.compression.level
+			if(conf.compression.dictionaryFile) dictionary = new File(conf.compression.dictionaryFile.toString()).bytes
+		}
+
+		sessionSerializer(SessionSerializer) {
+			if(conf.codec) codecName = conf.codec.toString()
+			if(conf.lazyAttributes instanceof Boolean) lazyAttributes = conf.lazyAttributes
+			compressors = [ref("sessionDeflateCompressor")]
+			if(conf.compression.algorithm) compressorName = conf.compression.algorithm.toString()
+			if(conf.compression.threshold instanceof Number) compressionThreshold = conf.compression.threshold
+		}
+
+		sessionMemoryPersister(InMemoryPersister) {
+			serializer = ref("sessionSerializer")
+			if(conf.memory.maximumBytes instanceof Number) maximumBytes = conf.memory.maximumBytes
+			if(conf.memory.maximumSize instanceof Number) maximumSize = conf.memory.maximumSize
+			if(conf.memory.expiresSeconds instanceof Number) expiresSeconds = conf.memory.expiresSeconds
+		}
+
+		def cachePersisters = [ ref("sessionMemoryPersister") ]
+		if(conf.offHeap.enabled instanceof Boolean && conf.offHeap.enabled) {
+			sessionOffHeapPersister(OffHeapPersister) {
+				serializer = ref("sessionSerializer")
+				if(conf.offHeap.maximumBytes instanceof Number) maximumBytes = conf.offHeap.maximumBytes
+				if(conf.offHeap.slabBytes instanceof Number) slabBytes = conf.offHeap.slabBytes
 			}
-			jdbcTemplate = { JdbcTemplate tmp -> 
-				def dbConfig = tryToFindDbConfig(application.config)
-				if(dbConfig) {
-					dataSource = { BasicDataSource ds ->
-						if(dbConfig.driverClassName) driverClassName = dbConfig.driverClassName
-						if(dbConfig.url) url = dbConfig.url
-						if(dbConfig.username) username = dbConfig.username
-						if(dbConfig.password) password = dbConfig.password
+			cachePersisters << ref("sessionOffHeapPersister")
+		}
+
+		def jdbcPersister = { String beanName, dbConfig, String shardTableName ->
+			"$beanName"(JdbcPersister) {
+				serializer = ref("sessionSerializer")
+				if(shardTableName) tableName = shardTableName
+				if(conf.dialect) dialectName = conf.dialect.toString()
+				if(conf.digestCacheSize instanceof Number) digestCacheSize = conf.digestCacheSize
+				if(conf.touchIntervalMillis instanceof Number) touchIntervalMillis = conf.touchIntervalMillis
+				if(conf.attributeStorage instanceof Boolean) attributeStorage = conf.attributeStorage
+				if(conf.attributeTableName && !shardTableName) attributeTableName = conf.attributeTableName.toString()
+				transactionTemplate = { TransactionTemplate tmp ->
+					isolationLevelName = "ISOLATION_DEFAULT"
+					propagationBehaviorName = "PROPAGATION_NEVER"
+					transactionManager = ref("transactionManager")
+				}
+				jdbcTemplate = { JdbcTemplate tmp -> 
+					if(dbConfig) {
+						dataSource = { BasicDataSource ds ->
+							if(dbConfig.driverClassName) driverClassName = dbConfig.driverClassName
+							if(dbConfig.url) url = dbConfig.url
+							if(dbConfig.username) username = dbConfig.username
+							if(dbConfig.password) password = dbConfig.password
+						}
+					} else {
+						dataSource = ref("dataSourceUnproxied")
 					}
-				} else {
-					dataSource = ref("dataSourceUnproxied")
 				}
 			}
 		}
 
-		sessionPersister(ChainPersister) {
-			persisters = [ ref("sessionMemoryPersister"), ref("sessionJdbcMemoryPersister") ]				
+		def fileEnabled = conf.file.enabled instanceof Boolean && conf.file.enabled
+		def jdbcPersisters = []
+		def shardConfigs = conf.shards instanceof Map ? conf.shards.findAll { it.value instanceof Map } : [:]
+		if(fileEnabled) {
+			// Node-local files replace the database entirely
+			sessionFilePersister(MappedFilePersister) { bean ->
+				bean.destroyMethod = "destroy"
+				serializer = ref("sessionSerializer")
+				if(conf.file.directory) directory = new File(conf.file.directory.toString())
+				if(conf.file.segmentBytes instanceof Number) segmentBytes = conf.file.segmentBytes
+				if(conf.file.compactionThreshold instanceof Number) compactionThreshold = conf.file.compactionThreshold
+				if(conf.file.compactionIntervalMillis instanceof Number) compactionIntervalMillis = conf.file.compactionIntervalMillis
+				if(conf.file.syncWrites instanceof Boolean) syncWrites = conf.file.syncWrites
+			}
+		} else if(shardConfigs) {
+			def shardRefs = [:]
+			shardConfigs.each { name, shardConfig ->
+				def beanName = "sessionJdbcShardPersister_$name"
+				jdbcPersister(beanName, shardConfig.url ? shardConfig : tryToFindDbConfig(application.config), shardConfig.tableName?.toString())
+				shardRefs[name.toString()] = ref(beanName)
+				jdbcPersisters << ref(beanName)
+			}
+			sessionShardedPersister(ShardedPersister) {
+				shards = shardRefs
+				if(conf.activeShards instanceof List) activeShardNames = conf.activeShards*.toString()
+				if(conf.previousShards instanceof List) previousShardNames = conf.previousShards*.toString()
+				if(conf.shardVirtualNodes instanceof Number) virtualNodes = conf.shardVirtualNodes
+			}
+		} else {
+			jdbcPersister("sessionJdbcMemoryPersister", tryToFindDbConfig(application.config), null)
+			jdbcPersisters << ref("sessionJdbcMemoryPersister")
+		}
+
+		if(jdbcPersisters && isReaperEnabled(application.config)) {
+			sessionReaper(SessionReaper) { bean ->
+				bean.destroyMethod = "destroy"
+				persisters = jdbcPersisters
+				if(conf.reaper.rowsPerSecond instanceof Number) rowsPerSecond = conf.reaper.rowsPerSecond
+				if(conf.reaper.chunkSize instanceof Number) chunkSize = conf.reaper.chunkSize
+				if(conf.reaper.maxLatencyMillis instanceof Number) maxLatencyMillis = conf.reaper.maxLatencyMillis
+				if(conf.reaper.pauseMillis instanceof Number) pauseMillis = conf.reaper.pauseMillis
+				if(conf.reaper.idleIntervalMillis instanceof Number) idleIntervalMillis = conf.reaper.idleIntervalMillis
+			}
+		}
+
+		// Shared by the chain and the warm-up, so that neither caches a session changed while it was being loaded
+		sessionChangeTracker(SessionChangeTracker)
+
+		if(jdbcPersisters && conf.warmup.enabled instanceof Boolean && conf.warmup.enabled) {
+			sessionWarmer(SessionWarmer) { bean ->
+				bean.destroyMethod = "destroy"
+				persisters = jdbcPersisters
+				cache = ref("sessionMemoryPersister")
+				changeTracker = ref("sessionChangeTracker")
+				if(conf.warmup.maxSessions instanceof Number) maxSessions = conf.warmup.maxSessions
+				if(conf.warmup.maxAgeSeconds instanceof Number) maxAgeSeconds = conf.warmup.maxAgeSeconds
+				if(conf.warmup.sessionsPerSecond instanceof Number) sessionsPerSecond = conf.warmup.sessionsPerSecond
+				if(conf.warmup.chunkSize instanceof Number) chunkSize = conf.warmup.chunkSize
+				if(conf.warmup.maxLatencyMillis instanceof Number) maxLatencyMillis = conf.warmup.maxLatencyMillis
+			}
+		}
+
+		def recordPersister = fileEnabled ? "sessionFilePersister" : shardConfigs ? "sessionShardedPersister" : "sessionJdbcMemoryPersister"
+		if(conf.writeBehind.enabled instanceof Boolean && conf.writeBehind.enabled) {
+			sessionWriteBehindPersister(WriteBehindPersister) { bean ->
+				bean.destroyMethod = "destroy"
+				persister = ref(recordPersister)
+				if(conf.writeBehind.flushIntervalMillis instanceof Number) flushIntervalMillis = conf.writeBehind.flushIntervalMillis
+				if(conf.writeBehind.maxQueueDepth instanceof Number) maxQueueDepth = conf.writeBehind.maxQueueDepth
+				if(conf.writeBehind.maxBatchSize instanceof Number) maxBatchSize = conf.writeBehind.maxBatchSize
+				if(conf.writeBehind.shutdownTimeoutMillis instanceof Number) shutdownTimeoutMillis = conf.writeBehind.shutdownTimeoutMillis
+				if(conf.writeBehind.maxRetries instanceof Number) maxRetries = conf.writeBehind.maxRetries
+			}
+			recordPersister = "sessionWriteBehindPersister"
+		}
+
+		sessionPersister(ChainPersister) { bean ->
+			bean.destroyMethod = "destroy"
+			persisters = cachePersisters + [ ref(recordPersister) ]
+			changeTracker = ref("sessionChangeTracker")
+			if(conf.cacheTierCount instanceof Number) cacheTierCount = conf.cacheTierCount
+			if(conf.validateCacheHits instanceof Boolean) validateCacheHits = conf.validateCacheHits
+			if(conf.singleFlight instanceof Boolean) singleFlight = conf.singleFlight
+			if(conf.snapshotMillis instanceof Number) snapshotMillis = conf.snapshotMillis
+			if(conf.asyncPersisters instanceof List) asynchronousPersisters = conf.asyncPersisters.collect { ref(it.toString()) }
+			if(conf.fanOut.threads instanceof Number) threads = conf.fanOut.threads
+			if(conf.fanOut.queueCapacity instanceof Number) queueCapacity = conf.fanOut.queueCapacity
+			if(conf.fanOut.syncTimeoutMillis instanceof Number) syncTimeoutMillis = conf.fanOut.syncTimeoutMillis
+			if(conf.fanOut.asyncTimeoutMillis instanceof Number) asyncTimeoutMillis = conf.fanOut.asyncTimeoutMillis
+		}
+
+		def filterPersister = "sessionPersister"
+		if(conf.negativeCache.enabled instanceof Boolean && conf.negativeCache.enabled) {
+			sessionNegativeLookupPersister(NegativeLookupPersister) {
+				persister = ref("sessionPersister")
+				if(conf.negativeCache.ttlMillis instanceof Number) negativeTtlMillis = conf.negativeCache.ttlMillis
+				if(conf.negativeCache.maximumSize instanceof Number) maximumSize = conf.negativeCache.maximumSize
+				if(conf.negativeCache.filter.enabled instanceof Boolean) filterEnabled = conf.negativeCache.filter.enabled
+				if(conf.negativeCache.filter.expectedSessions instanceof Number) expectedSessions = conf.negativeCache.filter.expectedSessions
+				if(conf.negativeCache.filter.falsePositiveRate instanceof Number) falsePositiveRate = conf.negativeCache.filter.falsePositiveRate
+				seedPersisters = fileEnabled ? [ ref("sessionFilePersister") ] : jdbcPersisters
+			}
+			filterPersister = "sessionNegativeLookupPersister"
 		}
 
 		sessionProxyFilter(SessionProxyFilter) {
-			persister = ref('sessionPersister')
+			persister = ref(filterPersister)
+			if(conf.keepAliveIntervalMillis instanceof Number) touchIntervalMillis = conf.keepAliveIntervalMillis
+			if(conf.trackMutableReads instanceof Boolean) trackMutableReads = conf.trackMutableReads
+			if(conf.lazySessionCreation instanceof Boolean) lazySessionCreation = conf.lazySessionCreation
             exclusionList = application.config?.grails?.plugin?.databasesessionflushable?.exclusionList ? application.config?.grails?.plugin?.databasesessionflushable?.exclusionList : new String[0]
+			if(conf.readOnlyPrefixes) readOnlyPrefixes = conf.readOnlyPrefixes as String[]
+			if(conf.bypassPrefixes) bypassPrefixes = conf.bypassPrefixes as String[]
+			if(conf.bypassPatterns) bypassPatterns = conf.bypassPatterns as String[]
 		}
 	}
 
 	def doWithApplicationContext = { appCtx ->
+		SessionAccessPolicy.reload(application.flatConfig)
+	}
+
+	def onConfigChange = { event ->
+		SessionAccessPolicy.reload(application.flatConfig)
 	}
 
 	private static def tryToFindDbConfig(config) {
@@ -102,6 +252,16 @@ class DatabaseSessionFlushableGrailsPlugin {
 		return null
 	}
 
+	private static boolean isReaperEnabled(config) {
+		def conf = config.grails.plugin.databasesessionflushable
+		if(conf.reaper.enabled instanceof Boolean) return conf.reaper.enabled
+		if(conf.cleanup.enabled instanceof Boolean) return conf.cleanup.enabled
+		// The setting read by the cleanup job which the reaper replaced
+		def legacy = config.grails.plugin.databasesession.cleanup.enabled
+		if(legacy instanceof Boolean) return legacy
+		return true
+	}
+
 	private static boolean isEnabled(config) {
 		def enabled = config.grails.plugin.databasesessionflushable.enabled
 		if (enabled instanceof Boolean) {
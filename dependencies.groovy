@@ -17,6 +17,11 @@ grails.project.dependency.resolution = {
 	}
 	dependencies {
 		compile 'com.google.guava:guava:12.0'
+		compile('com.fasterxml.jackson.dataformat:jackson-dataformat-smile:2.2.3') {
+			// jackson-core is shipped in lib/
+			transitive = false
+		}
+		compile 'net.jpountz.lz4:lz4:1.2.0'
 		//compile 'c3p0:c3p0:9.1.2'
 		//compile 'commons-io:commons-io:2.3'
 	}
@@ -0,0 +1,40 @@
+package grails.plugin.databasesessionflushable;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A base for {@link Persister}s which implements the bulk operations one session at a time. Persisters which can
+ * do better, such as with a single query or a JDBC batch, override them.
+ *
+ * @author Robert Fischer
+ */
+public abstract class AbstractPersister implements Persister {
+
+	@Override
+	public Map<String,SessionData> getSessionsData(final Collection<String> sessionIds) {
+		final Map<String,SessionData> found = new HashMap<String,SessionData>();
+		if(sessionIds == null) return found;
+		for(String sessionId : sessionIds) {
+			final SessionData data = getSessionData(sessionId);
+			if(data != null) found.put(sessionId, data);
+		}
+		return found;
+	}
+
+	@Override
+	public void persistSessions(final Collection<SessionData> sessions) {
+		if(sessions == null) return;
+		for(SessionData session : sessions) {
+			if(session != null) persistSession(session);
+		}
+	}
+
+	@Override
+	public void invalidateAll(final Collection<String> sessionIds) {
+		if(sessionIds == null) return;
+		for(String sessionId : sessionIds) invalidate(sessionId);
+	}
+
+}
@@ -3,30 +3,62 @@ package grails.plugin.databasesessionflushable;
 import java.io.Serializable;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
- * A {@link Persister} that attempts a series of persistance strategies in order.
+ * A {@link Persister} that attempts a series of persistance strategies in order. The first persisters are caches in
+ * front of the rest, which are the systems of record (see {@link #setCacheTierCount(int)}): a session found further
+ * down the chain is copied into the caches in front of where it was found.
+ * <p>
+ * Writes and invalidations go to all the persisters at once. The synchronous ones run concurrently and are all
+ * finished when the call returns; in-memory ones run on the calling thread, which is cheaper than a handoff. The
+ * {@link #setAsynchronousPersisters(List) asynchronous} ones are queued on a bounded executor and finish later.
+ * Operations on the same session reach an asynchronous persister in order.
+ * <p>
+ * With several nodes, a cache can hold a session that another node has since written. If
+ * {@link #setValidateCacheHits(boolean) validation} is on, each write is stamped with a new version, and a session
+ * found in a cache is only used if the last persister, a {@link VersionedPersister}, still has that version.
+ * <p>
+ * Concurrent reads of the same session, such as the parallel requests of a page being loaded, share a single
+ * load through the chain. Only the {@link SessionData} itself is immutable, not the attribute values, so a load is
+ * only shared if its values are still {@link EncodedAttribute encoded}, which each read decodes into its own copy,
+ * or of immutable types. Otherwise each read loads the session itself.
  *
  * @author Robert Fischer
  */
-public class ChainPersister implements Persister {
+public class ChainPersister extends AbstractPersister implements InitializingBean, DisposableBean {
 
 	private final Logger log = Logger.getLogger(getClass());
 
@@ -57,48 +89,668 @@ public class ChainPersister implements Persister {
 		persisters.add(index, p);
 	}
 
+	private volatile int cacheTierCount = -1;
+	/**
+	* How many of the persisters at the head of the chain are caches, which are filled in when a session is found
+	* further down the chain. The default, -1, treats all but the last persister as caches.
+	*/
+	public void setCacheTierCount(int cacheTierCount) {
+		this.cacheTierCount = cacheTierCount;
+	}
+	public int getCacheTierCount() {
+		return cacheTierCount;
+	}
+
+	private int cacheTiers(final List<Persister> chain) {
+		final int count = cacheTierCount;
+		return count < 0 ? chain.size() - 1 : Math.min(count, chain.size());
+	}
+
+	private volatile boolean validateCacheHits = false;
+	/**
+	* Whether a session found in a cache tier is checked against the version stored by the last persister before it
+	* is used. The check reads only the version; the whole session is read only if it changed.
+	*/
+	public void setValidateCacheHits(boolean validateCacheHits) {
+		this.validateCacheHits = validateCacheHits;
+	}
+	public boolean isValidateCacheHits() {
+		return validateCacheHits;
+	}
+
+	private volatile boolean singleFlight = true;
+	/**
+	* Whether concurrent reads of the same session share one load through the chain.
+	*/
+	public void setSingleFlight(boolean singleFlight) {
+		this.singleFlight = singleFlight;
+	}
+	public boolean isSingleFlight() {
+		return singleFlight;
+	}
+
+	private volatile long snapshotMillis = 0;
+	/**
+	* How long the result of a shared load keeps being handed out to reads that arrive after it finished. Writes and
+	* invalidations through this chain discard it, but writes from other nodes are not seen until it expires.
+	*/
+	public void setSnapshotMillis(long snapshotMillis) {
+		this.snapshotMillis = snapshotMillis;
+	}
+	public long getSnapshotMillis() {
+		return snapshotMillis;
+	}
+
+	/**
+	* A load of a session which concurrent reads share, and which may be kept as a snapshot once finished.
+	*/
+	private static final class Load {
+		public final FutureTask<SessionData> task;
+		public volatile long finishedAt = 0;
+
+		public Load(final Callable<SessionData> callable) {
+			this.task = new FutureTask<SessionData>(callable);
+		}
+
+		public boolean isExpired(final long now, final long snapshotMillis) {
+			return finishedAt != 0 && now - finishedAt >= snapshotMillis;
+		}
+	}
+
+	private final ConcurrentMap<String,Load> loads = new ConcurrentHashMap<String,Load>();
+
+	private volatile Set<Persister> asynchronousPersisters = Collections.emptySet();
+	/**
+	* The persisters of the chain which are written asynchronously. The others are written before
+	* {@link #persistSession(SessionData)} and {@link #invalidate(String)} return.
+	*/
+	public void setAsynchronousPersisters(List<Persister> asynchronousPersisters) {
+		if(asynchronousPersisters == null) throw new IllegalArgumentException("Cannot assign a null asynchronousPersisters property");
+		final Set<Persister> set = Collections.newSetFromMap(new IdentityHashMap<Persister,Boolean>());
+		set.addAll(asynchronousPersisters);
+		this.asynchronousPersisters = set;
+	}
+	public List<Persister> getAsynchronousPersisters() {
+		return new ArrayList<Persister>(asynchronousPersisters);
+	}
+
+	private volatile int threads = 4;
+	/**
+	* How many threads write to the asynchronous persisters, and how many extra threads write to the synchronous
+	* ones at the same time.
+	*/
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+	public int getThreads() {
+		return threads;
+	}
+
+	private volatile int queueCapacity = 1000;
+	/**
+	* How many asynchronous operations may wait for a thread. Operations beyond this are dropped and counted.
+	*/
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	private volatile long syncTimeoutMillis = 10000;
+	/**
+	* How long to wait for the synchronous persisters.
+	*/
+	public void setSyncTimeoutMillis(long syncTimeoutMillis) {
+		this.syncTimeoutMillis = syncTimeoutMillis;
+	}
+	public long getSyncTimeoutMillis() {
+		return syncTimeoutMillis;
+	}
+
+	private volatile long asyncTimeoutMillis = 30000;
+	/**
+	* How long an asynchronous operation may wait in the queue before it is considered stale and skipped.
+	*/
+	public void setAsyncTimeoutMillis(long asyncTimeoutMillis) {
+		this.asyncTimeoutMillis = asyncTimeoutMillis;
+	}
+	public long getAsyncTimeoutMillis() {
+		return asyncTimeoutMillis;
+	}
+
+	private volatile SessionChangeTracker changeTracker = new SessionChangeTracker();
+	/**
+	* Counts the writes and invalidations made through the chain, so that a session which changed while it was loaded
+	* is not copied into the caches. Share it with a {@link SessionWarmer} filling one of the caches.
+	*/
+	public void setChangeTracker(SessionChangeTracker changeTracker) {
+		if(changeTracker == null) throw new IllegalArgumentException("Cannot assign a null changeTracker property");
+		this.changeTracker = changeTracker;
+	}
+	public SessionChangeTracker getChangeTracker() {
+		return changeTracker;
+	}
+
+	private final AtomicLong staleHitCount = new AtomicLong();
+	private final AtomicLong sharedLoadCount = new AtomicLong();
+	private final AtomicLong failureCount = new AtomicLong();
+	private final AtomicLong timeoutCount = new AtomicLong();
+	private final AtomicLong rejectionCount = new AtomicLong();
+
+	/**
+	* The number of sessions found in a cache tier which turned out to be out of date.
+	*/
+	public long getStaleHitCount() {
+		return staleHitCount.get();
+	}
+
+	/**
+	* The number of reads answered by a load started for another read.
+	*/
+	public long getSharedLoadCount() {
+		return sharedLoadCount.get();
+	}
+
+	/**
+	* The number of operations on a persister which threw an exception.
+	*/
+	public long getFailureCount() {
+		return failureCount.get();
+	}
+
+	/**
+	* The number of synchronous operations not finished in time, and asynchronous ones skipped as stale.
+	*/
+	public long getTimeoutCount() {
+		return timeoutCount.get();
+	}
+
+	/**
+	* The number of asynchronous operations dropped because the queue was full.
+	*/
+	public long getRejectionCount() {
+		return rejectionCount.get();
+	}
+
+	// Until afterPropertiesSet, everything runs on the calling thread
+	private volatile ExecutorService syncExecutor = MoreExecutors.sameThreadExecutor();
+	private volatile ExecutorService[] asyncExecutors = null;
+
+	@Override
+	public void afterPropertiesSet() {
+		if(threads < 1) {
+			throw new IllegalStateException("threads must be positive (was " + threads + ")");
+		}
+		if(queueCapacity < threads) {
+			throw new IllegalStateException("queueCapacity must be at least threads (was " + queueCapacity + ")");
+		}
+		if(validateCacheHits && validator(persisters) == null) {
+			throw new IllegalStateException("validateCacheHits requires the last persister to be a VersionedPersister");
+		}
+		final ThreadPoolExecutor sync = new ThreadPoolExecutor(0, threads, 60, TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>(),
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ChainPersister-sync-%d").build(),
+			// If all the threads are busy, the request thread does the work itself
+			new ThreadPoolExecutor.CallerRunsPolicy()
+		);
+		// One single-threaded executor per stripe keeps the operations on a session in order
+		final ExecutorService[] async = new ExecutorService[threads];
+		for(int i = 0; i < async.length; i++) {
+			async[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity / threads),
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ChainPersister-async-" + i + "-%d").build()
+			);
+		}
+		syncExecutor = sync;
+		asyncExecutors = async;
+	}
+
+	/**
+	* Stops the executors, giving the queued asynchronous operations a chance to finish.
+	*/
+	@Override
+	public void destroy() throws InterruptedException {
+		syncExecutor.shutdown();
+		final ExecutorService[] async = asyncExecutors;
+		if(async == null) return;
+		for(ExecutorService executor : async) executor.shutdown();
+		for(ExecutorService executor : async) {
+			if(!executor.awaitTermination(asyncTimeoutMillis, TimeUnit.MILLISECONDS)) {
+				log.warn("Asynchronous session writes did not finish in time; dropping " + executor.shutdownNow().size());
+			}
+		}
+	}
+
+	/**
+	* An operation on one of the persisters of the chain.
+	*/
+	private interface Operation {
+		void applyTo(Persister p);
+	}
+
+	/**
+	* An operation on a number of sessions, which can be narrowed down to some of them.
+	*/
+	private interface BulkOperation {
+		Operation forSessions(Collection<String> sessionIds);
+	}
+
+	/**
+	* Applies the operation to every persister: the synchronous ones concurrently, waiting for them all, and the
+	* asynchronous ones through the queue of the session's stripe.
+	*/
+	private void fanOut(final String sessionId, final Operation operation) {
+		final List<Persister> sync = new ArrayList<Persister>();
+		for(Persister p : persisters) {
+			if(asynchronousPersisters.contains(p)) {
+				submitAsync(sessionId, p, operation);
+			} else {
+				sync.add(p);
+			}
+		}
+		runSync(sync, operation, "session " + sessionId);
+	}
+
+	/**
+	* Applies a bulk operation as {@link #fanOut(String, Operation)} does. The asynchronous persisters get one
+	* operation per stripe, on the sessions of that stripe, so that they stay in order with the other operations.
+	*/
+	private void fanOutAll(final Collection<String> sessionIds, final BulkOperation operation) {
+		final List<Persister> sync = new ArrayList<Persister>();
+		Map<Integer,List<String>> stripes = null;
+		for(Persister p : persisters) {
+			if(!asynchronousPersisters.contains(p)) {
+				sync.add(p);
+				continue;
+			}
+			if(stripes == null) {
+				stripes = new HashMap<Integer,List<String>>();
+				final ExecutorService[] async = asyncExecutors;
+				for(String sessionId : sessionIds) {
+					final Integer stripe = async == null ? 0 : stripeOf(sessionId, async.length);
+					List<String> ids = stripes.get(stripe);
+					if(ids == null) stripes.put(stripe, ids = new ArrayList<String>());
+					ids.add(sessionId);
+				}
+			}
+			for(List<String> ids : stripes.values()) {
+				submitAsync(ids.get(0), p, operation.forSessions(ids));
+			}
+		}
+		runSync(sync, operation.forSessions(sessionIds), sessionIds.size() + " sessions");
+	}
+
+	private static int stripeOf(final String sessionId, final int stripes) {
+		return (sessionId == null ? 0 : sessionId.hashCode() & Integer.MAX_VALUE) % stripes;
+	}
+
+	/**
+	* Whether the persister only works in local memory, so that handing its work to another thread would cost more
+	* than doing it.
+	*/
+	private static boolean isLocal(final Persister p) {
+		return p instanceof InMemoryPersister || p instanceof OffHeapPersister;
+	}
+
+	private void runSync(final List<Persister> sync, final Operation operation, final String subject) {
+		if(sync.isEmpty()) return;
+
+		// The remote persisters but the last one go to other threads; the last one and the local ones run here
+		final List<Persister> here = new ArrayList<Persister>(sync.size());
+		final List<Persister> remote = new ArrayList<Persister>(sync.size());
+		for(Persister p : sync) {
+			if(isLocal(p)) {
+				here.add(p);
+			} else {
+				remote.add(p);
+			}
+		}
+		if(!remote.isEmpty()) here.add(remote.remove(remote.size() - 1));
+
+		final List<Future<?>> futures = new ArrayList<Future<?>>(remote.size());
+		for(final Persister p : remote) {
+			futures.add(syncExecutor.submit(new Runnable() {
+				public void run() {
+					operation.applyTo(p);
+				}
+			}));
+		}
+		RuntimeException error = null;
+		for(Persister p : here) {
+			try {
+				operation.applyTo(p);
+			} catch(RuntimeException e) {
+				failureCount.incrementAndGet();
+				if(error == null) error = e;
+			}
+		}
+
+		final long deadline = System.currentTimeMillis() + syncTimeoutMillis;
+		for(int i = 0; i < futures.size(); i++) {
+			final Future<?> future = futures.get(i);
+			try {
+				future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			} catch(ExecutionException ee) {
+				failureCount.incrementAndGet();
+				if(error == null) {
+					error = ee.getCause() instanceof RuntimeException ? (RuntimeException)ee.getCause() : new RuntimeException(ee.getCause());
+				}
+			} catch(TimeoutException te) {
+				timeoutCount.incrementAndGet();
+				future.cancel(true);
+				if(error == null) {
+					error = new IllegalStateException("Persister " + remote.get(i) + " did not finish within " + syncTimeoutMillis + "ms for " + subject);
+				}
+			} catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				if(error == null) error = new IllegalStateException("Interrupted while waiting for persister " + remote.get(i), ie);
+				break;
+			}
+		}
+		if(error != null) throw error;
+	}
+
+	private void submitAsync(final String sessionId, final Persister p, final Operation operation) {
+		final ExecutorService[] async = asyncExecutors;
+		if(async == null) {
+			operation.applyTo(p);
+			return;
+		}
+		final long queuedAt = System.currentTimeMillis();
+		final ExecutorService stripe = async[stripeOf(sessionId, async.length)];
+		try {
+			stripe.execute(new Runnable() {
+				public void run() {
+					if(System.currentTimeMillis() - queuedAt > asyncTimeoutMillis) {
+						timeoutCount.incrementAndGet();
+						log.warn("Skipping a stale asynchronous operation on " + p + " for session " + sessionId);
+						return;
+					}
+					try {
+						operation.applyTo(p);
+					} catch(RuntimeException e) {
+						failureCount.incrementAndGet();
+						log.error("Asynchronous operation on " + p + " failed for session " + sessionId, e);
+					}
+				}
+			});
+		} catch(RejectedExecutionException ree) {
+			rejectionCount.incrementAndGet();
+			log.warn("Dropping an asynchronous operation on " + p + " for session " + sessionId + ": the queue is full");
+		}
+	}
+
 	/**
 	* Persists a session to each of the underlying {@link Persister}s. The sessionData may be {@code null}.
-	* The persistance is done concurrently using the executor.
+	* The persistance is done concurrently using the executors. When validating cache hits, every persister
+	* receives the session stamped with the same new version.
 	*/
 	@Override
 	public void persistSession(final SessionData sessionData) {
 		log.debug("Persisting session " + sessionData + " to persister chain");
-		for(final Persister p : persisters) {
-			p.persistSession(sessionData);
+		final SessionData stamped = sessionData == null || !validateCacheHits ? sessionData : sessionData.withVersion(SessionVersions.next());
+		if(sessionData != null) {
+			changeTracker.changed(sessionData.sessionId);
+			loads.remove(sessionData.sessionId);
 		}
+		fanOut(sessionData == null ? null : sessionData.sessionId, new Operation() {
+			public void applyTo(Persister p) {
+				p.persistSession(stamped);
+			}
+		});
+		// Also drop anything loaded while the write was under way
+		if(sessionData != null) loads.remove(sessionData.sessionId);
 	}
 
 	/**
-	* Retrieves the session data from the first possible {@link Persister} containing it. May be {@code null}.
+	* Retrieves the session data from the first possible {@link Persister} containing it, and copies it into the
+	* cache tiers which missed it. May be {@code null}. When validating cache hits, an out of date session found in
+	* a cache is passed over for the systems of record, and a session they no longer have is dropped from the caches.
 	*/
 	@Override
 	public SessionData getSessionData(final String sessionId) {
+		if(!singleFlight || sessionId == null) return load(sessionId);
+
+		while(true) {
+			final Load load = loads.get(sessionId);
+			if(load != null && !load.isExpired(System.currentTimeMillis(), snapshotMillis)) {
+				final SessionData shared = get(sessionId, load);
+				if(!isShareable(shared)) return load(sessionId);
+				sharedLoadCount.incrementAndGet();
+				return shared;
+			}
+			if(load != null) loads.remove(sessionId, load);
+
+			final Load mine = new Load(new Callable<SessionData>() {
+				public SessionData call() {
+					return load(sessionId);
+				}
+			});
+			// If another read got there first, share its load instead
+			if(loads.putIfAbsent(sessionId, mine) != null) continue;
+			mine.task.run();
+			mine.finishedAt = System.currentTimeMillis();
+			try {
+				return get(sessionId, mine);
+			} catch(RuntimeException e) {
+				// Failures are only shared with the reads already waiting
+				loads.remove(sessionId, mine);
+				throw e;
+			} finally {
+				if(snapshotMillis <= 0) loads.remove(sessionId, mine);
+			}
+		}
+	}
+
+	/**
+	* Whether a loaded session can be handed to several reads without them sharing mutable attribute values.
+	*/
+	private static boolean isShareable(final SessionData session) {
+		if(session == null) return true;
+		for(Serializable value : session.attrs.values()) {
+			if(!(value instanceof EncodedAttribute) && !SessionProxy.isImmutable(value)) return false;
+		}
+		return true;
+	}
+
+	private static SessionData get(final String sessionId, final Load load) {
+		try {
+			return load.task.get();
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for session " + sessionId + " to load", ie);
+		} catch(ExecutionException ee) {
+			throw ee.getCause() instanceof RuntimeException ? (RuntimeException)ee.getCause() : new RuntimeException(ee.getCause());
+		}
+	}
+
+	private SessionData load(final String sessionId) {
+		final List<Persister> chain = persisters;
+		final int tiers = cacheTiers(chain);
+		final VersionedPersister validator = validateCacheHits ? validator(chain) : null;
+		final long changes = changeTracker.count(sessionId);
 		SessionData session = null;
+		int found = 0;
 
-		for(Persister p : persisters) {
-			session = p.getSessionData(sessionId);
-			if(session != null) break;
+		while(found < chain.size()) {
+			session = chain.get(found).getSessionData(sessionId);
+			if(session != null) {
+				if(validator == null || found >= tiers) break;
+				final long version = validator.getVersion(sessionId);
+				if(version < 0) {
+					log.debug("Session " + sessionId + " is cached but no longer stored: dropping it from the caches");
+					for(Persister p : chain.subList(0, tiers)) p.invalidate(sessionId);
+					return null;
+				}
+				if(version != 0 && version == session.version) break;
+				log.debug("Cached session " + sessionId + " is out of date: reading it from the systems of record");
+				staleHitCount.incrementAndGet();
+				session = null;
+				found = tiers;
+				continue;
+			}
+			found++;
 		}
 
 		if(session != null) {
 			log.debug("Found session in chain for session id " + sessionId + ": " + session);
+			backfill(chain, Math.min(found, tiers), session, changes);
 		} else {
 			log.debug("No session found in chain for session id " + sessionId);
 		}
 		return session;
 	}
 
+	/**
+	* Retrieves a number of sessions, asking each persister in turn for those not found yet, and copies them into the
+	* cache tiers which missed them. When validating cache hits, the caches are skipped.
+	*/
+	@Override
+	public Map<String,SessionData> getSessionsData(final Collection<String> sessionIds) {
+		final Map<String,SessionData> found = new HashMap<String,SessionData>();
+		if(sessionIds == null || sessionIds.isEmpty()) return found;
+		final List<Persister> chain = persisters;
+		final int tiers = cacheTiers(chain);
+		final Set<String> remaining = new LinkedHashSet<String>(sessionIds);
+		final Map<String,Long> changes = new HashMap<String,Long>();
+		for(String sessionId : remaining) changes.put(sessionId, changeTracker.count(sessionId));
+
+		for(int i = validateCacheHits ? tiers : 0; i < chain.size() && !remaining.isEmpty(); i++) {
+			final Map<String,SessionData> hits = chain.get(i).getSessionsData(remaining);
+			if(hits.isEmpty()) continue;
+			found.putAll(hits);
+			remaining.removeAll(hits.keySet());
+			for(int j = 0; j < Math.min(i, tiers); j++) {
+				final Persister p = chain.get(j);
+				try {
+					p.persistSessions(hits.values());
+				} catch(RuntimeException e) {
+					log.warn("Could not backfill " + hits.size() + " sessions into " + p, e);
+				}
+			}
+			final List<String> changed = new ArrayList<String>();
+			for(String sessionId : hits.keySet()) {
+				if(changeTracker.changedSince(sessionId, changes.get(sessionId))) changed.add(sessionId);
+			}
+			if(!changed.isEmpty()) dropBackfilled(chain.subList(0, Math.min(i, tiers)), changed);
+		}
+		log.debug("Found " + found.size() + " of " + sessionIds.size() + " sessions in chain");
+		return found;
+	}
+
+	/**
+	* Persists a number of sessions to each of the underlying {@link Persister}s, using their bulk operation.
+	*/
+	@Override
+	public void persistSessions(final Collection<SessionData> sessions) {
+		if(sessions == null || sessions.isEmpty()) return;
+		final Map<String,SessionData> byId = new LinkedHashMap<String,SessionData>();
+		for(SessionData session : sessions) {
+			if(session == null) continue;
+			byId.put(session.sessionId, validateCacheHits ? session.withVersion(SessionVersions.next()) : session);
+		}
+		if(byId.isEmpty()) return;
+		log.debug("Persisting " + byId.size() + " sessions to persister chain");
+		for(String sessionId : byId.keySet()) {
+			changeTracker.changed(sessionId);
+			loads.remove(sessionId);
+		}
+		fanOutAll(byId.keySet(), new BulkOperation() {
+			public Operation forSessions(final Collection<String> sessionIds) {
+				final List<SessionData> subset = new ArrayList<SessionData>(sessionIds.size());
+				for(String sessionId : sessionIds) subset.add(byId.get(sessionId));
+				return new Operation() {
+					public void applyTo(Persister p) {
+						p.persistSessions(subset);
+					}
+				};
+			}
+		});
+		for(String sessionId : byId.keySet()) loads.remove(sessionId);
+	}
+
+	/**
+	* Informs all the {@link Persister} instances to invalidate these sessions, using their bulk operation.
+	*/
+	@Override
+	public void invalidateAll(final Collection<String> sessionIds) {
+		if(sessionIds == null || sessionIds.isEmpty()) return;
+		final Set<String> ids = new LinkedHashSet<String>(sessionIds);
+		log.debug("Submitting invalidation of " + ids.size() + " sessions to persister chain");
+		for(String sessionId : ids) {
+			changeTracker.changed(sessionId);
+			loads.remove(sessionId);
+		}
+		fanOutAll(ids, new BulkOperation() {
+			public Operation forSessions(final Collection<String> subset) {
+				return new Operation() {
+					public void applyTo(Persister p) {
+						p.invalidateAll(subset);
+					}
+				};
+			}
+		});
+	}
+
+	private static VersionedPersister validator(final List<Persister> chain) {
+		if(chain.isEmpty()) return null;
+		final Persister last = chain.get(chain.size() - 1);
+		return last instanceof VersionedPersister ? (VersionedPersister)last : null;
+	}
+
+	/**
+	* Copies a session into the first {@code tiers} persisters of the chain, unless it was written or invalidated
+	* since its load started, when the copy may be out of date. A change made while copying removes the copy.
+	*/
+	private void backfill(final List<Persister> chain, final int tiers, final SessionData session, final long changes) {
+		final String sessionId = session.sessionId;
+		if(tiers == 0 || changeTracker.changedSince(sessionId, changes)) return;
+		for(int i = 0; i < tiers; i++) {
+			final Persister p = chain.get(i);
+			log.debug("Backfilling session " + sessionId + " into " + p);
+			try {
+				p.persistSession(session);
+			} catch(RuntimeException e) {
+				log.warn("Could not backfill session " + sessionId + " into " + p, e);
+			}
+		}
+		if(changeTracker.changedSince(sessionId, changes)) {
+			dropBackfilled(chain.subList(0, tiers), Collections.singletonList(sessionId));
+		}
+	}
+
+	/**
+	* Removes the copies of sessions which changed while they were being backfilled. At worst, this drops the cached
+	* copy of the change itself, and the next read loads it again.
+	*/
+	private void dropBackfilled(final List<Persister> caches, final List<String> sessionIds) {
+		log.debug("Sessions " + sessionIds + " changed while being loaded: dropping them from the caches");
+		for(Persister p : caches) {
+			try {
+				p.invalidateAll(sessionIds);
+			} catch(RuntimeException e) {
+				log.warn("Could not drop " + sessionIds.size() + " sessions from " + p, e);
+			}
+		}
+	}
+
 	/**
 	 * Informs all the {@link Persister} instances to invalidate this session.
 	 */
 	@Override
 	public void invalidate(final String sessionId) {
 		log.debug("Submitting invalidation call to persister chain for session " + sessionId);
-		for(final Persister p : persisters) {
-			log.debug("Submitting invalidation call for session " + sessionId + " to persister " + p);
-			p.invalidate(sessionId);
+		if(sessionId != null) {
+			changeTracker.changed(sessionId);
+			loads.remove(sessionId);
 		}
+		fanOut(sessionId, new Operation() {
+			public void applyTo(Persister p) {
+				log.debug("Submitting invalidation call for session " + sessionId + " to persister " + p);
+				p.invalidate(sessionId);
+			}
+		});
 	}
 
 	@Override
@@ -22,4 +22,26 @@ public abstract class DatabaseSession implements HttpSession,Serializable,Clonea
     public abstract long getCreatedAt();
 
     public abstract void flush();
+
+    /**
+     * Whether this session is known to exist in the persister: it was loaded from it or has since been flushed to it.
+     */
+    public abstract boolean isPersisted();
+
+    /**
+     * Whether the session was changed since it was loaded or flushed: an attribute was set or removed, or the
+     * timeout was changed.
+     */
+    public abstract boolean isDirty();
+
+    /**
+     * Whether an attribute which may be mutable, and so may have been changed in place, was read since the session
+     * was loaded or flushed.
+     */
+    public abstract boolean isPossiblyDirty();
+
+    /**
+     * The last access time of the stored copy of the session, or 0 if it was never stored.
+     */
+    public abstract long getStoredAccessTime();
 }
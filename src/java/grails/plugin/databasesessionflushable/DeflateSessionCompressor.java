@@ -0,0 +1,182 @@
+package grails.plugin.databasesessionflushable;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Compresses with Deflate (zlib), optionally primed with a preset dictionary of strings common to the stored
+ * sessions. A zlib stream records the checksum of the dictionary it was written with, so a row written with a
+ * different dictionary is reported as such instead of being decoded into garbage.
+ *
+ * @author Robert Fischer
+ */
+public class DeflateSessionCompressor implements SessionCompressor {
+
+	private static final Logger log = Logger.getLogger(DeflateSessionCompressor.class);
+
+	public static final byte FORMAT_ID = 1;
+
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	private volatile int level = Deflater.DEFAULT_COMPRESSION;
+	/**
+	* The Deflate compression level, from 1 (fastest) to 9 (smallest).
+	*/
+	public void setLevel(int level) {
+		if(level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)) {
+			throw new IllegalArgumentException("Deflate level must be between 1 and 9 (was " + level + ")");
+		}
+		this.level = level;
+	}
+	public int getLevel() {
+		return level;
+	}
+
+	private volatile byte[] dictionary;
+	private volatile long dictionaryId;
+	/**
+	* The preset dictionary, such as one built by {@link #trainDictionary(Iterable, int)}. Rows written with a
+	* dictionary can only be read with the same one, so it must be kept for as long as such rows exist.
+	*/
+	public void setDictionary(byte[] dictionary) {
+		this.dictionaryId = dictionary == null ? 0 : adler(dictionary);
+		this.dictionary = dictionary == null || dictionary.length == 0 ? null : dictionary;
+	}
+	public byte[] getDictionary() {
+		return dictionary;
+	}
+
+	@Override
+	public byte getFormatId() {
+		return FORMAT_ID;
+	}
+
+	@Override
+	public String getName() {
+		return "deflate";
+	}
+
+	@Override
+	public byte[] compress(byte[] bytes, int offset, int length) {
+		final Deflater deflater = new Deflater(level);
+		try {
+			final byte[] dict = dictionary;
+			if(dict != null) deflater.setDictionary(dict);
+			deflater.setInput(bytes, offset, length);
+			deflater.finish();
+			byte[] out = new byte[Math.max(64, length / 2)];
+			int size = 0;
+			while(!deflater.finished()) {
+				if(size == out.length) out = grow(out, out.length * 2);
+				size += deflater.deflate(out, size, out.length - size);
+			}
+			return size == out.length ? out : grow(out, size);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	@Override
+	public byte[] decompress(byte[] bytes, int offset, int length, int originalLength) throws IOException {
+		final Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(bytes, offset, length);
+			final byte[] out = new byte[originalLength];
+			int size = inflater.inflate(out);
+			if(inflater.needsDictionary()) {
+				final byte[] dict = dictionary;
+				final long wanted = inflater.getAdler() & 0xffffffffL;
+				if(dict == null || wanted != dictionaryId) {
+					throw new IOException(
+						"Session was compressed with dictionary " + Long.toHexString(wanted) +
+						", which is not the configured one"
+					);
+				}
+				inflater.setDictionary(dict);
+				size = inflater.inflate(out);
+			}
+			while(size < originalLength && !inflater.finished()) {
+				final int n = inflater.inflate(out, size, originalLength - size);
+				if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+				size += n;
+			}
+			if(size != originalLength) {
+				throw new IOException("Expected " + originalLength + " bytes when decompressing a session, but got " + size);
+			}
+			return out;
+		} catch(DataFormatException dfe) {
+			throw new IOException("Corrupt compressed session: " + dfe.getMessage(), dfe);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	* Builds a preset dictionary of at most {@code maxSize} bytes from sample sessions, as written by
+	* {@link SessionSerializer#serialize(Map)} before compression. The dictionary is made of the byte runs which
+	* recur most across the samples; the most frequent ones go last, where Deflate reaches them most cheaply.
+	*/
+	public static byte[] trainDictionary(Iterable<byte[]> samples, int maxSize) {
+		final int chunk = 16;
+		final Map<String,Integer> counts = new HashMap<String,Integer>();
+		int sampleCount = 0;
+		for(byte[] sample : samples) {
+			sampleCount++;
+			// ISO-8859-1 maps bytes to chars one to one, which makes byte runs usable as keys
+			final String text = new String(sample, LATIN1);
+			for(int i = 0; i + chunk <= text.length(); i += chunk / 2) {
+				final String run = text.substring(i, i + chunk);
+				final Integer count = counts.get(run);
+				counts.put(run, count == null ? 1 : count + 1);
+			}
+		}
+
+		final List<Map.Entry<String,Integer>> runs = new ArrayList<Map.Entry<String,Integer>>();
+		for(Map.Entry<String,Integer> entry : counts.entrySet()) {
+			if(entry.getValue() > 1) runs.add(entry);
+		}
+		Collections.sort(runs, new Comparator<Map.Entry<String,Integer>>() {
+			public int compare(Map.Entry<String,Integer> a, Map.Entry<String,Integer> b) {
+				return b.getValue().compareTo(a.getValue());
+			}
+		});
+
+		final List<String> chosen = new ArrayList<String>();
+		for(int i = 0; i < runs.size() && (chosen.size() + 1) * chunk <= maxSize; i++) {
+			chosen.add(runs.get(i).getKey());
+		}
+		final StringBuilder dict = new StringBuilder(chosen.size() * chunk);
+		for(int i = chosen.size() - 1; i >= 0; i--) dict.append(chosen.get(i));
+		log.info("Trained a " + dict.length() + " byte session dictionary from " + sampleCount + " samples");
+		return dict.toString().getBytes(LATIN1);
+	}
+
+	private static long adler(byte[] bytes) {
+		final Adler32 adler = new Adler32();
+		adler.update(bytes);
+		return adler.getValue();
+	}
+
+	private static byte[] grow(byte[] bytes, int size) {
+		final byte[] copy = new byte[size];
+		System.arraycopy(bytes, 0, copy, 0, Math.min(size, bytes.length));
+		return copy;
+	}
+
+	public String toString() {
+		return getName();
+	}
+
+}
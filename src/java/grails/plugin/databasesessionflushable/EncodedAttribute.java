@@ -0,0 +1,76 @@
+package grails.plugin.databasesessionflushable;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A session attribute value which has been read from storage but not decoded yet. {@link SessionProxy} decodes it
+ * the first time the attribute is asked for; an attribute nobody asks for is written back as the same bytes.
+ * <p>
+ * Two instances are equal if they hold the same bytes, so that comparing attribute values never decodes them.
+ *
+ * @author Robert Fischer
+ */
+public final class EncodedAttribute implements Serializable {
+
+	private static final long serialVersionUID = 1;
+
+	private final byte[] bytes;
+	private final transient SessionSerializer serializer;
+
+	/**
+	* @param serializer the serializer which wrote the bytes
+	* @param bytes the value as written by {@link SessionSerializer#serializeValue(Serializable)}
+	*/
+	public EncodedAttribute(final SessionSerializer serializer, final byte[] bytes) {
+		if(serializer == null) throw new IllegalArgumentException("Cannot decode attributes without a serializer");
+		if(bytes == null) throw new IllegalArgumentException("Cannot hold null attribute bytes");
+		this.serializer = serializer;
+		this.bytes = bytes;
+	}
+
+	/**
+	* The encoded value, including its format byte. The returned array must not be modified.
+	*/
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	public int getLength() {
+		return bytes.length;
+	}
+
+	/**
+	* Decodes the value. Each call decodes again, so callers should keep the result.
+	*/
+	public Serializable decode() {
+		try {
+			return serializer.deserializeValue(bytes);
+		} catch(IOException ioe) {
+			throw new RuntimeException("IO Exception while decoding a session attribute: cannot deserialize!", ioe);
+		}
+	}
+
+	/**
+	* Java serialization, as used by containers to passivate or replicate sessions, writes the decoded value
+	* instead: the serializer needed to decode it does not travel along.
+	*/
+	private Object writeReplace() throws ObjectStreamException {
+		return decode();
+	}
+
+	public int hashCode() {
+		return Arrays.hashCode(bytes);
+	}
+
+	public boolean equals(Object o) {
+		return o instanceof EncodedAttribute && Arrays.equals(bytes, ((EncodedAttribute)o).bytes);
+	}
+
+	public String toString() {
+		return "EncodedAttribute[" + bytes.length + " bytes]";
+	}
+
+}
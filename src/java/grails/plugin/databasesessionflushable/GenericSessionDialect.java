@@ -0,0 +1,20 @@
+package grails.plugin.databasesessionflushable;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * For databases without a known upsert statement: the {@link JdbcPersister} tries an update first and only
+ * inserts when no row was touched, so an existing session still costs a single statement.
+ *
+ * @author Robert Fischer
+ */
+public class GenericSessionDialect extends SessionDialect {
+
+	@Override
+	public String upsertSql(String tableName, List<String> keyColumns, Map<String,String> values, Collection<String> insertOnly) {
+		return null;
+	}
+
+}
@@ -0,0 +1,21 @@
+package grails.plugin.databasesessionflushable;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Uses H2's {@code MERGE INTO ... KEY (...)}. H2 overwrites every listed column on a match, so insert-only
+ * columns are rewritten too; the {@link JdbcPersister} binds values for them that never change for a session.
+ *
+ * @author Robert Fischer
+ */
+public class H2SessionDialect extends SessionDialect {
+
+	@Override
+	public String upsertSql(String tableName, List<String> keyColumns, Map<String,String> values, Collection<String> insertOnly) {
+		return "MERGE INTO " + tableName + " (" + join(values.keySet()) + ") KEY (" + join(keyColumns) + ") " +
+			"VALUES (" + join(values.values()) + ")";
+	}
+
+}
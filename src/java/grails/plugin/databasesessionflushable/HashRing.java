@@ -0,0 +1,41 @@
+package grails.plugin.databasesessionflushable;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * A consistent hash ring: each node is placed at many points of the ring, and a key belongs to the node at the
+ * first point after the key's own hash. Adding a node only moves the keys that land just before its points.
+ *
+ * @author Robert Fischer
+ */
+class HashRing {
+
+	private static final HashFunction HASH = Hashing.murmur3_128();
+
+	private final TreeMap<Long,String> points = new TreeMap<Long,String>();
+
+	HashRing(final Collection<String> nodes, final int virtualNodes) {
+		if(nodes.isEmpty()) throw new IllegalArgumentException("Cannot build a hash ring without nodes");
+		for(String node : nodes) {
+			for(int i = 0; i < virtualNodes; i++) {
+				points.put(hash(node + "#" + i), node);
+			}
+		}
+	}
+
+	String nodeFor(final String key) {
+		final Map.Entry<Long,String> entry = points.ceilingEntry(hash(key));
+		return entry == null ? points.firstEntry().getValue() : entry.getValue();
+	}
+
+	private static long hash(final String value) {
+		return HASH.hashString(value, Charsets.UTF_8).asLong();
+	}
+
+}
@@ -1,34 +1,93 @@
 package grails.plugin.databasesessionflushable;
 
+import java.io.IOException;
 import java.io.Serializable;
 
-import java.util.List;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
 
 import org.apache.log4j.Logger;
 
 import org.springframework.beans.factory.InitializingBean;
 
 /**
- * Persists data into an in-memory weak hash map. Note that this means that it's easy for session
+ * Persists data into an in-memory cache. Note that this means that it's easy for session
  * instances to be lost. But this does make for a fast way to query things right away.
+ * <p>
+ * The cache is bounded by the estimated size of the sessions it holds (see {@link #setMaximumBytes(long)}), so its
+ * memory use does not depend on how big the sessions happen to be.
  *
  * @author RobertFischer
  */
-public class InMemoryPersister implements Persister, InitializingBean {
+public class InMemoryPersister extends AbstractPersister implements InitializingBean {
 
 	private final Logger log = Logger.getLogger(getClass());
 
-	private volatile Cache<String, SessionData> cache = null;
+	/**
+	* A cached session along with the weight it was admitted with, so that exactly that weight is given back when
+	* it leaves the cache.
+	*/
+	private static final class Entry {
+		public final SessionData data;
+		public final int weight;
+
+		public Entry(final SessionData data, final int weight) {
+			this.data = data;
+			this.weight = weight;
+		}
+	}
+
+	private volatile Cache<String, Entry> cache = null;
+
+	private final AtomicLong residentBytes = new AtomicLong();
+
+	private volatile long maximumBytes = 64L * 1024 * 1024;
+	/**
+	* The memory budget of the cache, in estimated bytes (default 64MB). Zero or less bounds the cache by
+	* {@link #setMaximumSize(int)} instead.
+	*/
+	public void setMaximumBytes(long maximumBytes) {
+		this.maximumBytes = maximumBytes;
+	}
+	public long getMaximumBytes() {
+		return maximumBytes;
+	}
+
+	private volatile SessionSerializer serializer;
+	/**
+	* Used to measure attribute values whose size cannot be estimated from their type. If it is not assigned,
+	* such values count for {@link #setDefaultAttributeBytes(int)}.
+	*/
+	public void setSerializer(SessionSerializer serializer) {
+		this.serializer = serializer;
+	}
+	public SessionSerializer getSerializer() {
+		return serializer;
+	}
+
+	private volatile int defaultAttributeBytes = 1024;
+	public void setDefaultAttributeBytes(int defaultAttributeBytes) {
+		this.defaultAttributeBytes = defaultAttributeBytes;
+	}
+	public int getDefaultAttributeBytes() {
+		return defaultAttributeBytes;
+	}
 
 	private volatile int maximumSize = 100;
+	/**
+	* The number of sessions held when there is no {@link #setMaximumBytes(long) memory budget}.
+	*/
 	public void setMaximumSize(int maximumSize) {
 		this.maximumSize = maximumSize;
 	}
@@ -67,20 +126,96 @@ public class InMemoryPersister implements Persister, InitializingBean {
 	*/
 	@Override
 	public void afterPropertiesSet() {
-		cache = CacheBuilder.newBuilder()
-			.maximumSize(maximumSize)
+		final CacheBuilder<Object,Object> builder = CacheBuilder.newBuilder();
+		if(maximumBytes > 0) {
+			builder.maximumWeight(maximumBytes).weigher(new Weigher<String, Entry>() {
+				public int weigh(String sessionId, Entry entry) {
+					return entry.weight;
+				}
+			});
+		} else {
+			builder.maximumSize(maximumSize);
+		}
+		cache = builder
 			.concurrencyLevel(concurrencyLevel)
 			.expireAfterAccess(expiresSeconds, TimeUnit.SECONDS)
 			.initialCapacity(2)
-			.softValues()
-			.removalListener(new RemovalListener<String, SessionData>() {
-				public void onRemoval(RemovalNotification<String,SessionData> notification) {
+			.recordStats()
+			.removalListener(new RemovalListener<String, Entry>() {
+				public void onRemoval(RemovalNotification<String,Entry> notification) {
 					log.debug("Removing session " + notification.getKey() + " because: " + notification.getCause());
+					if(notification.getValue() != null) residentBytes.addAndGet(-notification.getValue().weight);
 				}
 			})
 			.build();
 	}
 
+	/**
+	* Estimates the memory held by a session: its id, its attribute names, and its values, measured by
+	* {@link #estimateBytes(Serializable)}.
+	*/
+	protected int weigh(final SessionData sessionData) {
+		long bytes = 64 + 2L * sessionData.sessionId.length();
+		if(sessionData.attrs != null) {
+			for(Map.Entry<String,Serializable> attr : sessionData.attrs.entrySet()) {
+				bytes += 48 + 2L * attr.getKey().length() + estimateBytes(attr.getValue());
+			}
+		}
+		return (int)Math.min(Integer.MAX_VALUE, bytes);
+	}
+
+	/**
+	* Estimates the memory held by an attribute value. Strings, numbers, byte arrays and values still encoded
+	* are estimated from their type; anything else is measured through the serializer, if any.
+	*/
+	protected long estimateBytes(final Serializable value) {
+		if(value == null) return 0;
+		if(value instanceof EncodedAttribute) return 16 + ((EncodedAttribute)value).getLength();
+		if(value instanceof String) return 40 + 2L * ((String)value).length();
+		if(value instanceof Number || value instanceof Boolean || value instanceof Character) return 16;
+		if(value instanceof byte[]) return 16 + ((byte[])value).length;
+		final SessionSerializer s = serializer;
+		if(s != null) {
+			try {
+				return s.serializeValue(value).length;
+			} catch(IOException ioe) {
+				log.debug("Could not measure a " + value.getClass().getName() + " attribute: " + ioe.getMessage());
+			} catch(RuntimeException e) {
+				log.debug("Could not measure a " + value.getClass().getName() + " attribute: " + e.getMessage());
+			}
+		}
+		return defaultAttributeBytes;
+	}
+
+	/**
+	* The estimated number of bytes held by the cached sessions.
+	*/
+	public long getResidentBytes() {
+		return residentBytes.get();
+	}
+
+	/**
+	* The number of cached sessions.
+	*/
+	public long getSize() {
+		return cache.size();
+	}
+
+	/**
+	* Hit, miss and eviction counts of the cache.
+	*/
+	public CacheStats getStats() {
+		return cache.stats();
+	}
+
+	public double getHitRate() {
+		return getStats().hitRate();
+	}
+
+	public long getEvictionCount() {
+		return getStats().evictionCount();
+	}
+
 	/**
 	* Persists a session to the data store. The sessionData may be {@code null}.
 	*/
@@ -88,7 +223,9 @@ public class InMemoryPersister implements Persister, InitializingBean {
 	public void persistSession(SessionData sessionData) {
 		if(sessionData == null) return;
 		log.debug("Persisting session: " + sessionData);
-		cache.put(sessionData.sessionId, sessionData);
+		final Entry entry = new Entry(sessionData, weigh(sessionData));
+		residentBytes.addAndGet(entry.weight);
+		cache.put(sessionData.sessionId, entry);
 	}
 
 	/**
@@ -96,11 +233,43 @@ public class InMemoryPersister implements Persister, InitializingBean {
 	*/
 	@Override
 	public SessionData getSessionData(String sessionId) {
-		SessionData result = cache.getIfPresent(sessionId);
+		final Entry entry = cache.getIfPresent(sessionId);
+		final SessionData result = entry == null ? null : entry.data;
 		log.debug("Retrieving session data " + sessionId + ": " + result);
 		return result;
 	}
 
+	@Override
+	public Map<String,SessionData> getSessionsData(final Collection<String> sessionIds) {
+		final Map<String,SessionData> found = new HashMap<String,SessionData>();
+		if(sessionIds == null || sessionIds.isEmpty()) return found;
+		for(Map.Entry<String,Entry> entry : cache.getAllPresent(sessionIds).entrySet()) {
+			found.put(entry.getKey(), entry.getValue().data);
+		}
+		return found;
+	}
+
+	@Override
+	public void persistSessions(final Collection<SessionData> sessions) {
+		if(sessions == null || sessions.isEmpty()) return;
+		final Map<String,Entry> entries = new HashMap<String,Entry>();
+		long weight = 0;
+		for(SessionData sessionData : sessions) {
+			if(sessionData == null) continue;
+			final Entry entry = new Entry(sessionData, weigh(sessionData));
+			final Entry replaced = entries.put(sessionData.sessionId, entry);
+			weight += entry.weight - (replaced == null ? 0 : replaced.weight);
+		}
+		residentBytes.addAndGet(weight);
+		cache.putAll(entries);
+	}
+
+	@Override
+	public void invalidateAll(final Collection<String> sessionIds) {
+		if(sessionIds == null || sessionIds.isEmpty()) return;
+		cache.invalidateAll(sessionIds);
+	}
+
 	/**
 	 * Delete a session and its attributes.
 	 * @param sessionId the session id
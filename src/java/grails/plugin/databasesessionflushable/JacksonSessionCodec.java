@@ -0,0 +1,58 @@
+package grails.plugin.databasesessionflushable;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Base class for the Jackson-based codecs. The configured {@link ObjectMapper} is created once and shared, since
+ * it is thread-safe and expensive to build.
+ *
+ * @author Robert Fischer
+ */
+public abstract class JacksonSessionCodec implements SessionCodec {
+
+	private final ObjectMapper mapper;
+
+	protected JacksonSessionCodec(final JsonFactory factory) {
+		mapper = new ObjectMapper(factory);
+		mapper.setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
+	}
+
+	protected ObjectMapper getMapper() {
+		return mapper;
+	}
+
+	@Override
+	public byte[] encode(Map<String,Serializable> attributes) throws IOException {
+		return mapper.writeValueAsBytes(attributes);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Map<String,Serializable> decode(byte[] bytes, int offset, int length) throws IOException {
+		return (Map<String,Serializable>)mapper.readValue(bytes, offset, length, HashMap.class);
+	}
+
+	@Override
+	public byte[] encodeValue(Serializable value) throws IOException {
+		return mapper.writeValueAsBytes(value);
+	}
+
+	@Override
+	public Serializable decodeValue(byte[] bytes, int offset, int length) throws IOException {
+		// Untyped JSON only ever maps to maps, lists, strings, numbers and booleans, which are all Serializable
+		return (Serializable)mapper.readValue(bytes, offset, length, Object.class);
+	}
+
+	public String toString() {
+		return getName();
+	}
+
+}
@@ -0,0 +1,101 @@
+package grails.plugin.databasesessionflushable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes the attributes with plain Java serialization. Unlike the Jackson codecs this keeps the attribute
+ * classes intact, at the price of larger payloads and a dependency on the classes staying compatible.
+ *
+ * @author Robert Fischer
+ */
+public class JavaSerializationSessionCodec implements SessionCodec {
+
+	public static final byte FORMAT_ID = 3;
+
+	@Override
+	public byte getFormatId() {
+		return FORMAT_ID;
+	}
+
+	@Override
+	public String getName() {
+		return "java";
+	}
+
+	@Override
+	public byte[] encode(Map<String,Serializable> attributes) throws IOException {
+		return write(new HashMap<String,Serializable>(attributes));
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Map<String,Serializable> decode(byte[] bytes, int offset, int length) throws IOException {
+		return (Map<String,Serializable>)read(bytes, offset, length);
+	}
+
+	@Override
+	public byte[] encodeValue(Serializable value) throws IOException {
+		return write(value);
+	}
+
+	@Override
+	public Serializable decodeValue(byte[] bytes, int offset, int length) throws IOException {
+		return (Serializable)read(bytes, offset, length);
+	}
+
+	private static byte[] write(Object value) throws IOException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final ObjectOutputStream oos = new ObjectOutputStream(baos);
+		oos.writeObject(value);
+		oos.close();
+		return baos.toByteArray();
+	}
+
+	private static Object read(byte[] bytes, int offset, int length) throws IOException {
+		final ObjectInputStream ois = new ContextObjectInputStream(new ByteArrayInputStream(bytes, offset, length));
+		try {
+			return ois.readObject();
+		} catch(ClassNotFoundException cnfe) {
+			throw new IOException("Could not find a class while deserializing the session: " + cnfe.getMessage(), cnfe);
+		} finally {
+			ois.close();
+		}
+	}
+
+	public String toString() {
+		return getName();
+	}
+
+	/**
+	* Resolves classes through the context class loader, which is the application's under Grails.
+	*/
+	private static final class ContextObjectInputStream extends ObjectInputStream {
+
+		public ContextObjectInputStream(InputStream in) throws IOException {
+			super(in);
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+			final ClassLoader loader = Thread.currentThread().getContextClassLoader();
+			if(loader != null) {
+				try {
+					return Class.forName(desc.getName(), false, loader);
+				} catch(ClassNotFoundException cnfe) {
+					// Fall back to the default resolution below
+				}
+			}
+			return super.resolveClass(desc);
+		}
+	}
+
+}
@@ -7,17 +7,16 @@ import java.util.concurrent.TimeUnit;
 import java.sql.*;
 
 import java.security.MessageDigest;
-import java.security.DigestOutputStream;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.base.Predicates;
-import com.google.common.collect.Collections2;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 import org.apache.log4j.Logger;
 
 import org.springframework.dao.*;
 import org.springframework.jdbc.*;
 import org.springframework.jdbc.core.*;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 import org.springframework.transaction.*;
 import org.springframework.transaction.support.*;
 
@@ -30,7 +29,7 @@ import org.springframework.beans.factory.InitializingBean;
  *
  * @author Robert Fischer
  */
-public class JdbcPersister implements Persister, InitializingBean {
+public class JdbcPersister extends AbstractPersister implements VersionedPersister, InitializingBean {
 
 
 
@@ -54,9 +53,24 @@ public class JdbcPersister implements Persister, InitializingBean {
 		return transactionTemplate;
 	}
 
+	private volatile TransactionTemplate attributeTransactionTemplate;
+	/**
+	* The transaction in which a session row and its attribute rows are written in attribute storage mode. It has to
+	* be a real transaction on the data source of the {@link #setJdbcTemplate(JdbcTemplate) JDBC template}, unlike
+	* the {@link #setTransactionTemplate(TransactionTemplate) transaction template}, which usually only asserts that
+	* none is active. By default it is a {@code PROPAGATION_REQUIRED} transaction of its own on that data source.
+	*/
+	public void setAttributeTransactionTemplate(TransactionTemplate template) {
+		this.attributeTransactionTemplate = template;
+	}
+	public TransactionTemplate getAttributeTransactionTemplate() {
+		return attributeTransactionTemplate;
+	}
+
 	private volatile String tableName = "grailsSessionData";
 	public void setTableName(String tableName) {
 		this.tableName = tableName;
+		this.upsertSql = null;
 	}
 	public String getTableName() {
 		return tableName;
@@ -72,6 +86,7 @@ public class JdbcPersister implements Persister, InitializingBean {
 		} else {
 			nowFunc = functionCall;
 		}
+		upsertSql = null;
 	}
 
 	// TODO We should be able to look this up somehow based on the BLOB type.
@@ -97,6 +112,143 @@ public class JdbcPersister implements Persister, InitializingBean {
 		}
 	}
 
+	private volatile SessionSerializer serializer = new SessionSerializer();
+	/**
+	* Converts the session attributes to the stored bytes and back.
+	*/
+	public void setSerializer(SessionSerializer serializer) {
+		this.serializer = serializer;
+	}
+	public SessionSerializer getSerializer() {
+		return serializer;
+	}
+
+	private volatile SessionDialect dialect;
+	/**
+	* The dialect used to build the single-statement upsert. If none is assigned, it is detected from the
+	* database product when the persister is initialized.
+	*/
+	public void setDialect(SessionDialect dialect) {
+		this.dialect = dialect;
+		this.upsertSql = null;
+	}
+	public SessionDialect getDialect() {
+		return dialect;
+	}
+	/**
+	* Assigns the dialect by its short name (see {@link SessionDialect#forName(String)}).
+	*/
+	public void setDialectName(String dialectName) {
+		setDialect(dialectName == null ? null : SessionDialect.forName(dialectName));
+	}
+
+	private volatile String upsertSql;
+
+	private volatile int digestCacheSize = 10000;
+	/**
+	* How many sessions to remember the last persisted digest for. Writes of a session whose serialized content
+	* still has the remembered digest only update its access metadata, not its data.
+	*/
+	public void setDigestCacheSize(int digestCacheSize) {
+		this.digestCacheSize = digestCacheSize;
+	}
+	public int getDigestCacheSize() {
+		return digestCacheSize;
+	}
+
+	private volatile long touchIntervalMillis = 0;
+	/**
+	* When the content of a session is unchanged, its access metadata is only rewritten if at least this long has
+	* passed since it was last written. The default of {@code 0} always rewrites it; a larger value skips writes
+	* entirely at the cost of a less precise {@code lastAccessedAt} in the database.
+	*/
+	public void setTouchIntervalMillis(long touchIntervalMillis) {
+		this.touchIntervalMillis = touchIntervalMillis;
+	}
+	public long getTouchIntervalMillis() {
+		return touchIntervalMillis;
+	}
+
+	private volatile boolean attributeStorage = false;
+	/**
+	* When {@code true}, each attribute is stored in its own row of the {@link #getAttributeTableName() attribute table}
+	* and only added, changed or removed attributes are written. Changes are detected by hashing the encoded
+	* attributes, so an attribute which was only read is not written again. Sessions stored as a single blob are still read, and
+	* are moved to the attribute table the next time they are written.
+	*/
+	public void setAttributeStorage(boolean attributeStorage) {
+		this.attributeStorage = attributeStorage;
+	}
+	public boolean isAttributeStorage() {
+		return attributeStorage;
+	}
+
+	private volatile String attributeTableName = null;
+	/**
+	* The table holding one row per attribute in attribute storage mode. Defaults to the table name followed by {@code Attributes}.
+	*/
+	public void setAttributeTableName(String attributeTableName) {
+		this.attributeTableName = attributeTableName;
+	}
+	public String getAttributeTableName() {
+		return attributeTableName == null ? getTableName() + "Attributes" : attributeTableName;
+	}
+
+	private final SessionAttributeTable attributeTable = new SessionAttributeTable(this);
+
+	/**
+	* What this node last wrote to (or read from) the database for a session.
+	*/
+	private static final class PersistedState {
+		public final String hash;
+		public final long lastAccessedAt;
+		public final int maxInactiveInterval;
+		public final long version;
+		/** The attribute digests in attribute storage mode, or {@code null} if the stored attributes are not known. */
+		public final Map<String,String> attributes;
+
+		public PersistedState(final String hash, final long lastAccessedAt, final int maxInactiveInterval, final long version, final Map<String,String> attributes) {
+			this.hash = hash;
+			this.lastAccessedAt = lastAccessedAt;
+			this.maxInactiveInterval = maxInactiveInterval;
+			this.version = version;
+			this.attributes = attributes;
+		}
+
+		public boolean isSameContent(final SessionBytes data) {
+			return hash.equals(data.hash);
+		}
+
+		public boolean isFresh(final SessionData session, final long touchIntervalMillis) {
+			// A session written with a version of its own has to be stored with it, or caches would think it stale
+			return maxInactiveInterval == session.maxInactiveInterval &&
+				(session.version == 0 || session.version == version) &&
+				session.lastAccessedAt - lastAccessedAt < touchIntervalMillis;
+		}
+	}
+
+	private final LatencyAverage requestLatency = new LatencyAverage(0.1, 5000);
+
+	/**
+	* The recent average duration of {@link #getSessionData(String)} and {@link #persistSession(SessionData)}, in
+	* milliseconds. It halves every five seconds without requests. {@link SessionReaper} backs off while this is high.
+	*/
+	public double getRequestLatencyMillis() {
+		return requestLatency.getMillis();
+	}
+
+	private volatile Cache<String,PersistedState> persistedStates = CacheBuilder.newBuilder().maximumSize(0).build();
+
+	private void remember(final SessionBytes data) {
+		remember(data, null);
+	}
+
+	private void remember(final SessionBytes data, final Map<String,String> attributes) {
+		persistedStates.put(data.session.sessionId,
+			new PersistedState(data.hash, data.session.lastAccessedAt, data.session.maxInactiveInterval, data.version, attributes)
+		);
+	}
+
 	public void afterPropertiesSet() {
 		if(jdbcTemplate == null) {
 			throw new IllegalStateException("jdbcTemplate property must be assigned (cannot be null)");
@@ -107,10 +259,26 @@ public class JdbcPersister implements Persister, InitializingBean {
 		if(tableName == null) {
 			throw new IllegalStateException("tableName property must be assigned (cannot be null)");
 		}
+		if(serializer == null) {
+			throw new IllegalStateException("serializer property must be assigned (cannot be null)");
+		}
 		log.debug("Transaction template configuration: " +
 			transactionTemplate.getIsolationLevel() + " - " + transactionTemplate.getPropagationBehavior()
 		);
+		if(attributeTransactionTemplate == null) {
+			final TransactionTemplate template = new TransactionTemplate(new DataSourceTransactionManager(jdbcTemplate.getDataSource()));
+			template.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRED);
+			template.setIsolationLevel(transactionTemplate.getIsolationLevel());
+			attributeTransactionTemplate = template;
+		}
 		getMessageDigest(); // Make sure it works
+		persistedStates = CacheBuilder.newBuilder()
+			.maximumSize(Math.max(0, digestCacheSize))
+			.expireAfterAccess(1, TimeUnit.HOURS)
+			.build();
+		if(dialect == null) {
+			setDialect(SessionDialect.detect(jdbcTemplate.getDataSource()));
+		}
 		createTable();
 	}
 
@@ -124,13 +292,105 @@ public class JdbcPersister implements Persister, InitializingBean {
 					"sessionData " + getBinaryType() + " NOT NULL,\n" +
 					"createdAt TIMESTAMP NOT NULL,\n"+
 					"lastAccessedAt TIMESTAMP NOT NULL,\n"+
-					"maxInactiveInterval INT NOT NULL\n"
+					"maxInactiveInterval INT NOT NULL,\n"+
+					"expiresAt TIMESTAMP,\n"+
+					"version BIGINT\n"
 				+")"
 			);
 			log.info("If not already present, created the table for sessions: " + getTableName());
 		} catch(Exception e) {
 			log.warn("Unknown error while creating the table for sessions", e);
 		}
+		migrateExpiresAt();
+		addColumn("version", "BIGINT");
+		if(attributeStorage) {
+			attributeTable.createTable();
+		}
+	}
+
+	/**
+	* Adds the {@code expiresAt} column and its index to a table created before they existed, and fills the column
+	* in for the rows already there. Rows written by older versions of the plugin during a rolling upgrade are filled
+	* in by {@link #cleanUp()}.
+	*/
+	private void migrateExpiresAt() {
+		if(addColumn("expiresAt", "TIMESTAMP")) {
+			backfillExpiresAt();
+		}
+		try {
+			jdbcTemplate.execute("CREATE INDEX " + getTableName() + "_expiresAt ON " + getTableName() + " (expiresAt)");
+			log.info("Created the index on expiresAt for " + getTableName());
+		} catch(Exception e) {
+			log.debug("Did not create the index on expiresAt for " + getTableName() + " (it probably exists): " + e.getMessage());
+		}
+	}
+
+	/**
+	* Adds a column to a table created before it existed. Returns whether the column was added.
+	*/
+	private boolean addColumn(final String column, final String type) {
+		try {
+			jdbcTemplate.queryForList("SELECT " + column + " FROM " + getTableName() + " WHERE 1 = 0");
+			return false;
+		} catch(DataAccessException missing) {
+			log.info("Adding the " + column + " column to " + getTableName());
+		}
+		try {
+			jdbcTemplate.execute("ALTER TABLE " + getTableName() + " ADD " + column + " " + type);
+			return true;
+		} catch(Exception e) {
+			log.warn("Could not add the " + column + " column to " + getTableName() + "; add it yourself", e);
+			return false;
+		}
+	}
+
+	/**
+	* Computes {@code expiresAt} for the rows which do not have it yet, {@link #BACKFILL_BATCH_SIZE} rows at a time.
+	* Date arithmetic is notoriously non-standard in SQL, so this is done here rather than in the database.
+	* @return the number of rows filled in
+	*/
+	int backfillExpiresAt() {
+		int filled = 0;
+		while(true) {
+			final List<Object[]> batch = queryAtMost(
+				"SELECT sessionId, lastAccessedAt, maxInactiveInterval FROM " + getTableName() + " WHERE expiresAt IS NULL",
+				new Object[0], BACKFILL_BATCH_SIZE,
+				new ResultSetExtractor<List<Object[]>>() {
+					public List<Object[]> extractData(ResultSet rs) throws SQLException {
+						final List<Object[]> batch = new ArrayList<Object[]>();
+						while(batch.size() < BACKFILL_BATCH_SIZE && rs.next()) {
+							final Timestamp lastAccessedAt = rs.getTimestamp(2);
+							batch.add(new Object[] {
+								expiresAt(lastAccessedAt.getTime(), rs.getInt(3)), rs.getString(1), lastAccessedAt
+							});
+						}
+						return batch;
+					}
+				}
+			);
+			if(batch.isEmpty()) break;
+			final int[] counts = jdbcTemplate.batchUpdate(
+				"UPDATE " + getTableName() + " SET expiresAt = ? WHERE sessionId = ? AND lastAccessedAt = ? AND expiresAt IS NULL",
+				batch
+			);
+			int updated = 0;
+			for(int count : counts) updated += Math.max(0, count);
+			filled += updated;
+			// A round which changed nothing would select the same rows again
+			if(batch.size() < BACKFILL_BATCH_SIZE || updated == 0) break;
+		}
+		if(filled > 0) log.info("Filled in expiresAt for " + filled + " sessions in " + getTableName());
+		return filled;
+	}
+
+	private static final int BACKFILL_BATCH_SIZE = 500;
+
+	private static Timestamp expiresAt(final long lastAccessedAt, final int maxInactiveInterval) {
+		return new Timestamp(lastAccessedAt + TimeUnit.SECONDS.toMillis(maxInactiveInterval));
+	}
+
+	private static Timestamp expiresAt(final SessionData session) {
+		return expiresAt(session.lastAccessedAt, session.maxInactiveInterval);
 	}
 
 	private static final String algorithm = "SHA-256";
@@ -142,156 +402,548 @@ public class JdbcPersister implements Persister, InitializingBean {
 		}
 	}
 
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
 	private static final class SessionBytes {
 		public final SessionData session;
 		public final String hash;
 		public final byte[] bytes;
+		public final long version;
 
-		public SessionBytes(final SessionData session, final byte[] hashBytes, final byte[] dataBytes) {
+		public SessionBytes(final SessionData session, final byte[] dataBytes) {
 			this.session = session;
 			this.bytes = dataBytes;
+			this.version = session.version != 0 ? session.version : SessionVersions.next();
+			this.hash = digest(dataBytes);
+		}
+	}
 
-			String hashStr = "";
-			for(byte b : hashBytes) hashStr = hashStr + String.format("%02X", (int)b & 0xff);
-			this.hash = hashStr;
+	/**
+	* The SHA-256 digest of the bytes, in hexadecimal.
+	*/
+	static String digest(final byte[] bytes) {
+		final byte[] hashBytes = getMessageDigest().digest(bytes);
+		final char[] hashChars = new char[hashBytes.length * 2];
+		for(int i = 0; i < hashBytes.length; i++) {
+			hashChars[i * 2] = HEX_DIGITS[(hashBytes[i] >> 4) & 0xf];
+			hashChars[i * 2 + 1] = HEX_DIGITS[hashBytes[i] & 0xf];
 		}
+		return new String(hashChars);
+	}
+
+	private static final String UNSTORED_ATTRIBUTE = "shiroGrailsSavedRequest";
+
+	static Map<String,Serializable> storableAttributes(SessionData session) {
+		if(!session.attrs.containsKey(UNSTORED_ATTRIBUTE)) return session.attrs;
+		final HashMap<String,Serializable> object = new HashMap<String,Serializable>(session.attrs);
+		object.remove(UNSTORED_ATTRIBUTE);
+		return object;
 	}
 
-	private static SessionBytes sessionToBytes(SessionData session) {
+	private SessionBytes sessionToBytes(SessionData session) {
 		try {
-            HashMap<String,Serializable> object = new HashMap<String,Serializable>(session.attrs);
-            object.remove( "shiroGrailsSavedRequest" );
-
-            ObjectMapper jsonMapper = new ObjectMapper();
-            jsonMapper.setVisibility(com.fasterxml.jackson.annotation.PropertyAccessor.FIELD, com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility.ANY);
-            String serializedSession = jsonMapper.writeValueAsString( object );
-
-            log.info( "WRITE Data: "+serializedSession );
-			final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			final DigestOutputStream dos = new DigestOutputStream(baos, getMessageDigest());
-            dos.write(serializedSession.getBytes());
-            dos.flush();
-			return new SessionBytes(session, dos.getMessageDigest().digest(), baos.toByteArray());
+			final byte[] bytes = serializer.serialize(storableAttributes(session));
+			return new SessionBytes(session, bytes);
 		} catch(java.io.IOException ioe) {
 			throw new RuntimeException("IO Exception while converting the session to bytes: cannot serialize!", ioe);
 		}
-    }
+	}
 
 	/**
-	* Persists a session to the data store. The sessionData may be {@code null}.
+	* Persists a session to the data store. The sessionData may be {@code null}. This is a single upsert statement
+	* unless the dialect has none, in which case an existing session is updated and a new one falls back to an insert.
+	* If the serialized session has the same digest as what this node last persisted, only the access metadata is
+	* updated (or nothing at all, see {@link #setTouchIntervalMillis(long)}).
 	*/
 	@Override
 	public void persistSession(SessionData session) {
+		if(session == null) return;
+		final long start = System.nanoTime();
+		try {
+			writeSession(session);
+		} finally {
+			requestLatency.recordSince(start);
+		}
+	}
+
+	/**
+	* Writes a session, logging any failure. Returns whether the stored session is now up to date.
+	*/
+	private boolean writeSession(SessionData session) {
 		log.debug("Persisting session: " + session);
+		if(attributeStorage) {
+			return persistAttributes(session);
+		}
 		final SessionBytes data = sessionToBytes(session);
-		if(isValid(session.sessionId)) {
-			updateSession(data);
+
+		final PersistedState previous = persistedStates.getIfPresent(session.sessionId);
+		if(previous != null && previous.isSameContent(data)) {
+			if(previous.isFresh(session, touchIntervalMillis)) {
+				log.debug("Not writing session " + session.sessionId + ": content unchanged and recently touched");
+				return true;
+			}
+			if(touchSession(data)) {
+				remember(data);
+				return true;
+			}
+		}
+
+		final String upsert = getUpsertSql();
+		final boolean written = upsert == null ? updateSession(data) : upsertSession(upsert, data);
+		if(written) {
+			remember(data);
+		} else {
+			// What is stored is unknown, so the next write must not be taken for an unchanged one
+			persistedStates.invalidate(session.sessionId);
+		}
+		return written;
+	}
+
+	/**
+	* Writes a session in attribute storage mode: the session row only carries the metadata, and the attribute
+	* rows are written according to what changed since this node last wrote or read the session.
+	*/
+	private boolean persistAttributes(final SessionData session) {
+		final Map<String,Serializable> attrs = storableAttributes(session);
+		final Map<String,byte[]> encoded = new HashMap<String,byte[]>(attrs.size() * 2);
+		final Map<String,String> current = new HashMap<String,String>(attrs.size() * 2);
+		encodeAttributes(session.sessionId, attrs, encoded, current);
+		final SessionBytes data = new SessionBytes(session, new byte[0]);
+
+		final PersistedState previous = persistedStates.getIfPresent(session.sessionId);
+		final List<String> changed;
+		final List<String> removed;
+		if(previous == null || previous.attributes == null) {
+			changed = null;
+			removed = null;
+		} else {
+			changed = new ArrayList<String>();
+			for(String name : attrs.keySet()) {
+				final String before = previous.attributes.get(name);
+				if(before == null || !before.equals(current.get(name))) changed.add(name);
+			}
+			removed = new ArrayList<String>();
+			for(String name : previous.attributes.keySet()) {
+				if(!attrs.containsKey(name)) removed.add(name);
+			}
+			if(changed.isEmpty() && removed.isEmpty() && previous.isFresh(session, touchIntervalMillis)) {
+				log.debug("Not writing session " + session.sessionId + ": attributes unchanged and recently touched");
+				return true;
+			}
+		}
+
+		// The session row and its attribute rows change together, or not at all
+		final Boolean written = attributeTransactionTemplate.execute(
+			new TransactionCallback<Boolean>() {
+				public Boolean doInTransaction(TransactionStatus status) {
+					try {
+						writeSessionRow(data);
+						if(changed == null) {
+							attributeTable.replace(session.sessionId, encoded);
+						} else {
+							attributeTable.write(session.sessionId, encoded, changed, removed);
+						}
+						status.flush();
+						return true;
+					} catch(RuntimeException e) {
+						status.setRollbackOnly();
+						log.error("Error persisting session: " + session.sessionId, e);
+						return false;
+					}
+				}
+			}
+		);
+		if(written != null && written) {
+			remember(data, current);
+			return true;
+		}
+		persistedStates.invalidate(session.sessionId);
+		return false;
+	}
+
+	/**
+	* Encodes the attributes for the attribute rows, filling in their encoded values and their hashes.
+	*/
+	private void encodeAttributes(final String sessionId, final Map<String,Serializable> attrs, final Map<String,byte[]> encoded, final Map<String,String> hashes) {
+		for(Map.Entry<String,Serializable> entry : attrs.entrySet()) {
+			try {
+				final byte[] bytes = SessionAttributeTable.encode(serializer, entry.getValue());
+				encoded.put(entry.getKey(), bytes);
+				hashes.put(entry.getKey(), SessionAttributeTable.hash(bytes));
+			} catch(IOException ioe) {
+				throw new RuntimeException("IO Exception while writing attribute " + entry.getKey() + " of session " + sessionId, ioe);
+			}
+		}
+	}
+
+	/**
+	* Stores a session unless a session with its id is already stored, which is then kept as it is. Returns whether
+	* the session was stored. Unlike {@link #persistSession(SessionData)}, a failure is thrown. Used by
+	* {@link ShardedPersister} to move a session onto its new shard without overwriting a newer write there.
+	*/
+	public boolean persistSessionIfAbsent(final SessionData session) {
+		final Map<String,byte[]> encoded = new HashMap<String,byte[]>();
+		final Map<String,String> hashes = new HashMap<String,String>();
+		final SessionBytes data;
+		if(attributeStorage) {
+			encodeAttributes(session.sessionId, storableAttributes(session), encoded, hashes);
+			data = new SessionBytes(session, new byte[0]);
 		} else {
-			insertSession(data);
+			data = sessionToBytes(session);
 		}
+
+		final Boolean inserted = attributeTransactionTemplate.execute(
+			new TransactionCallback<Boolean>() {
+				public Boolean doInTransaction(TransactionStatus status) {
+					try {
+						jdbcTemplate.update(getInsertSql(), insertArguments(data));
+					} catch(DuplicateKeyException dke) {
+						log.debug("Not storing session " + session.sessionId + ": it is already stored");
+						status.setRollbackOnly();
+						return false;
+					}
+					if(attributeStorage) attributeTable.replace(session.sessionId, encoded);
+					status.flush();
+					return true;
+				}
+			}
+		);
+		if(inserted == null || !inserted) return false;
+		if(attributeStorage) {
+			remember(data, hashes);
+		} else {
+			remember(data);
+		}
+		return true;
 	}
 
-	private void insertSession(final SessionBytes data) {
-		final String timestamp = getCurrentTimestampDbFunction();
+	/**
+	* Writes the session row within the current transaction, letting any failure through.
+	*/
+	private void writeSessionRow(final SessionBytes data) {
+		final String upsert = getUpsertSql();
+		if(upsert != null) {
+			jdbcTemplate.update(upsert, upsertArguments(data));
+		} else if(jdbcTemplate.update(getUpdateSql(), updateArguments(data)) == 0) {
+			jdbcTemplate.update(getInsertSql(), insertArguments(data));
+		}
+	}
+
+	private String getTouchSql() {
+		return "UPDATE " + getTableName() +
+			" SET lastAccessedAt = " + getCurrentTimestampDbFunction() + ", maxInactiveInterval = ?, expiresAt = ?, version = ? " +
+			" WHERE sessionId = ? AND sessionHash = ?";
+	}
 
+	private Object[] touchArguments(final SessionBytes data) {
 		final List<Object> arguments = new ArrayList<Object>(6);
+		if("?".equals(getCurrentTimestampDbFunction())) {
+			arguments.add(new Timestamp(data.session.lastAccessedAt));
+		}
+		arguments.add(data.session.maxInactiveInterval);
+		arguments.add(expiresAt(data.session));
+		arguments.add(data.version);
+		arguments.add(data.session.sessionId);
+		arguments.add(data.hash);
+		return arguments.toArray(new Object[0]);
+	}
+
+	/**
+	* Updates only the access metadata of a session, provided the stored data still has the same digest.
+	* Returns {@code false} if no such row was found, in which case the full session needs to be written.
+	*/
+	private boolean touchSession(final SessionBytes data) {
+		final Object[] arguments = touchArguments(data);
+		final Integer rows = transactionTemplate.execute(
+			new TransactionCallback<Integer>() {
+				public Integer doInTransaction(TransactionStatus status) {
+					try {
+						final int updated = jdbcTemplate.update(getTouchSql(), arguments);
+						status.flush();
+						return updated;
+					} catch(Exception e) {
+						log.error("Error touching session: " + data.session.sessionId, e);
+						return 0;
+					}
+				}
+			}
+		);
+		if(rows != null && rows > 0) {
+			log.debug("Touched unchanged session: " + data.session.sessionId);
+			return true;
+		}
+		log.debug("Could not touch session " + data.session.sessionId + ": stored content differs or is missing");
+		return false;
+	}
+
+	/**
+	* The upsert statement for the current dialect and table, or {@code null} if the dialect does not have one.
+	*/
+	private String getUpsertSql() {
+		String sql = upsertSql;
+		if(sql == null && dialect != null) {
+			final Map<String,String> values = new LinkedHashMap<String,String>();
+			values.put("sessionId", "?");
+			values.put("sessionData", "?");
+			values.put("sessionHash", "?");
+			values.put("createdAt", "?");
+			values.put("lastAccessedAt", getCurrentTimestampDbFunction());
+			values.put("maxInactiveInterval", "?");
+			values.put("expiresAt", "?");
+			values.put("version", "?");
+			sql = dialect.upsertSql(getTableName(), Collections.singletonList("sessionId"), values, Collections.singleton("createdAt"));
+			upsertSql = sql;
+		}
+		return sql;
+	}
+
+	private Object[] upsertArguments(final SessionBytes data) {
+		final List<Object> arguments = new ArrayList<Object>(8);
+		arguments.add(data.session.sessionId);
+		arguments.add(new SqlParameterValue(getSqlBinaryType(), data.bytes));
+		arguments.add(data.hash);
+		arguments.add(new Timestamp(data.session.createdAt));
+		if("?".equals(getCurrentTimestampDbFunction())) {
+			arguments.add(new Timestamp(data.session.lastAccessedAt));
+		}
+		arguments.add(data.session.maxInactiveInterval);
+		arguments.add(expiresAt(data.session));
+		arguments.add(data.version);
+		return arguments.toArray(new Object[0]);
+	}
+
+	/**
+	* Writes a session with the upsert statement. Returns whether it was written; a failure is logged.
+	*/
+	private boolean upsertSession(final String sql, final SessionBytes data) {
+		final Object[] arguments = upsertArguments(data);
+
+		final Boolean written = transactionTemplate.execute(
+			new TransactionCallback<Boolean>() {
+				public Boolean doInTransaction(TransactionStatus status) {
+					try {
+						jdbcTemplate.update(sql, arguments);
+						status.flush();
+						log.debug("Upserted session: " + data.session.sessionId);
+						return true;
+					} catch(Exception e) {
+						log.error("Error persisting session: " + data.session.sessionId, e);
+						return false;
+					}
+				}
+			}
+		);
+		return written != null && written;
+	}
+
+	/**
+	* Persists a number of sessions at once. With an upsert-capable dialect this is a single JDBC batch; otherwise
+	* each session is persisted on its own. Sessions whose content is unchanged are only touched, as in
+	* {@link #persistSession(SessionData)}. {@code null} entries are ignored. Unlike a single write, which only logs
+	* a failure, this throws a {@link SessionWriteException} listing the sessions which were not stored.
+	*/
+	@Override
+	public void persistSessions(Collection<SessionData> sessions) {
+		if(sessions == null || sessions.isEmpty()) return;
+		final String upsert = getUpsertSql();
+		if(upsert == null || attributeStorage) {
+			final List<String> failed = new ArrayList<String>();
+			for(SessionData session : sessions) {
+				if(session != null && !writeSession(session)) failed.add(session.sessionId);
+			}
+			if(!failed.isEmpty()) {
+				throw new SessionWriteException("Could not persist " + failed.size() + " of " + sessions.size() + " sessions", failed, null);
+			}
+			return;
+		}
+
+		final List<SessionBytes> touches = new ArrayList<SessionBytes>();
+		final List<SessionBytes> writes = new ArrayList<SessionBytes>(sessions.size());
+		for(SessionData session : sessions) {
+			if(session == null) continue;
+			final SessionBytes data = sessionToBytes(session);
+			final PersistedState previous = persistedStates.getIfPresent(session.sessionId);
+			if(previous != null && previous.isSameContent(data)) {
+				if(!previous.isFresh(session, touchIntervalMillis)) touches.add(data);
+			} else {
+				writes.add(data);
+			}
+		}
+
+		if(!touches.isEmpty()) {
+			final int[] counts = batch(getTouchSql(), touches, true);
+			for(int i = 0; i < touches.size(); i++) {
+				if(counts != null && i < counts.length && counts[i] != 0) {
+					remember(touches.get(i));
+				} else {
+					writes.add(touches.get(i));
+				}
+			}
+		}
+
+		if(!writes.isEmpty()) {
+			log.debug("Upserting a batch of " + writes.size() + " sessions");
+			if(batch(upsert, writes, false) == null) {
+				final List<String> failed = new ArrayList<String>(writes.size());
+				for(SessionBytes data : writes) failed.add(data.session.sessionId);
+				// Part of the batch may have been stored, so what is stored for these is unknown
+				persistedStates.invalidateAll(failed);
+				throw new SessionWriteException("Could not persist a batch of " + failed.size() + " sessions", failed, null);
+			}
+			for(SessionBytes data : writes) remember(data);
+		}
+	}
+
+	/**
+	* Runs either the touch or the upsert statement as a batch. Returns the update counts, or {@code null} on failure.
+	*/
+	private int[] batch(final String sql, final List<SessionBytes> sessions, final boolean touch) {
+		final List<Object[]> batch = new ArrayList<Object[]>(sessions.size());
+		for(SessionBytes data : sessions) {
+			batch.add(touch ? touchArguments(data) : upsertArguments(data));
+		}
+		return transactionTemplate.execute(
+			new TransactionCallback<int[]>() {
+				public int[] doInTransaction(TransactionStatus status) {
+					try {
+						final int[] counts = jdbcTemplate.batchUpdate(sql, batch);
+						status.flush();
+						return counts;
+					} catch(Exception e) {
+						log.error("Error persisting a batch of " + batch.size() + " sessions", e);
+						return null;
+					}
+				}
+			}
+		);
+	}
+
+	private String getInsertSql() {
+		return "INSERT INTO " + getTableName() +
+			" (sessionId, sessionData, sessionHash, maxInactiveInterval, expiresAt, version, createdAt    , lastAccessedAt) VALUES " +
+			" (?        , ?          , ?          , ?                  , ?        , ?      , ?        , "+getCurrentTimestampDbFunction()+  ")";
+	}
+
+	private Object[] insertArguments(final SessionBytes data) {
+		final List<Object> arguments = new ArrayList<Object>(8);
 		arguments.add(data.session.sessionId);
 		arguments.add(new SqlParameterValue(getSqlBinaryType(), data.bytes));
 		arguments.add(data.hash);
 		arguments.add(data.session.maxInactiveInterval);
-		if("?".equals(timestamp)) {
-			final java.util.Date now = new java.util.Date();
-			arguments.add(now);
-			arguments.add(now);
+		arguments.add(expiresAt(data.session));
+		arguments.add(data.version);
+		arguments.add(new Timestamp(data.session.createdAt));
+		if("?".equals(getCurrentTimestampDbFunction())) {
+			arguments.add(new Timestamp(data.session.lastAccessedAt));
 		}
+		return arguments.toArray(new Object[0]);
+	}
 
-		transactionTemplate.execute(
-			new TransactionCallback<Void>() {
-				public Void doInTransaction(TransactionStatus status) {
+	/**
+	* Inserts a session, or updates it if another node inserted it meanwhile. Returns whether it was written; a
+	* failure is logged.
+	*/
+	private boolean insertSession(final SessionBytes data) {
+		final Object[] arguments = insertArguments(data);
+
+		final Boolean written = transactionTemplate.execute(
+			new TransactionCallback<Boolean>() {
+				public Boolean doInTransaction(TransactionStatus status) {
 					try {
-						jdbcTemplate.update(
-							"INSERT INTO " + getTableName() +
-								" (sessionId, sessionData, sessionHash, maxInactiveInterval, createdAt    , lastAccessedAt) VALUES " +
-								" (?        , ?          , ?          , ?                  , "+timestamp+","+timestamp+  ")",
-							arguments.toArray(new Object[0])
-						);
+						jdbcTemplate.update(getInsertSql(), arguments);
 						status.flush();
 						log.debug("Successfully inserted session: " + data.session.sessionId);
+						return true;
 					} catch(DuplicateKeyException dke) {
 						// Someone else did an insert at the same time!
 						log.debug("Detected a duplicate key: " + data.session.sessionId + " (going to try for an update)");
-						updateSession(data);
+						return updateSession(data);
 					} catch(Exception e) {
 						log.error("Error persisting session: " + data.session.sessionId, e);
+						return false;
 					}
-					return null;
 				}
 			}
 		);
+		return written != null && written;
 	}
 
-	private void updateSession(final SessionBytes data) {
-		final List<Object> arguments = new ArrayList<Object>(6);
+	private String getUpdateSql() {
+		return "UPDATE " + getTableName() +
+			" SET sessionData = ?, sessionHash = ?, lastAccessedAt = ?, maxInactiveInterval = ?, expiresAt = ?, version = ? " +
+			" WHERE sessionId = ? "; //AND sessionHash <> ?"
+	}
+
+	private Object[] updateArguments(final SessionBytes data) {
+		final List<Object> arguments = new ArrayList<Object>(7);
 		arguments.add(new SqlParameterValue(getSqlBinaryType(), data.bytes));
 		arguments.add(data.hash);
 		arguments.add(new java.util.Date(data.session.lastAccessedAt));
 		arguments.add(data.session.maxInactiveInterval);
+		arguments.add(expiresAt(data.session));
+		arguments.add(data.version);
 		arguments.add(data.session.sessionId);
 		//arguments.add(data.hash);
+		return arguments.toArray(new Object[0]);
+	}
+
+	/**
+	* Updates a session, or inserts it if it is not stored yet. Returns whether it was written; a failure is logged.
+	*/
+	private boolean updateSession(final SessionBytes data) {
+		final Object[] arguments = updateArguments(data);
 
-		transactionTemplate.execute(
-			new TransactionCallback<Void>() {
-				public Void doInTransaction(TransactionStatus status) {
+		final Boolean written = transactionTemplate.execute(
+			new TransactionCallback<Boolean>() {
+				public Boolean doInTransaction(TransactionStatus status) {
 					try{
-						int updatedRecords = jdbcTemplate.update(
-							"UPDATE " + getTableName() +
-								" SET sessionData = ?, sessionHash = ?, lastAccessedAt = ?, maxInactiveInterval = ? " +
-								" WHERE sessionId = ? ", //AND sessionHash <> ?",
-							arguments.toArray(new Object[0])
-						);
+						int updatedRecords = jdbcTemplate.update(getUpdateSql(), arguments);
 						status.flush();
 						if(updatedRecords == 0) {
 							log.debug("Session was not updated, no records found: " + data.session.sessionId);
-							insertSession(data);
-						} else {
-							log.debug("Updated session: " + data.session.sessionId);
+							return insertSession(data);
 						}
+						log.debug("Updated session: " + data.session.sessionId);
+						return true;
 					} catch(Exception e) {
 						log.error("Error updating session: " + data.session.sessionId, e);
+						return false;
 					}
-					return null;
 				}
 			}
 		);
+		return written != null && written;
 	}
 
 	/**
 	* Retrieves the session data for the given session. May be {@code null}.
 	*/
 	public SessionData getSessionData(final String sessionId) {
+		final long start = System.nanoTime();
+		try {
+			return readSession(sessionId);
+		} finally {
+			requestLatency.recordSince(start);
+		}
+	}
+
+	private SessionData readSession(final String sessionId) {
 		log.debug("Getting session data for " + sessionId);
         SessionData sessionData = null;
 
         try
         {
-            transactionTemplate.execute(new TransactionCallback<SessionData>() {
+            sessionData = transactionTemplate.execute(new TransactionCallback<SessionData>() {
                     public SessionData doInTransaction(TransactionStatus status) {
                         try {
                             return jdbcTemplate.queryForObject(
-                                "SELECT sessionId, sessionData, createdAt, lastAccessedAt, maxInactiveInterval " +
-                                    "FROM " + getTableName() + " WHERE sessionId = ?",
+                                SESSION_COLUMNS + "FROM " + getTableName() + " WHERE sessionId = ?",
                                 new Object[] { sessionId },
                                 new RowMapper<SessionData>() {
                                     public SessionData mapRow(ResultSet rs, int rowNum) throws SQLException {
                                         log.debug("Processing session data row #" + rowNum + " for " + sessionId);
                                         try {
-                                            return new SessionData(
-                                                rs.getString(1),
-                                                readAttributes(rs.getBytes(2)),
-                                                rs.getDate(3).getTime(),
-                                                rs.getDate(4).getTime(),
-                                                rs.getInt(5)
-                                            );
+                                            return mapSession(rs);
                                         } catch(SQLException sqle) {
                                             throw sqle;
                                         } catch(RuntimeException re) {
@@ -322,25 +974,116 @@ public class JdbcPersister implements Persister, InitializingBean {
             log.error(ex,ex);
         }
 
+        if(sessionData != null && attributeStorage) {
+            sessionData = withStoredAttributes(sessionData);
+        }
         return sessionData;
 	}
 
-	private static Map<String,Serializable> readAttributes(byte[] bytes) {
-		if(bytes == null || bytes.length == 0) {
-			log.warn("Asked to read from a null/empty attributes stream: " + Arrays.toString(bytes));
-			return Collections.emptyMap();
+	private static final String SESSION_COLUMNS =
+		"SELECT sessionId, sessionData, createdAt, lastAccessedAt, maxInactiveInterval, sessionHash, version ";
+
+	/**
+	* Reads a row selected with {@link #SESSION_COLUMNS}, and remembers what was read.
+	*/
+	private SessionData mapSession(final ResultSet rs) throws SQLException {
+		final SessionData data = new SessionData(
+			rs.getString(1),
+			readAttributes(rs.getBytes(2)),
+			rs.getTimestamp(3).getTime(),
+			rs.getTimestamp(4).getTime(),
+			rs.getInt(5),
+			rs.getLong(7)
+		);
+		persistedStates.put(data.sessionId,
+			new PersistedState(rs.getString(6), data.lastAccessedAt, data.maxInactiveInterval, data.version, null)
+		);
+		return data;
+	}
+
+	private volatile int inListSize = 100;
+	/**
+	* The largest number of session ids in the {@code IN} list of a query by {@link #getSessionsData(Collection)}.
+	*/
+	public void setInListSize(int inListSize) {
+		this.inListSize = inListSize;
+	}
+	public int getInListSize() {
+		return inListSize;
+	}
+
+	/**
+	* Retrieves a number of sessions with one query per {@link #setInListSize(int)} ids. These bulk reads are not
+	* counted in {@link #getRequestLatencyMillis()}, which only measures the reads and writes of requests.
+	*/
+	@Override
+	public Map<String,SessionData> getSessionsData(final Collection<String> sessionIds) {
+		final Map<String,SessionData> found = new HashMap<String,SessionData>();
+		if(sessionIds == null || sessionIds.isEmpty()) return found;
+		final List<String> ids = new ArrayList<String>(new LinkedHashSet<String>(sessionIds));
+		final int chunkSize = Math.max(1, inListSize);
+		for(int from = 0; from < ids.size(); from += chunkSize) {
+			final List<String> chunk = ids.subList(from, Math.min(ids.size(), from + chunkSize));
+			final StringBuilder sql = new StringBuilder(SESSION_COLUMNS).append("FROM ").append(getTableName()).append(" WHERE sessionId IN (");
+			for(int i = 0; i < chunk.size(); i++) sql.append(i == 0 ? "?" : ", ?");
+			sql.append(")");
+			final List<SessionData> rows = new ArrayList<SessionData>(chunk.size());
+			jdbcTemplate.query(sql.toString(), chunk.toArray(), new RowCallbackHandler() {
+				public void processRow(ResultSet rs) throws SQLException {
+					rows.add(mapSession(rs));
+				}
+			});
+			if(attributeStorage && !rows.isEmpty()) {
+				final List<String> rowIds = new ArrayList<String>(rows.size());
+				for(SessionData data : rows) rowIds.add(data.sessionId);
+				final Map<String,SessionAttributeTable.Stored> stored = attributeTable.loadAll(rowIds);
+				for(SessionData data : rows) {
+					final SessionAttributeTable.Stored attrs = stored.get(data.sessionId);
+					found.put(data.sessionId, withStoredAttributes(data, attrs == null ? new SessionAttributeTable.Stored() : attrs));
+				}
+			} else {
+				for(SessionData data : rows) found.put(data.sessionId, data);
+			}
 		}
-        String jsonString = new String( bytes );
-        log.info( "READ Data: "+jsonString );
+		log.debug("Read " + found.size() + " of " + sessionIds.size() + " requested sessions");
+		return found;
+	}
 
-        ObjectMapper jsonMapper = new ObjectMapper();
-        jsonMapper.setVisibility(com.fasterxml.jackson.annotation.PropertyAccessor.FIELD, com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility.ANY);
+	/**
+	* Adds the rows of the attribute table to a session read in attribute storage mode. A session that still has
+	* attributes in its blob was written before attribute storage was enabled: its attribute hashes are not
+	* remembered, so that the next write moves all of its attributes over.
+	*/
+	private SessionData withStoredAttributes(final SessionData blobData) {
+		return withStoredAttributes(blobData, attributeTable.load(blobData.sessionId));
+	}
 
-        try {
-            return (HashMap<String,Serializable>)jsonMapper.readValue(jsonString, HashMap.class);
-        } catch(java.io.IOException ioe) {
-            throw new RuntimeException("IO Exception while converting the bytes to attributes: cannot deserialize!", ioe);
-        }
+	private SessionData withStoredAttributes(final SessionData blobData, final SessionAttributeTable.Stored stored) {
+		final Map<String,Serializable> attrs = new HashMap<String,Serializable>(blobData.attrs);
+		attrs.putAll(stored.values);
+		final SessionData data = new SessionData(
+			blobData.sessionId, attrs, blobData.createdAt, blobData.lastAccessedAt, blobData.maxInactiveInterval, blobData.version
+		);
+		final PersistedState state = persistedStates.getIfPresent(data.sessionId);
+		if(state != null && blobData.attrs.isEmpty()) {
+			persistedStates.put(data.sessionId,
+				new PersistedState(state.hash, state.lastAccessedAt, state.maxInactiveInterval, state.version, stored.hashes)
+			);
+		}
+		return data;
+	}
+
+	private Map<String,Serializable> readAttributes(byte[] bytes) {
+		if(bytes == null || bytes.length == 0) {
+			// Expected in attribute storage mode, where the attributes live in their own table
+			if(!attributeStorage) log.warn("Asked to read from a null/empty attributes stream: " + Arrays.toString(bytes));
+			return Collections.emptyMap();
+		}
+		try {
+			return serializer.deserialize(bytes);
+		} catch(java.io.IOException ioe) {
+			throw new RuntimeException("IO Exception while converting the bytes to attributes: cannot deserialize!", ioe);
+		}
 	}
 
 	/**
@@ -350,6 +1093,10 @@ public class JdbcPersister implements Persister, InitializingBean {
 	@Override
 	public void invalidate(String sessionId) {
 		log.debug("Deleting the session " + sessionId);
+		persistedStates.invalidate(sessionId);
+		if(attributeStorage) {
+			attributeTable.delete(sessionId);
+		}
 		int rows = jdbcTemplate.update("DELETE FROM " + getTableName() + " WHERE sessionId = ?", sessionId);
 		if(rows == 0) {
 			log.debug("No session with id " + sessionId + " found in the database to invalidate");
@@ -358,6 +1105,74 @@ public class JdbcPersister implements Persister, InitializingBean {
 		}
 	}
 
+	/**
+	 * Delete a number of sessions in a single JDBC batch.
+	 * @param sessionIds the session ids
+	 */
+	@Override
+	public void invalidateAll(Collection<String> sessionIds) {
+		if(sessionIds == null || sessionIds.isEmpty()) return;
+		final List<Object[]> batch = new ArrayList<Object[]>(sessionIds.size());
+		for(String sessionId : sessionIds) {
+			batch.add(new Object[] { sessionId });
+		}
+		log.debug("Deleting a batch of " + batch.size() + " sessions");
+		persistedStates.invalidateAll(sessionIds);
+		if(attributeStorage) {
+			attributeTable.deleteAll(sessionIds);
+		}
+		jdbcTemplate.batchUpdate("DELETE FROM " + getTableName() + " WHERE sessionId = ?", batch);
+	}
+
+	/**
+	* The version of the stored session: a single indexed lookup that does not read the session data.
+	*/
+	@Override
+	public long getVersion(final String sessionId) {
+		final Long version = jdbcTemplate.query(
+			"SELECT version FROM " + getTableName() + " WHERE sessionId = ?",
+			new Object[] { sessionId },
+			new ResultSetExtractor<Long>() {
+				public Long extractData(ResultSet rs) throws SQLException {
+					// A row written before versions existed has NULL, which reads as 0
+					return rs.next() ? rs.getLong(1) : -1L;
+				}
+			}
+		);
+		return version;
+	}
+
+	/**
+	* The ids of up to {@code maxRows} unexpired sessions accessed since the given time, those expiring last first.
+	* This orders by the indexed {@code expiresAt} rather than {@code lastAccessedAt}, so that the database can stop
+	* after {@code maxRows} rows instead of sorting every recent session; for sessions with the same inactive interval
+	* the order is the same. Sessions without an {@code expiresAt} yet are skipped.
+	*/
+	public List<String> getRecentSessionIds(final long since, final int maxRows) {
+		if(maxRows <= 0) return new ArrayList<String>();
+		return queryAtMost(
+			"SELECT sessionId FROM " + getTableName() +
+				" WHERE expiresAt > ? AND lastAccessedAt > ? ORDER BY expiresAt DESC",
+			new Object[] { new Timestamp(System.currentTimeMillis()), new Timestamp(since) },
+			maxRows,
+			new ResultSetExtractor<List<String>>() {
+				public List<String> extractData(ResultSet rs) throws SQLException {
+					final List<String> ids = new ArrayList<String>();
+					while(ids.size() < maxRows && rs.next()) ids.add(rs.getString(1));
+					return ids;
+				}
+			}
+		);
+	}
+
+	/**
+	* Passes every stored session id to the handler, as the first column of the result set. Used to seed the filter
+	* of a {@link NegativeLookupPersister}.
+	*/
+	public void forEachSessionId(final RowCallbackHandler handler) {
+		jdbcTemplate.query("SELECT sessionId FROM " + getTableName(), handler);
+	}
+
 	/**
 	 * Check if the session is valid.
 	 * @param sessionId the session id
@@ -368,52 +1183,133 @@ public class JdbcPersister implements Persister, InitializingBean {
 		return 1 == jdbcTemplate.queryForInt("SELECT COUNT(*) FROM " + getTableName() + " WHERE sessionId = ?", sessionId);
 	}
 
-	@Override
-	public void cleanUp() {
-		log.info("Executing database session cleanUp");
+	private static final int MAX_FETCH_SIZE = 1000;
+
+	/**
+	* Runs a query which reads at most {@code maxRows} rows. The limit is set on the statement, so that the driver
+	* does not fetch (or, like MySQL, buffer) the rows beyond it.
+	*/
+	private <T> T queryAtMost(final String sql, final Object[] args, final int maxRows, final ResultSetExtractor<T> extractor) {
+		return jdbcTemplate.query(
+			new PreparedStatementCreator() {
+				public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
+					final PreparedStatement statement = connection.prepareStatement(sql);
+					statement.setMaxRows(Math.max(1, maxRows));
+					statement.setFetchSize(Math.min(Math.max(1, maxRows), MAX_FETCH_SIZE));
+					for(int i = 0; i < args.length; i++) {
+						StatementCreatorUtils.setParameterValue(statement, i + 1, SqlTypeValue.TYPE_UNKNOWN, args[i]);
+					}
+					return statement;
+				}
+			},
+			extractor
+		);
+	}
 
-		// Date arithmetic is notoriously non-standard in SQL
-
-		final long now = System.currentTimeMillis();
-		final Object[][] toDelete =
-			Collections2.filter(
-				jdbcTemplate.query(
-					"SELECT sessionId, lastAccessedAt, maxInactiveInterval FROM " + getTableName(),
-					new RowMapper<Object[]>() {
-						public Object[] mapRow(ResultSet rs, int rowNum) throws SQLException {
-							final String sessionId = rs.getString(1);
-							final java.sql.Date lastAccessed = rs.getDate(2);
-							final int maxInactiveSeconds = rs.getInt(3);
-							if(lastAccessed.getTime() + TimeUnit.SECONDS.toMillis(maxInactiveSeconds) < now) {
-								return new Object[] { sessionId, lastAccessed };
-							} else {
-								return null;
-							}
+	/**
+	* Builds a Deflate dictionary (see {@link DeflateSessionCompressor#trainDictionary(Iterable, int)}) from the
+	* stored sessions which expire last, that is roughly the most recently used ones. Only {@code sampleCount} rows
+	* are read. Assign the result to the compressor to use it.
+	* @param sampleCount how many sessions to sample
+	* @param maxSize the largest dictionary to build, in bytes (Deflate uses at most 32768)
+	*/
+	public byte[] trainCompressionDictionary(final int sampleCount, final int maxSize) {
+		final List<byte[]> samples = queryAtMost(
+			"SELECT sessionData FROM " + getTableName() + " WHERE expiresAt IS NOT NULL ORDER BY expiresAt DESC",
+			new Object[0], sampleCount,
+			new ResultSetExtractor<List<byte[]>>() {
+				public List<byte[]> extractData(ResultSet rs) throws SQLException {
+					final List<byte[]> samples = new ArrayList<byte[]>(sampleCount);
+					while(samples.size() < sampleCount && rs.next()) {
+						final byte[] bytes = rs.getBytes(1);
+						if(bytes == null || bytes.length == 0) continue;
+						try {
+							samples.add(serializer.uncompress(bytes));
+						} catch(IOException ioe) {
+							log.warn("Skipping a session which cannot be decompressed for training", ioe);
 						}
 					}
-				),
-				Predicates.notNull()
-			).toArray(new Object[0][0]);
-
-		if(toDelete.length == 0) return;
-
-		// Now do the big update: will automatically fall back to individual queries if need be
-		jdbcTemplate.batchUpdate(
-			// Check the lastAccessedAt to make sure we don't delete something which is suddenly used
-			"DELETE FROM " + getTableName() + " WHERE sessionId = ? AND lastAccessedAt = ?",
-			new BatchPreparedStatementSetter() {
-				public void setValues(PreparedStatement ps, int i) throws SQLException {
-					final Object[] args = toDelete[i];
-					ps.setString(1, (String)args[0]);
-					ps.setDate(2, (java.sql.Date)args[1]);
+					return samples;
 				}
+			}
+		);
+		return DeflateSessionCompressor.trainDictionary(samples, maxSize);
+	}
 
-				public int getBatchSize() {
-					return toDelete.length;
+	private static final int CLEANUP_CHUNK_SIZE = 1000;
+
+	/**
+	* Deletes all the expired sessions at once. {@link SessionReaper} does the same in small steps spread over time,
+	* which is gentler on the database.
+	*/
+	@Override
+	public void cleanUp() {
+		log.info("Executing database session cleanUp");
+		backfillExpiresAt();
+		int deleted = 0;
+		Reaped chunk;
+		do {
+			chunk = reap(CLEANUP_CHUNK_SIZE);
+			deleted += chunk.deleted;
+		} while(chunk.selected == CLEANUP_CHUNK_SIZE);
+		log.info("Deleted " + deleted + " expired sessions");
+	}
+
+	/**
+	* The outcome of deleting a chunk of expired sessions. Fewer sessions may be deleted than were selected, if
+	* something else deleted or used them meanwhile.
+	*/
+	static final class Reaped {
+		public final int selected;
+		public final int deleted;
+
+		Reaped(final int selected, final int deleted) {
+			this.selected = selected;
+			this.deleted = deleted;
+		}
+	}
+
+	/**
+	* Deletes up to {@code maxRows} expired sessions. They are found through the index on {@code expiresAt}, so the
+	* cost depends on the number of expired sessions rather than on the size of the table.
+	* @return the number of sessions deleted
+	*/
+	public int reapExpired(final int maxRows) {
+		return reap(maxRows).deleted;
+	}
+
+	Reaped reap(final int maxRows) {
+		final Timestamp now = new Timestamp(System.currentTimeMillis());
+		final List<String> expired = queryAtMost(
+			"SELECT sessionId FROM " + getTableName() + " WHERE expiresAt < ?",
+			new Object[] { now }, maxRows,
+			new ResultSetExtractor<List<String>>() {
+				public List<String> extractData(ResultSet rs) throws SQLException {
+					final List<String> ids = new ArrayList<String>();
+					while(ids.size() < maxRows && rs.next()) ids.add(rs.getString(1));
+					return ids;
 				}
 			}
 		);
+		if(expired.isEmpty()) return new Reaped(0, 0);
+
+		final List<Object[]> batch = new ArrayList<Object[]>(expired.size());
+		for(String sessionId : expired) batch.add(new Object[] { sessionId, now });
+		// Check expiresAt again, so that we don't delete something which is suddenly used
+		final int[] deleted = jdbcTemplate.batchUpdate(
+			"DELETE FROM " + getTableName() + " WHERE sessionId = ? AND expiresAt < ?", batch
+		);
 
+		final List<String> deletedIds = new ArrayList<String>(expired.size());
+		for(int i = 0; i < expired.size(); i++) {
+			if(i >= deleted.length || deleted[i] != 0) deletedIds.add(expired.get(i));
+		}
+		persistedStates.invalidateAll(deletedIds);
+		if(attributeStorage) {
+			attributeTable.deleteAll(deletedIds);
+		}
+		log.debug("Deleted " + deletedIds.size() + " expired sessions");
+		return new Reaped(expired.size(), deletedIds.size());
 	}
 
 
@@ -0,0 +1,28 @@
+package grails.plugin.databasesessionflushable;
+
+import com.fasterxml.jackson.core.JsonFactory;
+
+/**
+ * Encodes the attributes as UTF-8 JSON. This is the format sessions have always been stored in, and the default.
+ *
+ * @author Robert Fischer
+ */
+public class JsonSessionCodec extends JacksonSessionCodec {
+
+	public static final byte FORMAT_ID = 1;
+
+	public JsonSessionCodec() {
+		super(new JsonFactory());
+	}
+
+	@Override
+	public byte getFormatId() {
+		return FORMAT_ID;
+	}
+
+	@Override
+	public String getName() {
+		return "json";
+	}
+
+}
@@ -0,0 +1,66 @@
+package grails.plugin.databasesessionflushable;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An exponentially weighted moving average of operation durations, cheap enough to update on every request.
+ * While no operations are recorded, the average decays towards zero, halving every half-life: otherwise a high
+ * average would last for as long as the quiet, and hold back whoever waits for it to go down.
+ *
+ * @author Robert Fischer
+ */
+class LatencyAverage {
+
+	/**
+	* The average as of the last recorded operation.
+	*/
+	private static final class Average {
+		final double millis;
+		final long atNanos;
+
+		Average(final double millis, final long atNanos) {
+			this.millis = millis;
+			this.atNanos = atNanos;
+		}
+	}
+
+	private final double weight;
+	private final long halfLifeNanos;
+	private final AtomicReference<Average> average = new AtomicReference<Average>(new Average(0.0, System.nanoTime()));
+
+	/**
+	* @param weight how much each new sample counts, between 0 (not at all) and 1 (only the latest sample counts)
+	* @param halfLifeMillis how long it takes the average to halve while nothing is recorded
+	*/
+	LatencyAverage(final double weight, final long halfLifeMillis) {
+		if(weight <= 0.0 || weight > 1.0) throw new IllegalArgumentException("Weight must be in (0, 1] (was " + weight + ")");
+		if(halfLifeMillis <= 0) throw new IllegalArgumentException("Half-life must be positive (was " + halfLifeMillis + ")");
+		this.weight = weight;
+		this.halfLifeNanos = TimeUnit.MILLISECONDS.toNanos(halfLifeMillis);
+	}
+
+	/**
+	* Records an operation which started at {@code startNanos}, as returned by {@link System#nanoTime()}.
+	*/
+	void recordSince(final long startNanos) {
+		final long now = System.nanoTime();
+		final double millis = (now - startNanos) / (double)TimeUnit.MILLISECONDS.toNanos(1);
+		while(true) {
+			final Average current = average.get();
+			final double decayed = decayed(current, now);
+			if(average.compareAndSet(current, new Average(decayed + weight * (millis - decayed), now))) return;
+		}
+	}
+
+	double getMillis() {
+		return decayed(average.get(), System.nanoTime());
+	}
+
+	private double decayed(final Average current, final long now) {
+		final long idle = now - current.atNanos;
+		if(idle <= 0) return current.millis;
+		return current.millis * Math.pow(0.5, idle / (double)halfLifeNanos);
+	}
+
+}
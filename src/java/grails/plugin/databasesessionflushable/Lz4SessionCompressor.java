@@ -0,0 +1,65 @@
+package grails.plugin.databasesessionflushable;
+
+import java.io.IOException;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+/**
+ * Compresses with LZ4, which compresses less than Deflate but is several times faster in both directions.
+ *
+ * @author Robert Fischer
+ */
+public class Lz4SessionCompressor implements SessionCompressor {
+
+	public static final byte FORMAT_ID = 2;
+
+	private final LZ4Compressor compressor;
+	private final LZ4FastDecompressor decompressor;
+
+	public Lz4SessionCompressor() {
+		final LZ4Factory factory = LZ4Factory.fastestInstance();
+		compressor = factory.fastCompressor();
+		decompressor = factory.fastDecompressor();
+	}
+
+	@Override
+	public byte getFormatId() {
+		return FORMAT_ID;
+	}
+
+	@Override
+	public String getName() {
+		return "lz4";
+	}
+
+	@Override
+	public byte[] compress(byte[] bytes, int offset, int length) {
+		final byte[] out = new byte[compressor.maxCompressedLength(length)];
+		final int size = compressor.compress(bytes, offset, length, out, 0, out.length);
+		final byte[] result = new byte[size];
+		System.arraycopy(out, 0, result, 0, size);
+		return result;
+	}
+
+	@Override
+	public byte[] decompress(byte[] bytes, int offset, int length, int originalLength) throws IOException {
+		final byte[] out = new byte[originalLength];
+		try {
+			final int read = decompressor.decompress(bytes, offset, out, 0, originalLength);
+			if(read != length) {
+				throw new IOException("Compressed session has " + length + " bytes, but only " + read + " were used");
+			}
+		} catch(LZ4Exception e) {
+			throw new IOException("Corrupt compressed session: " + e.getMessage(), e);
+		}
+		return out;
+	}
+
+	public String toString() {
+		return getName();
+	}
+
+}
@@ -0,0 +1,540 @@
+package grails.plugin.databasesessionflushable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Persists sessions into an append-only log of memory-mapped files on the local disk, so that sessions survive a
+ * restart without a database. This only makes sense on a single node, or behind sticky sessions.
+ * <p>
+ * Every write appends a checksummed record, and an invalidation appends a tombstone. The index of where each
+ * session's latest record lives is kept in memory and rebuilt from the log on startup, stopping at the first torn
+ * record. {@link #cleanUp()}, which also runs in the background, drops expired sessions and compacts the files
+ * which are mostly dead records by copying their live records forward.
+ *
+ * @author Robert Fischer
+ */
+public class MappedFilePersister extends AbstractPersister implements InitializingBean, DisposableBean {
+
+	private final Logger log = Logger.getLogger(getClass());
+
+	private static final int MAGIC = 0x5E55D47A;
+	private static final byte DATA = 1;
+	private static final byte TOMBSTONE = 2;
+	/** Magic, type, payload length and CRC */
+	private static final int HEADER = 4 + 1 + 4 + 4;
+	private static final String PREFIX = "sessions-";
+	private static final String SUFFIX = ".log";
+
+	/**
+	* One file of the log.
+	*/
+	private static final class Segment {
+		public final long sequence;
+		public final File file;
+		public final RandomAccessFile raf;
+		public final MappedByteBuffer buffer;
+		public final AtomicLong liveBytes = new AtomicLong();
+		public volatile int end;
+
+		public Segment(final long sequence, final File file, final RandomAccessFile raf, final MappedByteBuffer buffer) {
+			this.sequence = sequence;
+			this.file = file;
+			this.raf = raf;
+			this.buffer = buffer;
+		}
+	}
+
+	/**
+	* Where a session's latest record is.
+	*/
+	private static final class Location {
+		public final Segment segment;
+		public final int offset;
+		public final int length;
+
+		public Location(final Segment segment, final int offset, final int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	* A record read back from a segment.
+	*/
+	private static final class Record {
+		public final byte type;
+		public final int offset;
+		public final byte[] payload;
+
+		public Record(final byte type, final int offset, final byte[] payload) {
+			this.type = type;
+			this.offset = offset;
+			this.payload = payload;
+		}
+
+		public int size() {
+			return HEADER + payload.length;
+		}
+	}
+
+	private final ConcurrentMap<String,Location> index = new ConcurrentHashMap<String,Location>();
+	private final ConcurrentSkipListMap<Long,Segment> segments = new ConcurrentSkipListMap<Long,Segment>();
+	private final Object appendLock = new Object();
+	private final Object compactLock = new Object();
+	// Held for reading while copying out of a segment, and for writing while deleting one
+	private final ReadWriteLock segmentLock = new ReentrantReadWriteLock();
+
+	private volatile Segment current;
+	private volatile Thread compactor;
+	private volatile boolean running = false;
+
+	private volatile SessionSerializer serializer = new SessionSerializer();
+	public void setSerializer(SessionSerializer serializer) {
+		this.serializer = serializer;
+	}
+	public SessionSerializer getSerializer() {
+		return serializer;
+	}
+
+	private volatile File directory = new File(System.getProperty("java.io.tmpdir"), "grails-sessions");
+	/**
+	* Where the log files are kept. Only one persister may use a directory at a time.
+	*/
+	public void setDirectory(File directory) {
+		this.directory = directory;
+	}
+	public File getDirectory() {
+		return directory;
+	}
+
+	private volatile int segmentBytes = 64 * 1024 * 1024;
+	/**
+	* The size of each log file (default 64MB), which is also the largest session that can be stored.
+	*/
+	public void setSegmentBytes(int segmentBytes) {
+		this.segmentBytes = segmentBytes;
+	}
+	public int getSegmentBytes() {
+		return segmentBytes;
+	}
+
+	private volatile double compactionThreshold = 0.5;
+	/**
+	* Files whose share of live records falls below this are compacted by {@link #cleanUp()}.
+	*/
+	public void setCompactionThreshold(double compactionThreshold) {
+		this.compactionThreshold = compactionThreshold;
+	}
+	public double getCompactionThreshold() {
+		return compactionThreshold;
+	}
+
+	private volatile long compactionIntervalMillis = 10 * 60 * 1000;
+	/**
+	* How often {@link #cleanUp()} runs in the background. Zero or less leaves it to the caller.
+	*/
+	public void setCompactionIntervalMillis(long compactionIntervalMillis) {
+		this.compactionIntervalMillis = compactionIntervalMillis;
+	}
+	public long getCompactionIntervalMillis() {
+		return compactionIntervalMillis;
+	}
+
+	private volatile boolean syncWrites = false;
+	/**
+	* Whether each write is forced to disk before returning. Without it, writes survive a crash of the JVM but not
+	* of the machine.
+	*/
+	public void setSyncWrites(boolean syncWrites) {
+		this.syncWrites = syncWrites;
+	}
+	public boolean isSyncWrites() {
+		return syncWrites;
+	}
+
+	@Override
+	public void afterPropertiesSet() throws IOException {
+		if(serializer == null) {
+			throw new IllegalStateException("serializer property must be assigned (cannot be null)");
+		}
+		if(segmentBytes < 1024) {
+			throw new IllegalStateException("segmentBytes must be at least 1024 (was " + segmentBytes + ")");
+		}
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IllegalStateException("Cannot create the session directory " + directory);
+		}
+		recover();
+		running = true;
+		if(compactionIntervalMillis > 0) {
+			compactor = new Thread(new Runnable() {
+				public void run() {
+					compactLoop();
+				}
+			}, "MappedFilePersister");
+			compactor.setDaemon(true);
+			compactor.start();
+		}
+	}
+
+	/**
+	* Stops the background compaction and flushes the files to disk.
+	*/
+	@Override
+	public void destroy() throws InterruptedException, IOException {
+		running = false;
+		final Thread thread = compactor;
+		if(thread != null) {
+			thread.interrupt();
+			thread.join(10000);
+		}
+		synchronized(appendLock) {
+			for(Segment segment : segments.values()) {
+				segment.buffer.force();
+				segment.raf.close();
+			}
+		}
+	}
+
+	private void compactLoop() {
+		while(running) {
+			try {
+				Thread.sleep(compactionIntervalMillis);
+				cleanUp();
+			} catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch(RuntimeException e) {
+				log.error("Unhandled error while compacting the session files", e);
+			}
+		}
+	}
+
+	/**
+	* Rebuilds the index from the files, oldest first, so that later records win.
+	*/
+	private void recover() throws IOException {
+		final File[] files = directory.listFiles();
+		final List<Long> sequences = new ArrayList<Long>();
+		if(files != null) {
+			for(File file : files) {
+				final String name = file.getName();
+				if(name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+					try {
+						sequences.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+					} catch(NumberFormatException nfe) {
+						log.warn("Ignoring unexpected file in the session directory: " + file);
+					}
+				}
+			}
+		}
+		final Long[] sorted = sequences.toArray(new Long[0]);
+		Arrays.sort(sorted);
+
+		final long now = System.currentTimeMillis();
+		int records = 0;
+		for(Long sequence : sorted) {
+			final Segment segment = openSegment(sequence);
+			int offset = 0;
+			Record record;
+			while((record = readRecord(segment, offset)) != null) {
+				records++;
+				final Location location = new Location(segment, offset, record.size());
+				if(record.type == DATA) {
+					final SessionData data = decode(record.payload);
+					if(data == null || SessionRecords.isExpired(data, now)) {
+						if(data != null) forget(data.sessionId);
+					} else {
+						point(data.sessionId, location);
+					}
+				} else {
+					forget(new String(record.payload, "UTF-8"));
+				}
+				offset += record.size();
+			}
+			segment.end = offset;
+			segments.put(sequence, segment);
+		}
+		current = segments.isEmpty() ? openSegment(0) : segments.lastEntry().getValue();
+		segments.put(current.sequence, current);
+		log.info("Recovered " + index.size() + " sessions from " + records + " records in " + segments.size() + " files in " + directory);
+	}
+
+	private Segment openSegment(final long sequence) throws IOException {
+		final File file = new File(directory, PREFIX + String.format("%016d", sequence) + SUFFIX);
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		if(raf.length() < segmentBytes) raf.setLength(segmentBytes);
+		final MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+		return new Segment(sequence, file, raf, buffer);
+	}
+
+	/**
+	* Reads the record at the offset, or returns {@code null} if there is none: the end of the written part of the
+	* file, or a record torn by a crash.
+	*/
+	private Record readRecord(final Segment segment, final int offset) {
+		final MappedByteBuffer view = (MappedByteBuffer)segment.buffer.duplicate();
+		if(offset + HEADER > view.capacity()) return null;
+		view.position(offset);
+		if(view.getInt() != MAGIC) return null;
+		final byte type = view.get();
+		final int length = view.getInt();
+		final int crc = view.getInt();
+		if((type != DATA && type != TOMBSTONE) || length < 0 || offset + HEADER + length > view.capacity()) return null;
+		final byte[] payload = new byte[length];
+		view.get(payload);
+		if(crc(type, payload) != crc) {
+			log.warn("Checksum mismatch at offset " + offset + " of " + segment.file + "; ignoring the rest of the file");
+			return null;
+		}
+		return new Record(type, offset, payload);
+	}
+
+	private static int crc(final byte type, final byte[] payload) {
+		final CRC32 crc = new CRC32();
+		crc.update(type);
+		crc.update(payload);
+		return (int)crc.getValue();
+	}
+
+	/**
+	* Appends a record, moving to a new file if it does not fit, and returns where it was written.
+	*/
+	private Location append(final byte type, final byte[] payload) throws IOException {
+		final int size = HEADER + payload.length;
+		if(size > segmentBytes) {
+			throw new IOException("A session record of " + size + " bytes does not fit in a file of " + segmentBytes + " bytes");
+		}
+		synchronized(appendLock) {
+			Segment segment = current;
+			if(segment.end + size > segmentBytes) {
+				segment.buffer.force();
+				segment = openSegment(segment.sequence + 1);
+				segments.put(segment.sequence, segment);
+				current = segment;
+			}
+			final MappedByteBuffer view = (MappedByteBuffer)segment.buffer.duplicate();
+			view.position(segment.end);
+			view.putInt(MAGIC);
+			view.put(type);
+			view.putInt(payload.length);
+			view.putInt(crc(type, payload));
+			view.put(payload);
+			if(syncWrites) segment.buffer.force();
+			final Location location = new Location(segment, segment.end, size);
+			segment.end += size;
+			return location;
+		}
+	}
+
+	private void point(final String sessionId, final Location location) {
+		location.segment.liveBytes.addAndGet(location.length);
+		final Location previous = index.put(sessionId, location);
+		if(previous != null) previous.segment.liveBytes.addAndGet(-previous.length);
+	}
+
+	private void forget(final String sessionId) {
+		final Location previous = index.remove(sessionId);
+		if(previous != null) previous.segment.liveBytes.addAndGet(-previous.length);
+	}
+
+	private boolean forget(final String sessionId, final Location location) {
+		if(!index.remove(sessionId, location)) return false;
+		location.segment.liveBytes.addAndGet(-location.length);
+		return true;
+	}
+
+	private SessionData decode(final byte[] payload) {
+		try {
+			return SessionRecords.decode(serializer, new ByteArrayInputStream(payload));
+		} catch(IOException ioe) {
+			log.warn("Skipping an unreadable session record", ioe);
+			return null;
+		}
+	}
+
+	/**
+	* Persists a session to the log. The sessionData may be {@code null}.
+	*/
+	@Override
+	public void persistSession(final SessionData sessionData) {
+		if(sessionData == null) return;
+		try {
+			final byte[] payload = SessionRecords.encode(serializer, sessionData);
+			// Under the append lock, so that concurrent writes of a session land in the index in the order written
+			synchronized(appendLock) {
+				point(sessionData.sessionId, append(DATA, payload));
+			}
+		} catch(IOException ioe) {
+			throw new RuntimeException("IO Exception while writing session " + sessionData.sessionId + " to " + directory, ioe);
+		}
+	}
+
+	/**
+	* Retrieves the session data for the given session. May be {@code null}.
+	*/
+	@Override
+	public SessionData getSessionData(final String sessionId) {
+		final Location location = index.get(sessionId);
+		return location == null ? null : load(sessionId, location);
+	}
+
+	private SessionData load(final String sessionId, final Location location) {
+		final Record record;
+		segmentLock.readLock().lock();
+		try {
+			if(!segments.containsKey(location.segment.sequence)) {
+				// Compacted in the meantime: the record has moved
+				final Location moved = index.get(sessionId);
+				return moved == null || moved == location ? null : load(sessionId, moved);
+			}
+			record = readRecord(location.segment, location.offset);
+		} finally {
+			segmentLock.readLock().unlock();
+		}
+		final SessionData data = record == null || record.type != DATA ? null : decode(record.payload);
+		if(data == null || SessionRecords.isExpired(data, System.currentTimeMillis())) {
+			forget(sessionId, location);
+			return null;
+		}
+		return data;
+	}
+
+	/**
+	* Appends a tombstone, so that the session stays deleted after a restart.
+	*/
+	@Override
+	public void invalidate(final String sessionId) {
+		log.debug("Invalidating session " + sessionId);
+		try {
+			synchronized(appendLock) {
+				forget(sessionId);
+				append(TOMBSTONE, sessionId.getBytes("UTF-8"));
+			}
+		} catch(IOException ioe) {
+			throw new RuntimeException("IO Exception while invalidating session " + sessionId + " in " + directory, ioe);
+		}
+	}
+
+	@Override
+	public boolean isValid(final String sessionId) {
+		return getSessionData(sessionId) != null;
+	}
+
+	/**
+	* Drops expired sessions from the index, then compacts the files which have become mostly dead records.
+	*/
+	@Override
+	public void cleanUp() {
+		for(Map.Entry<String,Location> entry : index.entrySet()) {
+			load(entry.getKey(), entry.getValue());
+		}
+		synchronized(compactLock) {
+			for(Segment segment : new ArrayList<Segment>(segments.values())) {
+				if(segment == current) continue;
+				if(segment.liveBytes.get() < compactionThreshold * segment.end) {
+					try {
+						compact(segment);
+					} catch(IOException ioe) {
+						log.error("Could not compact " + segment.file, ioe);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	* Copies the live records of a segment to the end of the log, then deletes it. Tombstones are copied too as
+	* long as an older file might still hold a record they cancel.
+	*/
+	private void compact(final Segment segment) throws IOException {
+		final boolean olderExists = segments.lowerKey(segment.sequence) != null;
+		int moved = 0;
+		int offset = 0;
+		Record record;
+		while(offset < segment.end && (record = readRecord(segment, offset)) != null) {
+			if(record.type == DATA) {
+				final Location location = new Location(segment, offset, record.size());
+				final SessionData data = decode(record.payload);
+				if(data != null) {
+					synchronized(appendLock) {
+						final Location live = index.get(data.sessionId);
+						if(live != null && live.segment == segment && live.offset == offset) {
+							point(data.sessionId, append(DATA, record.payload));
+							moved++;
+						}
+					}
+				}
+			} else if(olderExists) {
+				final String sessionId = new String(record.payload, "UTF-8");
+				synchronized(appendLock) {
+					if(!index.containsKey(sessionId)) append(TOMBSTONE, record.payload);
+				}
+			}
+			offset += record.size();
+		}
+		current.buffer.force();
+
+		segmentLock.writeLock().lock();
+		try {
+			segments.remove(segment.sequence);
+			segment.raf.close();
+			if(!segment.file.delete()) log.warn("Could not delete compacted session file " + segment.file);
+		} finally {
+			segmentLock.writeLock().unlock();
+		}
+		log.debug("Compacted " + segment.file.getName() + ", moving " + moved + " live sessions");
+	}
+
+	/**
+	* The ids of the stored sessions, including any which expired since the last {@link #cleanUp()}. Used to seed the
+	* filter of a {@link NegativeLookupPersister}.
+	*/
+	public Set<String> getSessionIds() {
+		return Collections.unmodifiableSet(index.keySet());
+	}
+
+	/**
+	* The number of stored sessions.
+	*/
+	public int getSize() {
+		return index.size();
+	}
+
+	/**
+	* The number of log files.
+	*/
+	public int getFileCount() {
+		return segments.size();
+	}
+
+	public String toString() {
+		return "MappedFilePersister[" + directory + "]";
+	}
+
+}
@@ -0,0 +1,35 @@
+package grails.plugin.databasesessionflushable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Uses the SQL:2003 {@code MERGE} statement with a {@code VALUES} row as its source, as understood by HSQLDB,
+ * DB2, newer H2 releases and most other databases that implement the standard.
+ *
+ * @author Robert Fischer
+ */
+public class MergeSessionDialect extends SessionDialect {
+
+	@Override
+	public String upsertSql(String tableName, List<String> keyColumns, Map<String,String> values, Collection<String> insertOnly) {
+		final List<String> matches = new ArrayList<String>(keyColumns.size());
+		for(String column : keyColumns) {
+			matches.add(tableName + "." + column + " = src." + column);
+		}
+		final List<String> updates = new ArrayList<String>(values.size());
+		final List<String> sources = new ArrayList<String>(values.size());
+		for(String column : values.keySet()) {
+			sources.add("src." + column);
+			if(keyColumns.contains(column) || insertOnly.contains(column)) continue;
+			updates.add(column + " = src." + column);
+		}
+		return "MERGE INTO " + tableName + " USING (VALUES (" + join(values.values()) + ")) AS src (" + join(values.keySet()) + ") " +
+			"ON (" + join(matches, " AND ") + ") " +
+			"WHEN MATCHED THEN UPDATE SET " + join(updates) + " " +
+			"WHEN NOT MATCHED THEN INSERT (" + join(values.keySet()) + ") VALUES (" + join(sources) + ")";
+	}
+
+}
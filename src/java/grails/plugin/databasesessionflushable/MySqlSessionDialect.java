@@ -0,0 +1,26 @@
+package grails.plugin.databasesessionflushable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Uses MySQL's (and MariaDB's) {@code INSERT ... ON DUPLICATE KEY UPDATE}.
+ *
+ * @author Robert Fischer
+ */
+public class MySqlSessionDialect extends SessionDialect {
+
+	@Override
+	public String upsertSql(String tableName, List<String> keyColumns, Map<String,String> values, Collection<String> insertOnly) {
+		final List<String> updates = new ArrayList<String>(values.size());
+		for(String column : values.keySet()) {
+			if(keyColumns.contains(column) || insertOnly.contains(column)) continue;
+			updates.add(column + " = VALUES(" + column + ")");
+		}
+		return "INSERT INTO " + tableName + " (" + join(values.keySet()) + ") VALUES (" + join(values.values()) + ") " +
+			"ON DUPLICATE KEY UPDATE " + join(updates);
+	}
+
+}
@@ -0,0 +1,394 @@
+package grails.plugin.databasesessionflushable;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import org.apache.log4j.Logger;
+
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+/**
+ * A {@link Persister} in front of another which answers lookups of session ids that do not exist without asking it.
+ * Bots, stale cookies and expired links send plenty of those, and each one would otherwise be a database query.
+ * <p>
+ * Ids found missing are remembered for a short while. Optionally, a Bloom filter of every id that was persisted
+ * rules out the ids which were never seen at all. The filter only knows about the sessions written through this
+ * node and those loaded from the {@link #setSeedPersisters(List) seed persisters} at startup, so it is only for a
+ * single node, or for sticky sessions where losing a session when its node goes away is acceptable. The seed
+ * persisters must be {@link JdbcPersister}s or {@link MappedFilePersister}s, which can list their session ids.
+ *
+ * @author Robert Fischer
+ */
+public class NegativeLookupPersister extends AbstractPersister implements InitializingBean {
+
+	private final Logger log = Logger.getLogger(getClass());
+
+	private volatile Persister persister;
+	/**
+	* The persister which is asked about the ids not known to be missing.
+	*/
+	public void setPersister(Persister persister) {
+		this.persister = persister;
+	}
+	public Persister getPersister() {
+		return persister;
+	}
+
+	private volatile long negativeTtlMillis = 5000;
+	/**
+	* How long an id found missing is remembered as missing. Keep it short: another node may create the session.
+	*/
+	public void setNegativeTtlMillis(long negativeTtlMillis) {
+		this.negativeTtlMillis = negativeTtlMillis;
+	}
+	public long getNegativeTtlMillis() {
+		return negativeTtlMillis;
+	}
+
+	private volatile int maximumSize = 100000;
+	/**
+	* How many missing ids are remembered.
+	*/
+	public void setMaximumSize(int maximumSize) {
+		this.maximumSize = maximumSize;
+	}
+	public int getMaximumSize() {
+		return maximumSize;
+	}
+
+	private volatile boolean filterEnabled = false;
+	/**
+	* Whether ids never persisted are ruled out by a Bloom filter (see the class documentation for the caveats).
+	*/
+	public void setFilterEnabled(boolean filterEnabled) {
+		this.filterEnabled = filterEnabled;
+	}
+	public boolean isFilterEnabled() {
+		return filterEnabled;
+	}
+
+	private volatile int expectedSessions = 1000000;
+	/**
+	* The number of ids the filter is sized for. Once more ids than this have been added, the filter is rebuilt from
+	* the seed persisters in the background.
+	*/
+	public void setExpectedSessions(int expectedSessions) {
+		this.expectedSessions = expectedSessions;
+	}
+	public int getExpectedSessions() {
+		return expectedSessions;
+	}
+
+	private volatile double falsePositiveRate = 0.01;
+	/**
+	* The share of missing ids the filter lets through when it holds {@link #setExpectedSessions(int)} ids.
+	*/
+	public void setFalsePositiveRate(double falsePositiveRate) {
+		this.falsePositiveRate = falsePositiveRate;
+	}
+	public double getFalsePositiveRate() {
+		return falsePositiveRate;
+	}
+
+	private volatile List<Persister> seedPersisters = Collections.emptyList();
+	/**
+	* The persisters whose stored sessions are added to the filter when it is built. The filter needs at least one.
+	*/
+	public void setSeedPersisters(List<Persister> seedPersisters) {
+		if(seedPersisters == null) throw new IllegalArgumentException("Cannot assign a null seedPersisters property");
+		this.seedPersisters = seedPersisters;
+	}
+	public List<Persister> getSeedPersisters() {
+		return seedPersisters;
+	}
+
+	private volatile Cache<String,Boolean> missing = null;
+
+	// Tells a lookup whether a write raced with it
+	private final SessionChangeTracker writes = new SessionChangeTracker();
+
+	// The Bloom filter is not thread-safe: additions take the write lock, lookups the read lock
+	private final ReadWriteLock filterLock = new ReentrantReadWriteLock();
+	private BloomFilter<CharSequence> filter = null;
+	private long filterSize = 0;
+	// While a new filter is being built, ids persisted meanwhile are added to it too
+	private BloomFilter<CharSequence> building = null;
+	private long buildingSize = 0;
+
+	private final AtomicLong negativeHitCount = new AtomicLong();
+	private final AtomicLong filterRejectionCount = new AtomicLong();
+
+	/**
+	* The number of lookups answered by the cache of missing ids.
+	*/
+	public long getNegativeHitCount() {
+		return negativeHitCount.get();
+	}
+
+	/**
+	* The number of lookups answered by the Bloom filter.
+	*/
+	public long getFilterRejectionCount() {
+		return filterRejectionCount.get();
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		if(persister == null) {
+			throw new IllegalStateException("persister property must be assigned (cannot be null)");
+		}
+		if(filterEnabled && (falsePositiveRate <= 0 || falsePositiveRate >= 1)) {
+			throw new IllegalStateException("falsePositiveRate must be between 0 and 1 (was " + falsePositiveRate + ")");
+		}
+		if(filterEnabled && seedPersisters.isEmpty()) {
+			// Every session stored before startup would be ruled out
+			throw new IllegalStateException("seedPersisters must be assigned when the filter is enabled");
+		}
+		for(Persister seed : seedPersisters) {
+			if(!(seed instanceof JdbcPersister) && !(seed instanceof MappedFilePersister)) {
+				throw new IllegalStateException("Cannot list the session ids of seed persister " + seed);
+			}
+		}
+		missing = CacheBuilder.newBuilder()
+			.maximumSize(Math.max(0, maximumSize))
+			.expireAfterWrite(negativeTtlMillis, TimeUnit.MILLISECONDS)
+			.build();
+		if(filterEnabled) buildFilter();
+	}
+
+	/**
+	* Builds a new filter from the ids stored by the seed persisters. Until it is complete, lookups go straight to
+	* the persister.
+	*/
+	private void buildFilter() {
+		final BloomFilter<CharSequence> built = BloomFilter.create(Funnels.stringFunnel(), Math.max(1, expectedSessions), falsePositiveRate);
+		filterLock.writeLock().lock();
+		try {
+			if(building != null) return; // Already being built
+			filter = null;
+			building = built;
+			buildingSize = 0;
+		} finally {
+			filterLock.writeLock().unlock();
+		}
+
+		try {
+			for(Persister seed : seedPersisters) {
+				if(seed instanceof MappedFilePersister) {
+					for(String sessionId : ((MappedFilePersister)seed).getSessionIds()) add(built, sessionId);
+				} else {
+					((JdbcPersister)seed).forEachSessionId(new RowCallbackHandler() {
+						public void processRow(ResultSet rs) throws SQLException {
+							add(built, rs.getString(1));
+						}
+					});
+				}
+			}
+		} finally {
+			filterLock.writeLock().lock();
+			try {
+				building = null;
+				filter = buildingSize > expectedSessions ? null : built;
+				filterSize = buildingSize;
+			} finally {
+				filterLock.writeLock().unlock();
+			}
+		}
+		log.info("Built the session id filter from " + filterSize + " stored sessions");
+	}
+
+	private void add(final BloomFilter<CharSequence> target, final String sessionId) {
+		filterLock.writeLock().lock();
+		try {
+			target.put(sessionId);
+			buildingSize++;
+		} finally {
+			filterLock.writeLock().unlock();
+		}
+	}
+
+	private void rebuildFilterInBackground() {
+		final Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					buildFilter();
+				} catch(RuntimeException e) {
+					log.error("Could not rebuild the session id filter", e);
+				}
+			}
+		}, "NegativeLookupPersister");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	* Whether the id is certainly not a stored session.
+	*/
+	private boolean isKnownMissing(final String sessionId) {
+		if(sessionId == null) return true;
+		if(missing.getIfPresent(sessionId) != null) {
+			negativeHitCount.incrementAndGet();
+			return true;
+		}
+		filterLock.readLock().lock();
+		try {
+			if(filter != null && !filter.mightContain(sessionId)) {
+				filterRejectionCount.incrementAndGet();
+				return true;
+			}
+		} finally {
+			filterLock.readLock().unlock();
+		}
+		return false;
+	}
+
+	/**
+	* Remembers the id as missing, unless it was written since the lookup which found it missing started. The count
+	* is checked after the put, so that a write either shows up in it or clears the entry itself afterwards.
+	*/
+	private void recordMiss(final String sessionId, final long writesBefore) {
+		missing.put(sessionId, Boolean.TRUE);
+		if(writes.changedSince(sessionId, writesBefore)) missing.invalidate(sessionId);
+	}
+
+	private void addToFilter(final String sessionId) {
+		if(!filterEnabled) return;
+		boolean full = false;
+		filterLock.writeLock().lock();
+		try {
+			if(building != null) {
+				building.put(sessionId);
+				buildingSize++;
+			}
+			if(filter != null) {
+				filter.put(sessionId);
+				if(++filterSize > expectedSessions) {
+					log.warn("The session id filter is full: rebuilding it from the stored sessions");
+					filter = null;
+					full = true;
+				}
+			}
+		} finally {
+			filterLock.writeLock().unlock();
+		}
+		if(full) rebuildFilterInBackground();
+	}
+
+	/**
+	* Persists the session, and forgets that its id was missing. The sessionData may be {@code null}.
+	*/
+	@Override
+	public void persistSession(final SessionData sessionData) {
+		if(sessionData != null) {
+			addToFilter(sessionData.sessionId);
+			writes.changed(sessionData.sessionId);
+		}
+		persister.persistSession(sessionData);
+		if(sessionData != null) missing.invalidate(sessionData.sessionId);
+	}
+
+	/**
+	* Retrieves the session data, unless the id is known to be missing. May be {@code null}.
+	*/
+	@Override
+	public SessionData getSessionData(final String sessionId) {
+		if(isKnownMissing(sessionId)) {
+			log.debug("Session " + sessionId + " is known to be missing");
+			return null;
+		}
+		final long writesBefore = writes.count(sessionId);
+		final SessionData data = persister.getSessionData(sessionId);
+		if(data == null) recordMiss(sessionId, writesBefore);
+		return data;
+	}
+
+	@Override
+	public void invalidate(final String sessionId) {
+		persister.invalidate(sessionId);
+		missing.put(sessionId, Boolean.TRUE);
+	}
+
+	@Override
+	public Map<String,SessionData> getSessionsData(final Collection<String> sessionIds) {
+		final List<String> unknown = new ArrayList<String>();
+		final List<Long> writesBefore = new ArrayList<Long>();
+		if(sessionIds != null) {
+			for(String sessionId : sessionIds) {
+				if(!isKnownMissing(sessionId)) {
+					unknown.add(sessionId);
+					writesBefore.add(writes.count(sessionId));
+				}
+			}
+		}
+		final Map<String,SessionData> found = persister.getSessionsData(unknown);
+		for(int i = 0; i < unknown.size(); i++) {
+			if(!found.containsKey(unknown.get(i))) recordMiss(unknown.get(i), writesBefore.get(i));
+		}
+		return found;
+	}
+
+	@Override
+	public void persistSessions(final Collection<SessionData> sessions) {
+		if(sessions == null) return;
+		for(SessionData session : sessions) {
+			if(session != null) {
+				addToFilter(session.sessionId);
+				writes.changed(session.sessionId);
+			}
+		}
+		try {
+			persister.persistSessions(sessions);
+		} finally {
+			// Some may have been stored even if others failed
+			for(SessionData session : sessions) {
+				if(session != null) missing.invalidate(session.sessionId);
+			}
+		}
+	}
+
+	@Override
+	public void invalidateAll(final Collection<String> sessionIds) {
+		if(sessionIds == null) return;
+		persister.invalidateAll(sessionIds);
+		for(String sessionId : sessionIds) missing.put(sessionId, Boolean.TRUE);
+	}
+
+	@Override
+	public boolean isValid(final String sessionId) {
+		if(isKnownMissing(sessionId)) return false;
+		final long writesBefore = writes.count(sessionId);
+		final boolean valid = persister.isValid(sessionId);
+		if(!valid) recordMiss(sessionId, writesBefore);
+		return valid;
+	}
+
+	/**
+	* Cleans up the underlying persister, then rebuilds the filter so that it forgets the sessions gone since.
+	*/
+	@Override
+	public void cleanUp() {
+		persister.cleanUp();
+		if(filterEnabled) buildFilter();
+	}
+
+	public String toString() {
+		return "NegativeLookupPersister[" + persister + "]";
+	}
+
+}
@@ -0,0 +1,296 @@
+package grails.plugin.databasesessionflushable;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Caches encoded sessions outside of the Java heap, in direct {@link ByteBuffer} slabs, so that many sessions can
+ * be cached without weighing on the garbage collector. Only a small index entry per session lives on the heap.
+ * <p>
+ * Sessions are appended to the current slab. When it is full, writing moves on to the next slab of the ring, and
+ * every session still in that slab is evicted. Sessions written often are thus written again before their slab
+ * comes round, while idle ones fall out.
+ *
+ * @author Robert Fischer
+ */
+public class OffHeapPersister extends AbstractPersister implements InitializingBean {
+
+	private final Logger log = Logger.getLogger(getClass());
+
+	/**
+	* Where a session is stored. The generation tells whether the slab has been reused since.
+	*/
+	private static final class Location {
+		public final int slab;
+		public final long generation;
+		public final int offset;
+		public final int length;
+
+		public Location(final int slab, final long generation, final int offset, final int length) {
+			this.slab = slab;
+			this.generation = generation;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private final ConcurrentMap<String,Location> index = new ConcurrentHashMap<String,Location>();
+	private final Object appendLock = new Object();
+
+	private ByteBuffer[] slabs;
+	private long[] generations;
+	private ReadWriteLock[] slabLocks;
+	private List<List<String>> slabKeys;
+	private int currentSlab;
+	private int writeOffset;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	private volatile SessionSerializer serializer = new SessionSerializer();
+	public void setSerializer(SessionSerializer serializer) {
+		this.serializer = serializer;
+	}
+	public SessionSerializer getSerializer() {
+		return serializer;
+	}
+
+	private volatile long maximumBytes = 256L * 1024 * 1024;
+	/**
+	* The off-heap memory used for sessions, in bytes (default 256MB). Slabs are allocated as they are first needed.
+	*/
+	public void setMaximumBytes(long maximumBytes) {
+		this.maximumBytes = maximumBytes;
+	}
+	public long getMaximumBytes() {
+		return maximumBytes;
+	}
+
+	private volatile int slabBytes = 16 * 1024 * 1024;
+	/**
+	* The size of each slab (default 16MB). This is also the largest session that can be cached, and the amount of
+	* sessions evicted at once.
+	*/
+	public void setSlabBytes(int slabBytes) {
+		this.slabBytes = slabBytes;
+	}
+	public int getSlabBytes() {
+		return slabBytes;
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		if(serializer == null) {
+			throw new IllegalStateException("serializer property must be assigned (cannot be null)");
+		}
+		if(slabBytes < 1024) {
+			throw new IllegalStateException("slabBytes must be at least 1024 (was " + slabBytes + ")");
+		}
+		final long slabCount = maximumBytes / slabBytes;
+		if(slabCount < 2 || slabCount > Integer.MAX_VALUE) {
+			throw new IllegalStateException("maximumBytes must hold at least two slabs of " + slabBytes + " bytes (was " + maximumBytes + ")");
+		}
+		synchronized(appendLock) {
+			slabs = new ByteBuffer[(int)slabCount];
+			generations = new long[slabs.length];
+			slabLocks = new ReadWriteLock[slabs.length];
+			slabKeys = new ArrayList<List<String>>(slabs.length);
+			for(int i = 0; i < slabs.length; i++) {
+				slabLocks[i] = new ReentrantReadWriteLock();
+				slabKeys.add(new ArrayList<String>());
+			}
+			slabs[0] = ByteBuffer.allocateDirect(slabBytes);
+			currentSlab = 0;
+			writeOffset = 0;
+		}
+		log.info("Caching sessions off-heap in up to " + slabs.length + " slabs of " + slabBytes + " bytes");
+	}
+
+	/**
+	* Copies the bytes into the current slab, moving to the next one if they do not fit, and points the index at them.
+	*/
+	private void append(final String sessionId, final byte[] bytes) {
+		synchronized(appendLock) {
+			if(writeOffset + bytes.length > slabBytes) {
+				currentSlab = (currentSlab + 1) % slabs.length;
+				writeOffset = 0;
+				recycle(currentSlab);
+			}
+			final ByteBuffer target = slabs[currentSlab].duplicate();
+			target.position(writeOffset);
+			target.put(bytes);
+			final Location location = new Location(currentSlab, generations[currentSlab], writeOffset, bytes.length);
+			writeOffset += bytes.length;
+			slabKeys.get(currentSlab).add(sessionId);
+			// Inside the lock, so that concurrent writes of a session land in the index in the order they were written
+			index.put(sessionId, location);
+		}
+	}
+
+	/**
+	* Evicts everything in a slab so that it can be written over. Called with the append lock held.
+	*/
+	private void recycle(final int slab) {
+		slabLocks[slab].writeLock().lock();
+		try {
+			if(slabs[slab] == null) {
+				slabs[slab] = ByteBuffer.allocateDirect(slabBytes);
+			}
+			final long generation = generations[slab];
+			int evicted = 0;
+			for(String sessionId : slabKeys.get(slab)) {
+				final Location location = index.get(sessionId);
+				if(location != null && location.slab == slab && location.generation == generation && index.remove(sessionId, location)) {
+					evicted++;
+				}
+			}
+			slabKeys.get(slab).clear();
+			generations[slab] = generation + 1;
+			evictionCount.addAndGet(evicted);
+			log.debug("Recycled off-heap slab " + slab + ", evicting " + evicted + " sessions");
+		} finally {
+			slabLocks[slab].writeLock().unlock();
+		}
+	}
+
+	/**
+	* Copies a session's bytes out of its slab, or returns {@code null} if the slab has been reused since.
+	*/
+	private byte[] read(final Location location) {
+		final ReadWriteLock lock = slabLocks[location.slab];
+		lock.readLock().lock();
+		try {
+			if(generations[location.slab] != location.generation) return null;
+			final ByteBuffer source = slabs[location.slab].duplicate();
+			source.position(location.offset);
+			final byte[] bytes = new byte[location.length];
+			source.get(bytes);
+			return bytes;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	* Caches the session. The sessionData may be {@code null}.
+	*/
+	@Override
+	public void persistSession(final SessionData sessionData) {
+		if(sessionData == null) return;
+		final byte[] bytes;
+		try {
+			bytes = SessionRecords.encode(serializer, sessionData);
+		} catch(IOException ioe) {
+			throw new RuntimeException("IO Exception while converting the session to bytes: cannot serialize!", ioe);
+		}
+		if(bytes.length > slabBytes) {
+			log.debug("Not caching session " + sessionData.sessionId + " off-heap: " + bytes.length + " bytes is larger than a slab");
+			index.remove(sessionData.sessionId);
+			return;
+		}
+		append(sessionData.sessionId, bytes);
+	}
+
+	/**
+	* Retrieves the session data for the given session. May be {@code null}.
+	*/
+	@Override
+	public SessionData getSessionData(final String sessionId) {
+		final Location location = index.get(sessionId);
+		final SessionData data = location == null ? null : load(sessionId, location);
+		(data == null ? missCount : hitCount).incrementAndGet();
+		return data;
+	}
+
+	/**
+	* Reads a session from its slab, dropping it from the index if it has been evicted, cannot be read or expired.
+	*/
+	private SessionData load(final String sessionId, final Location location) {
+		final byte[] bytes = read(location);
+		if(bytes == null) {
+			index.remove(sessionId, location);
+			return null;
+		}
+		final SessionData data;
+		try {
+			data = SessionRecords.decode(serializer, new ByteArrayInputStream(bytes));
+		} catch(IOException ioe) {
+			log.warn("Dropping unreadable off-heap session " + sessionId, ioe);
+			index.remove(sessionId, location);
+			return null;
+		}
+		if(SessionRecords.isExpired(data, System.currentTimeMillis())) {
+			index.remove(sessionId, location);
+			return null;
+		}
+		return data;
+	}
+
+	@Override
+	public void invalidate(final String sessionId) {
+		log.debug("Invalidating session " + sessionId);
+		index.remove(sessionId);
+	}
+
+	@Override
+	public boolean isValid(final String sessionId) {
+		return getSessionData(sessionId) != null;
+	}
+
+	/**
+	* Drops the index entries of expired sessions. Their space is reclaimed when their slab comes round.
+	*/
+	@Override
+	public void cleanUp() {
+		for(Map.Entry<String,Location> entry : index.entrySet()) {
+			load(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	* The number of cached sessions.
+	*/
+	public int getSize() {
+		return index.size();
+	}
+
+	/**
+	* The bytes held by the cached sessions.
+	*/
+	public long getResidentBytes() {
+		long bytes = 0;
+		for(Location location : index.values()) bytes += location.length;
+		return bytes;
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	public String toString() {
+		return "OffHeapPersister[" + maximumBytes + " bytes]";
+	}
+
+}
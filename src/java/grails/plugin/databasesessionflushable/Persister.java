@@ -1,6 +1,12 @@
 package grails.plugin.databasesessionflushable;
 
+import java.util.Collection;
+import java.util.Map;
+
 /**
+ * Stores sessions. Implementations usually extend {@link AbstractPersister}, which implements the bulk operations
+ * in terms of the single-session ones.
+ *
  * @author Burt Beckwith
  * @author Robert Fischer
  */
@@ -32,6 +38,24 @@ public interface Persister {
 	 */
 	boolean isValid(String sessionId);
 
+	/**
+	* Retrieves the session data for a number of sessions at once. The result maps the ids of the sessions found to
+	* their data; unrecognized ids are left out.
+	*/
+	Map<String,SessionData> getSessionsData(Collection<String> sessionIds);
+
+	/**
+	* Persists a number of sessions at once, as {@link #persistSession(SessionData)} would. {@code null} entries are
+	* ignored. A persister which can tell which sessions it did not store throws a {@link SessionWriteException}
+	* listing them.
+	*/
+	void persistSessions(Collection<SessionData> sessions);
+
+	/**
+	* Effectively deletes a number of sessions at once.
+	*/
+	void invalidateAll(Collection<String> sessionIds);
+
 	/**
 	* Implements any clean up logic for the persister.
 	*/
@@ -0,0 +1,122 @@
+package grails.plugin.databasesessionflushable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+import org.codehaus.groovy.grails.commons.ConfigurationHolder;
+
+/**
+ * Which {@link SessionProxy} methods may still be used once the session is invalid, as configured by the
+ * {@code grails.plugin.databasesessionflushable.ignoreinvalid} settings. The policy is immutable and read from the
+ * configuration once; it is replaced as a whole when the configuration is reloaded, so that checking it on each
+ * session access costs no more than reading an array.
+ *
+ * @author Robert Fischer
+ */
+@SuppressWarnings("deprecation")
+public final class SessionAccessPolicy {
+
+	private static final Logger log = Logger.getLogger(SessionAccessPolicy.class);
+
+	public static final String CONFIG_IGNORE_INVALID_PREFIX = "grails.plugin.databasesessionflushable.ignoreinvalid";
+
+	/**
+	* The session methods checked against the policy, each with the name of its setting.
+	*/
+	public enum Method {
+		GET_ATTRIBUTE("getAttribute"),
+		GET_ATTRIBUTE_NAMES("getAttributeNames"),
+		GET_VALUE_NAMES("getValueNames"),
+		SET_ATTRIBUTE("setAttribute"),
+		REMOVE_ATTRIBUTE("removeAttribute"),
+		GET_CREATION_TIME("getCreationTime"),
+		GET_LAST_ACCESSED_TIME("getLastAccessedTime"),
+		INVALIDATE("invalidate"),
+		IS_NEW("isNew");
+
+		private static final Map<String,Method> byName;
+		static {
+			final Map<String,Method> names = new HashMap<String,Method>();
+			for(Method method : values()) names.put(method.methodName, method);
+			byName = Collections.unmodifiableMap(names);
+		}
+
+		public final String methodName;
+
+		Method(final String methodName) {
+			this.methodName = methodName;
+		}
+
+		/**
+		* The method with that name, or {@code null} if it is not checked.
+		*/
+		public static Method forName(final String methodName) {
+			return byName.get(methodName);
+		}
+	}
+
+	private static final AtomicReference<SessionAccessPolicy> current = new AtomicReference<SessionAccessPolicy>();
+
+	private final boolean ignoreAllInvalid;
+	private final boolean[] ignoreInvalid = new boolean[Method.values().length];
+
+	private SessionAccessPolicy(final Map<?,?> flatConfig) {
+		final Map<?,?> config = flatConfig == null ? Collections.emptyMap() : flatConfig;
+		ignoreAllInvalid = trueish(config.get(CONFIG_IGNORE_INVALID_PREFIX));
+		for(Method method : Method.values()) {
+			ignoreInvalid[method.ordinal()] = ignoreAllInvalid || trueish(config.get(CONFIG_IGNORE_INVALID_PREFIX + '.' + method.methodName));
+		}
+	}
+
+	/**
+	* Builds the policy from a flattened configuration, which may be {@code null}.
+	*/
+	public static SessionAccessPolicy fromConfig(final Map<?,?> flatConfig) {
+		return new SessionAccessPolicy(flatConfig);
+	}
+
+	/**
+	* The policy in effect, read from the application configuration on first use.
+	*/
+	public static SessionAccessPolicy current() {
+		final SessionAccessPolicy policy = current.get();
+		if(policy != null) return policy;
+		current.compareAndSet(null, fromConfig(ConfigurationHolder.getFlatConfig()));
+		return current.get();
+	}
+
+	/**
+	* Replaces the policy in effect with one read from the flattened configuration, after it was reloaded.
+	*/
+	public static void reload(final Map<?,?> flatConfig) {
+		current.set(fromConfig(flatConfig));
+		log.debug("Reloaded the session access policy");
+	}
+
+	private static boolean trueish(Object value) {
+		if(value == null) return false;
+		if(value instanceof Boolean) return ((Boolean)value).booleanValue();
+		if(value instanceof Number) return ((Number)value).longValue() != 0L;
+		return Boolean.valueOf(value.toString().toLowerCase());
+	}
+
+	/**
+	* Whether the method may be used on an invalid session.
+	*/
+	public boolean isInvalidIgnored(final Method method) {
+		return ignoreInvalid[method.ordinal()];
+	}
+
+	/**
+	* Whether the named method may be used on an invalid session; methods which are not checked only follow the
+	* general setting.
+	*/
+	public boolean isInvalidIgnored(final String methodName) {
+		final Method method = Method.forName(methodName);
+		return method == null ? ignoreAllInvalid : ignoreInvalid[method.ordinal()];
+	}
+
+}
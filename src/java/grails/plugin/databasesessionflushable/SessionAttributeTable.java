@@ -0,0 +1,225 @@
+package grails.plugin.databasesessionflushable;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.SqlParameterValue;
+
+/**
+ * The child table used by a {@link JdbcPersister} in attribute storage mode: one row per session attribute, so
+ * that a write only has to touch the attributes which were added, changed or removed.
+ *
+ * @author Robert Fischer
+ */
+class SessionAttributeTable {
+
+	private static final Logger log = Logger.getLogger(SessionAttributeTable.class);
+
+	private final JdbcPersister persister;
+
+	SessionAttributeTable(final JdbcPersister persister) {
+		this.persister = persister;
+	}
+
+	String getTableName() {
+		return persister.getAttributeTableName();
+	}
+
+	void createTable() {
+		try {
+			persister.getJdbcTemplate().execute(
+				"CREATE TABLE IF NOT EXISTS " + getTableName() + " (\n" +
+					"sessionId VARCHAR(255) NOT NULL,\n" +
+					"attributeName VARCHAR(255) NOT NULL,\n" +
+					"attributeData " + persister.getBinaryType() + " NOT NULL,\n" +
+					"PRIMARY KEY (sessionId, attributeName)\n"
+				+")"
+			);
+			log.info("If not already present, created the table for session attributes: " + getTableName());
+		} catch(Exception e) {
+			log.warn("Unknown error while creating the table for session attributes", e);
+		}
+	}
+
+	/**
+	* The attributes stored for a session, with the {@link #hash(byte[]) digests} of their encoded form.
+	*/
+	static final class Stored {
+		final Map<String,Serializable> values = new HashMap<String,Serializable>();
+		final Map<String,String> hashes = new HashMap<String,String>();
+
+		void read(final SessionSerializer serializer, final String sessionId, final String name, final byte[] bytes) {
+			try {
+				values.put(name, serializer.readValue(bytes));
+				hashes.put(name, hash(serializer.uncompress(bytes)));
+			} catch(IOException ioe) {
+				throw new RuntimeException("IO Exception while reading attribute " + name + " of session " + sessionId, ioe);
+			}
+		}
+	}
+
+	/**
+	* The digest by which changes to an attribute are detected, computed over its uncompressed encoded form (see
+	* {@link #encode(SessionSerializer, Serializable)}). An attribute which was decoded but not changed encodes to
+	* the same bytes it was read from, so it keeps its digest. This is SHA-256, like the digest of a whole session:
+	* a weaker hash would let a change to a colliding value go unwritten.
+	*/
+	static String hash(final byte[] encoded) {
+		return JdbcPersister.digest(encoded);
+	}
+
+	/**
+	* Encodes an attribute value in the form which is hashed, and which is compressed when written.
+	*/
+	static byte[] encode(final SessionSerializer serializer, final Serializable value) throws IOException {
+		return serializer.uncompress(serializer.serializeValue(value));
+	}
+
+	/**
+	* Reads all the attributes stored for a session.
+	*/
+	Stored load(final String sessionId) {
+		final Stored stored = new Stored();
+		persister.getJdbcTemplate().query(
+			"SELECT attributeName, attributeData FROM " + getTableName() + " WHERE sessionId = ?",
+			new Object[] { sessionId },
+			new RowCallbackHandler() {
+				public void processRow(ResultSet rs) throws SQLException {
+					stored.read(persister.getSerializer(), sessionId, rs.getString(1), rs.getBytes(2));
+				}
+			}
+		);
+		return stored;
+	}
+
+	/**
+	* Reads all the attributes stored for a number of sessions with a single query. Sessions without attributes are
+	* left out of the result.
+	*/
+	Map<String,Stored> loadAll(final Collection<String> sessionIds) {
+		final Map<String,Stored> found = new HashMap<String,Stored>();
+		if(sessionIds.isEmpty()) return found;
+		final StringBuilder sql = new StringBuilder("SELECT sessionId, attributeName, attributeData FROM ")
+			.append(getTableName()).append(" WHERE sessionId IN (");
+		for(int i = 0; i < sessionIds.size(); i++) sql.append(i == 0 ? "?" : ", ?");
+		sql.append(")");
+		persister.getJdbcTemplate().query(sql.toString(), sessionIds.toArray(), new RowCallbackHandler() {
+			public void processRow(ResultSet rs) throws SQLException {
+				final String sessionId = rs.getString(1);
+				Stored stored = found.get(sessionId);
+				if(stored == null) {
+					stored = new Stored();
+					found.put(sessionId, stored);
+				}
+				stored.read(persister.getSerializer(), sessionId, rs.getString(2), rs.getBytes(3));
+			}
+		});
+		return found;
+	}
+
+	/**
+	* Writes the named attributes of a session and deletes the removed ones.
+	* @param encoded the {@link #encode(SessionSerializer, Serializable) encoded} attributes of the session
+	*/
+	void write(final String sessionId, final Map<String,byte[]> encoded, final Collection<String> changed, final Collection<String> removed) {
+		if(!removed.isEmpty()) {
+			final List<Object[]> batch = new ArrayList<Object[]>(removed.size());
+			for(String name : removed) batch.add(new Object[] { sessionId, name });
+			persister.getJdbcTemplate().batchUpdate(
+				"DELETE FROM " + getTableName() + " WHERE sessionId = ? AND attributeName = ?", batch
+			);
+		}
+		if(changed.isEmpty()) return;
+
+		final List<Object[]> rows = new ArrayList<Object[]>(changed.size());
+		final SessionSerializer serializer = persister.getSerializer();
+		for(String name : changed) {
+			try {
+				rows.add(new Object[] {
+					sessionId, name,
+					new SqlParameterValue(persister.getSqlBinaryType(), serializer.compress(encoded.get(name)))
+				});
+			} catch(IOException ioe) {
+				throw new RuntimeException("IO Exception while writing attribute " + name + " of session " + sessionId, ioe);
+			}
+		}
+		upsert(rows);
+		log.debug("Wrote " + changed.size() + " and removed " + removed.size() + " attributes of session " + sessionId);
+	}
+
+	/**
+	* Replaces everything stored for a session with the given attributes: they are all upserted, then any other
+	* attribute stored for the session is deleted. Nothing is deleted that is still part of the session.
+	*/
+	void replace(final String sessionId, final Map<String,byte[]> encoded) {
+		write(sessionId, encoded, encoded.keySet(), Collections.<String>emptySet());
+		final StringBuilder sql = new StringBuilder("DELETE FROM ").append(getTableName()).append(" WHERE sessionId = ?");
+		final List<Object> arguments = new ArrayList<Object>(encoded.size() + 1);
+		arguments.add(sessionId);
+		if(!encoded.isEmpty()) {
+			sql.append(" AND attributeName NOT IN (");
+			for(String name : encoded.keySet()) {
+				sql.append(arguments.size() == 1 ? "?" : ", ?");
+				arguments.add(name);
+			}
+			sql.append(")");
+		}
+		persister.getJdbcTemplate().update(sql.toString(), arguments.toArray());
+	}
+
+	private void upsert(final List<Object[]> rows) {
+		final SessionDialect dialect = persister.getDialect();
+		final Map<String,String> values = new LinkedHashMap<String,String>();
+		values.put("sessionId", "?");
+		values.put("attributeName", "?");
+		values.put("attributeData", "?");
+		final String sql = dialect == null ? null : dialect.upsertSql(
+			getTableName(), Arrays.asList("sessionId", "attributeName"), values, Collections.<String>emptySet()
+		);
+		if(sql != null) {
+			persister.getJdbcTemplate().batchUpdate(sql, rows);
+			return;
+		}
+
+		// No upsert statement: update, then insert whatever was not there to update
+		final List<Object[]> updates = new ArrayList<Object[]>(rows.size());
+		for(Object[] row : rows) updates.add(new Object[] { row[2], row[0], row[1] });
+		final int[] counts = persister.getJdbcTemplate().batchUpdate(
+			"UPDATE " + getTableName() + " SET attributeData = ? WHERE sessionId = ? AND attributeName = ?", updates
+		);
+		final List<Object[]> inserts = new ArrayList<Object[]>();
+		for(int i = 0; i < rows.size(); i++) {
+			if(i >= counts.length || counts[i] == 0) inserts.add(rows.get(i));
+		}
+		if(!inserts.isEmpty()) {
+			persister.getJdbcTemplate().batchUpdate(
+				"INSERT INTO " + getTableName() + " (sessionId, attributeName, attributeData) VALUES (?, ?, ?)", inserts
+			);
+		}
+	}
+
+	void delete(final String sessionId) {
+		persister.getJdbcTemplate().update("DELETE FROM " + getTableName() + " WHERE sessionId = ?", sessionId);
+	}
+
+	void deleteAll(final Collection<String> sessionIds) {
+		if(sessionIds.isEmpty()) return;
+		final List<Object[]> batch = new ArrayList<Object[]>(sessionIds.size());
+		for(String sessionId : sessionIds) batch.add(new Object[] { sessionId });
+		persister.getJdbcTemplate().batchUpdate("DELETE FROM " + getTableName() + " WHERE sessionId = ?", batch);
+	}
+
+}
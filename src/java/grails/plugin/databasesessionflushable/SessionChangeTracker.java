@@ -0,0 +1,59 @@
+package grails.plugin.databasesessionflushable;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the writes and invalidations of sessions, so that a read which copies a session somewhere can tell whether
+ * the session changed while it was under way, and its copy may be out of date.
+ * <p>
+ * The counts are kept per stripe of session ids rather than per id, so that they take a fixed amount of memory. A
+ * change to another session of the same stripe is taken for a change of this one, which only costs a needless
+ * retry or dropped copy.
+ * <p>
+ * A writer calls {@link #changed(String)} before it writes. A reader takes the {@link #count(String)} before it
+ * reads, makes its copy, and then drops the copy if the session {@link #changedSince(String, long) changed since}:
+ * a write which the check misses started after it, and so replaces the copy itself.
+ *
+ * @author Robert Fischer
+ */
+public class SessionChangeTracker {
+
+	private static final int DEFAULT_STRIPES = 1024;
+
+	private final AtomicLongArray counts;
+
+	public SessionChangeTracker() {
+		this(DEFAULT_STRIPES);
+	}
+
+	public SessionChangeTracker(int stripes) {
+		if(stripes < 1) throw new IllegalArgumentException("stripes must be positive (was " + stripes + ")");
+		counts = new AtomicLongArray(stripes);
+	}
+
+	private int stripe(final String sessionId) {
+		return (sessionId == null ? 0 : sessionId.hashCode() & Integer.MAX_VALUE) % counts.length();
+	}
+
+	/**
+	* The number of changes counted for the session so far.
+	*/
+	public long count(final String sessionId) {
+		return counts.get(stripe(sessionId));
+	}
+
+	/**
+	* Counts a change of the session. Call it before the change is made.
+	*/
+	public void changed(final String sessionId) {
+		counts.incrementAndGet(stripe(sessionId));
+	}
+
+	/**
+	* Whether the session may have changed since its {@link #count(String)} was the given one.
+	*/
+	public boolean changedSince(final String sessionId, final long count) {
+		return count(sessionId) != count;
+	}
+
+}
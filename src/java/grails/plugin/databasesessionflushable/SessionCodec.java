@@ -0,0 +1,46 @@
+package grails.plugin.databasesessionflushable;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * Turns session attributes into bytes and back. Implementations must be thread-safe: a single instance is
+ * shared by every request. See {@link SessionSerializer} for how codecs are chosen when reading and writing.
+ *
+ * @author Robert Fischer
+ */
+public interface SessionCodec {
+
+	/**
+	* The format byte stored in front of everything this codec writes. It identifies the codec when the bytes are
+	* read back, so it must be unique among the registered codecs and must never change once data has been written.
+	*/
+	byte getFormatId();
+
+	/**
+	* A short name for configuration and logging, such as {@code json}.
+	*/
+	String getName();
+
+	/**
+	* Encodes the attributes. The map is never {@code null}, but may be empty.
+	*/
+	byte[] encode(Map<String,Serializable> attributes) throws IOException;
+
+	/**
+	* Decodes the attributes from {@code length} bytes of {@code bytes} starting at {@code offset}.
+	*/
+	Map<String,Serializable> decode(byte[] bytes, int offset, int length) throws IOException;
+
+	/**
+	* Encodes a single attribute value, which may be {@code null}.
+	*/
+	byte[] encodeValue(Serializable value) throws IOException;
+
+	/**
+	* Decodes a single attribute value from {@code length} bytes of {@code bytes} starting at {@code offset}.
+	*/
+	Serializable decodeValue(byte[] bytes, int offset, int length) throws IOException;
+
+}
@@ -0,0 +1,36 @@
+package grails.plugin.databasesessionflushable;
+
+import java.io.IOException;
+
+/**
+ * Compresses stored session bytes. Implementations must be thread-safe: a single instance is shared by every
+ * request. See {@link SessionSerializer} for when compression is applied.
+ *
+ * @author Robert Fischer
+ */
+public interface SessionCompressor {
+
+	/**
+	* The byte stored in front of everything this compressor writes. It identifies the compressor when the bytes
+	* are read back, so it must be unique among the registered compressors and must never change once data has
+	* been written.
+	*/
+	byte getFormatId();
+
+	/**
+	* A short name for configuration and logging, such as {@code deflate}.
+	*/
+	String getName();
+
+	/**
+	* Compresses {@code length} bytes of {@code bytes} starting at {@code offset}.
+	*/
+	byte[] compress(byte[] bytes, int offset, int length) throws IOException;
+
+	/**
+	* Decompresses {@code length} bytes of {@code bytes} starting at {@code offset}, which are known to expand to
+	* {@code originalLength} bytes.
+	*/
+	byte[] decompress(byte[] bytes, int offset, int length, int originalLength) throws IOException;
+
+}
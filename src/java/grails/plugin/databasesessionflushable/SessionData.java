@@ -19,6 +19,7 @@ public class SessionData {
 	public final long createdAt;
 	public final long lastAccessedAt;
 	public final int maxInactiveInterval; // In seconds
+	public final long version; // 0 if unknown; see VersionedPersister
 
 	public static SessionData fromSession(HttpSession session) {
 		if(session instanceof DatabaseSession) return fromProxy((DatabaseSession)session);
@@ -50,6 +51,14 @@ public class SessionData {
 		final String sessionId, final Map<String,Serializable> attrs,
 		final long createdAt, final long lastAccessedAt,
 		final int maxInactiveInterval
+	) {
+		this(sessionId, attrs, createdAt, lastAccessedAt, maxInactiveInterval, 0L);
+	}
+
+	public SessionData(
+		final String sessionId, final Map<String,Serializable> attrs,
+		final long createdAt, final long lastAccessedAt,
+		final int maxInactiveInterval, final long version
 	) {
 		this.sessionId = sessionId;
 		if(attrs == null || attrs.isEmpty()) {
@@ -60,6 +69,14 @@ public class SessionData {
 		this.createdAt = createdAt;
 		this.lastAccessedAt = lastAccessedAt;
 		this.maxInactiveInterval = maxInactiveInterval;
+		this.version = version;
+	}
+
+	/**
+	* A copy of this session data carrying the given version.
+	*/
+	public SessionData withVersion(final long version) {
+		return new SessionData(sessionId, attrs, createdAt, lastAccessedAt, maxInactiveInterval, version);
 	}
 
 	public String toString() {
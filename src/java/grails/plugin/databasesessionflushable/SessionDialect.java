@@ -0,0 +1,97 @@
+package grails.plugin.databasesessionflushable;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.apache.log4j.Logger;
+
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.MetaDataAccessException;
+
+/**
+ * Knows how to say "insert this row, or update it if it is already there" in a single statement for a
+ * particular database. Implementations only generate SQL: the {@link JdbcPersister} binds and executes it.
+ *
+ * @author Robert Fischer
+ */
+public abstract class SessionDialect {
+
+	private static final Logger log = Logger.getLogger(SessionDialect.class);
+
+	/**
+	* Generates a single-statement upsert keyed on the given (primary key) columns. The {@code values} map is ordered: its keys are the column names and its
+	* values are the SQL expressions (usually {@code ?}) to store into them. Columns in {@code insertOnly} are written
+	* when the row is created but left alone when it is updated. Returns {@code null} if the database has no such
+	* statement, in which case the caller falls back to an update followed by an insert.
+	*/
+	public abstract String upsertSql(String tableName, List<String> keyColumns, Map<String,String> values, Collection<String> insertOnly);
+
+	/**
+	* Looks up a dialect by its short name: {@code h2}, {@code postgresql}, {@code mysql}, {@code merge} or {@code generic}.
+	*/
+	public static SessionDialect forName(String name) {
+		if(name == null) throw new IllegalArgumentException("Cannot look up a null dialect name");
+		final String key = name.trim().toLowerCase();
+		if("h2".equals(key)) return new H2SessionDialect();
+		if("postgresql".equals(key) || "postgres".equals(key)) return new PostgreSqlSessionDialect();
+		if("mysql".equals(key) || "mariadb".equals(key)) return new MySqlSessionDialect();
+		if("merge".equals(key)) return new MergeSessionDialect();
+		if("generic".equals(key)) return new GenericSessionDialect();
+		throw new IllegalArgumentException("Unknown session dialect: " + name);
+	}
+
+	/**
+	* Picks a dialect based on the database product behind the data source. Falls back to the
+	* {@link GenericSessionDialect} if the database is not recognized or cannot be inspected.
+	*/
+	public static SessionDialect detect(DataSource dataSource) {
+		String product;
+		try {
+			product = (String)JdbcUtils.extractDatabaseMetaData(dataSource, "getDatabaseProductName");
+		} catch(MetaDataAccessException mdae) {
+			log.warn("Could not determine the database product; using the generic session dialect", mdae);
+			return new GenericSessionDialect();
+		}
+		final SessionDialect dialect = forProduct(product);
+		log.info("Using session dialect " + dialect.getClass().getSimpleName() + " for database product " + product);
+		return dialect;
+	}
+
+	private static SessionDialect forProduct(String product) {
+		if(product == null) return new GenericSessionDialect();
+		final String name = product.toLowerCase();
+		if(name.startsWith("h2")) return new H2SessionDialect();
+		if(name.startsWith("postgresql")) return new PostgreSqlSessionDialect();
+		if(name.startsWith("mysql") || name.startsWith("mariadb")) return new MySqlSessionDialect();
+		if(name.startsWith("hsql") || name.startsWith("db2")) return new MergeSessionDialect();
+		return new GenericSessionDialect();
+	}
+
+	/**
+	* Joins the given strings with a comma.
+	*/
+	protected static String join(Iterable<String> parts) {
+		return join(parts, ", ");
+	}
+
+	/**
+	* Joins the given strings with a separator.
+	*/
+	protected static String join(Iterable<String> parts, String separator) {
+		final StringBuilder sb = new StringBuilder();
+		for(Iterator<String> it = parts.iterator(); it.hasNext(); ) {
+			sb.append(it.next());
+			if(it.hasNext()) sb.append(separator);
+		}
+		return sb.toString();
+	}
+
+	public String toString() {
+		return getClass().getSimpleName();
+	}
+
+}
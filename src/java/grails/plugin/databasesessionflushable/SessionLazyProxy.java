@@ -23,7 +23,8 @@ public class SessionLazyProxy extends DatabaseSession {
 
     private static final Logger log = Logger.getLogger(grails.plugin.databasesessionflushable.SessionLazyProxy.class);
 
-    private SessionProxy _session;
+    private volatile SessionProxy _session;
+    private volatile boolean _activationPending;
     private final Persister _persister;
     private final String _sessionId;
     private final ServletContext _servletContext;
@@ -56,12 +57,33 @@ public class SessionLazyProxy extends DatabaseSession {
 
     public SessionProxy session()
     {
-        if ( _session == null )
+        SessionProxy session = _session;
+        if ( session == null )
         {
-            log.debug("\n\nLazy Loading Session "+this._sessionId+"!!!\n\n");
-            _session = new SessionProxy( this._servletContext, this._persister, this._sessionId );
+            synchronized ( this )
+            {
+                session = _session;
+                if ( session == null )
+                {
+                    log.debug("Lazy loading session " + this._sessionId);
+                    session = new SessionProxy( this._servletContext, this._persister, this._sessionId );
+                    if ( _activationPending )
+                    {
+                        session.fireSessionActivationListeners();
+                        _activationPending = false;
+                    }
+                    _session = session;
+                }
+            }
         }
-        return _session;
+        return session;
+    }
+
+    /**
+     * Whether the session has been loaded, that is whether anything has accessed it yet.
+     */
+    public boolean isLoaded() {
+        return _session != null;
     }
 
 
@@ -73,12 +95,27 @@ public class SessionLazyProxy extends DatabaseSession {
         return session().toData();
     }
 
+    /**
+     * Fires the activation listeners, or if the session has not been loaded yet, fires them when it is.
+     */
     public void fireSessionActivationListeners() {
-        session().fireSessionActivationListeners();
+        synchronized ( this )
+        {
+            if ( _session == null )
+            {
+                _activationPending = true;
+                return;
+            }
+        }
+        _session.fireSessionActivationListeners();
     }
 
+    /**
+     * Fires the passivation listeners, unless the session was never loaded (and so never activated).
+     */
     public void fireSessionPassivationListeners() {
-        session().fireSessionPassivationListeners();
+        final SessionProxy session = _session;
+        if ( session != null ) session.fireSessionPassivationListeners();
     }
 
     @Override
@@ -169,8 +206,28 @@ public class SessionLazyProxy extends DatabaseSession {
         session().flush();
     }
 
+    public boolean isPersisted() {
+        return session().isPersisted();
+    }
+
+    /**
+     * A session that was never loaded cannot have changed.
+     */
+    public boolean isDirty() {
+        return _session != null && _session.isDirty();
+    }
+
+    public boolean isPossiblyDirty() {
+        return _session != null && _session.isPossiblyDirty();
+    }
+
+    public long getStoredAccessTime() {
+        return session().getStoredAccessTime();
+    }
+
     /**
-     * Since we use the built-in session for the first round, this can always be {@code false}.
+     * A lazy proxy is only made for a request which sent the session cookie, so the client has already joined the
+     * session: this is always {@code false}, without loading it.
      */
     @Override
     public boolean isNew() {
@@ -2,7 +2,6 @@ package grails.plugin.databasesessionflushable;
 
 import com.google.common.collect.ImmutableSortedMap;
 import org.apache.log4j.Logger;
-import org.codehaus.groovy.grails.commons.ConfigurationHolder;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.*;
@@ -33,6 +32,10 @@ public class SessionProxy extends DatabaseSession {
 	private volatile long _lastAccessedAt;
 	private volatile boolean _invalidated;
 	private volatile int _maxInactiveInterval;
+	private volatile boolean _persisted;
+	private volatile boolean _dirty;
+	private volatile boolean _possiblyDirty;
+	private volatile long _storedAccessTime;
 
 
 	/**
@@ -58,12 +61,16 @@ public class SessionProxy extends DatabaseSession {
 			_createdAt = System.currentTimeMillis();
 			_lastAccessedAt = System.currentTimeMillis();
 			_maxInactiveInterval = 600;
+			_persisted = false;
+			_storedAccessTime = 0;
 		} else {
 			log.debug("Using persisted session for " + sessionId + ": " + Arrays.deepToString(data.attrs.keySet().toArray(new String[0])));
 			_attrs = new ConcurrentHashMap<String,Serializable>(data.attrs);
 			_createdAt = data.createdAt;
 			_lastAccessedAt = data.lastAccessedAt;
 			_maxInactiveInterval = data.maxInactiveInterval;
+			_persisted = true;
+			_storedAccessTime = data.lastAccessedAt;
 		}
 		log.debug("Done constructing the proxy session for " + sessionId);
 	}
@@ -95,31 +102,25 @@ public class SessionProxy extends DatabaseSession {
 		}
 	}
 
-	private static boolean trueish(Object value) {
-		if(value == null) return false;
-		if(value instanceof Boolean) return ((Boolean)value).booleanValue();
-		if(value instanceof Number) return ((Number)value).longValue() != 0L;
-		return Boolean.valueOf(value.toString().toLowerCase());
+	public static final String CONFIG_IGNORE_INVALID_PREFIX = SessionAccessPolicy.CONFIG_IGNORE_INVALID_PREFIX;
+	public void checkAccess(final String methodName) {
+		checkAccess(SessionAccessPolicy.current().isInvalidIgnored(methodName));
 	}
 
-	public static final String CONFIG_IGNORE_INVALID_PREFIX = "grails.plugin.databasesessionflushable.ignoreinvalid";
-	public void checkAccess(final String methodName) {
-        final Map config = ConfigurationHolder.getFlatConfig();
+	public void checkAccess(final SessionAccessPolicy.Method method) {
+		checkAccess(SessionAccessPolicy.current().isInvalidIgnored(method));
+	}
+
+	private void checkAccess(final boolean invalidIgnored) {
 		if(_invalidated) {
-			if(!(
-				trueish(config.get(CONFIG_IGNORE_INVALID_PREFIX + '.' + methodName)) ||
-				trueish(config.get(CONFIG_IGNORE_INVALID_PREFIX))
-			)) {
+			if(!invalidIgnored) {
 				throw new InvalidatedSessionException("Session " + _sessionId + " is invalid; cannot access/modify it.");
 			}
 		}
 		final long lastAccess = _lastAccessedAt;
 		if(lastAccess + (_maxInactiveInterval*1000L) < System.currentTimeMillis()) {
 			invalidate();
-            if(!(
-            		trueish(config.get(CONFIG_IGNORE_INVALID_PREFIX + '.' + methodName)) ||
-            		trueish(config.get(CONFIG_IGNORE_INVALID_PREFIX))
-            )) {
+            if(!invalidIgnored) {
                 throw new InvalidatedSessionException(
                     "Session " + _sessionId + " (last accessed at " + new java.sql.Date(lastAccess) + ") is invalid due to age"
                 );
@@ -130,8 +131,41 @@ public class SessionProxy extends DatabaseSession {
 
 	@Override
 	public Serializable getAttribute(String name) {
-		checkAccess("getAttribute");
-		return _attrs.get(name);
+		checkAccess(SessionAccessPolicy.Method.GET_ATTRIBUTE);
+		final Serializable stored = _attrs.get(name);
+		final Serializable value = stored instanceof EncodedAttribute ? decodeAttribute(name, (EncodedAttribute)stored) : stored;
+		if(!_possiblyDirty && !isImmutable(value)) _possiblyDirty = true;
+		return value;
+	}
+
+	/**
+	* Whether the value is of a type known to be immutable, so that reading it cannot lead to a change.
+	*/
+	static boolean isImmutable(final Object value) {
+		if(value == null) return true;
+		final Class<?> type = value.getClass();
+		return type == String.class || type == Integer.class || type == Long.class || type == Boolean.class ||
+			type == Short.class || type == Byte.class || type == Character.class || type == Double.class ||
+			type == Float.class || type == java.math.BigInteger.class || type == java.math.BigDecimal.class ||
+			value instanceof Enum;
+	}
+
+	/**
+	* Decodes an attribute which was loaded as raw bytes and keeps the result. Its activation listener was skipped
+	* when the session was activated, so it is fired now.
+	*/
+	private Serializable decodeAttribute(final String name, final EncodedAttribute encoded) {
+		final Serializable value = encoded.decode();
+		if(!_attrs.replace(name, encoded, value)) {
+			// Somebody else decoded or replaced it first: theirs wins
+			final Serializable current = _attrs.get(name);
+			return current instanceof EncodedAttribute ? decodeAttribute(name, (EncodedAttribute)current) : current;
+		}
+		log.debug("Decoded attribute '" + name + "' of session " + _sessionId);
+		if(value instanceof HttpSessionActivationListener) {
+			((HttpSessionActivationListener)value).sessionDidActivate(_event);
+		}
+		return value;
 	}
 
 	@Override @Deprecated
@@ -141,19 +175,19 @@ public class SessionProxy extends DatabaseSession {
 
 	@Override
 	public Enumeration<String> getAttributeNames() {
-		checkAccess("getAttributeNames");
+		checkAccess(SessionAccessPolicy.Method.GET_ATTRIBUTE_NAMES);
 		return Collections.enumeration(_attrs.keySet());
 	}
 
 	@Override @Deprecated
 	public String[] getValueNames() {
-		checkAccess("getValueNames");
+		checkAccess(SessionAccessPolicy.Method.GET_VALUE_NAMES);
 		return _attrs.keySet().toArray(new String[0]);
 	}
 
 	@Override
 	public void setAttribute(String name, Object value) {
-		checkAccess("setAttribute");
+		checkAccess(SessionAccessPolicy.Method.SET_ATTRIBUTE);
 		if(name == null) throw new IllegalArgumentException("Cannot store a null key into the session");
 		if(value == null) {
 			removeAttribute(name);
@@ -164,6 +198,7 @@ public class SessionProxy extends DatabaseSession {
 			} catch(ClassCastException cce) {
 				throw new IllegalStateException("Can only set Serializable values into the session (tried to add: " + value.getClass() + ")");
 			}
+			_dirty = true;
 			if(oldValue != null && oldValue instanceof HttpSessionBindingListener) {
 				log.debug("Firing off valueUnbound listener for " + oldValue + " (was attached to '" + name + "')");
 				((HttpSessionBindingListener)oldValue).valueUnbound(
@@ -186,8 +221,9 @@ public class SessionProxy extends DatabaseSession {
 
 	@Override
 	public void removeAttribute(String name) {
-		checkAccess("removeAttribute");
+		checkAccess(SessionAccessPolicy.Method.REMOVE_ATTRIBUTE);
 		Serializable value = _attrs.remove(name);
+		if(value != null) _dirty = true;
 		if(value != null && value instanceof HttpSessionBindingListener) {
 			log.debug("Firing off valueUnbound listener for " + value + " (was attached to '" + name + "')");
 			((HttpSessionBindingListener)value).valueUnbound(
@@ -204,7 +240,7 @@ public class SessionProxy extends DatabaseSession {
 
 	@Override
 	public long getCreationTime() {
-		checkAccess("getCreationTime");
+		checkAccess(SessionAccessPolicy.Method.GET_CREATION_TIME);
 		return _createdAt;
 	}
 
@@ -215,7 +251,7 @@ public class SessionProxy extends DatabaseSession {
 
 	@Override
 	public long getLastAccessedTime() {
-		checkAccess("getLastAccessedTime");
+		checkAccess(SessionAccessPolicy.Method.GET_LAST_ACCESSED_TIME);
 		return _lastAccessedAt;
 	}
 
@@ -226,6 +262,7 @@ public class SessionProxy extends DatabaseSession {
 
 	@Override
 	public void setMaxInactiveInterval(int interval) {
+		if(interval != _maxInactiveInterval) _dirty = true;
 		_maxInactiveInterval = interval;
 	}
 
@@ -252,27 +289,52 @@ public class SessionProxy extends DatabaseSession {
 
 	@Override
 	public void invalidate() {
-		//checkAccess("invalidate");
+		//checkAccess(SessionAccessPolicy.Method.INVALIDATE);
 		_invalidated = true;
+		_persisted = false;
 		// A race condition *could* result in a session being invalidated twice, but that's OK
 		_persister.invalidate(_sessionId);
 	}
 
     public void flush() {
-        _persister.persistSession(toData());
+        final SessionData data = toData();
+        _dirty = false;
+        _possiblyDirty = false;
+        _persister.persistSession(data);
+        _persisted = true;
+        _storedAccessTime = data.lastAccessedAt;
     }
 
+	public boolean isPersisted() {
+		return _persisted;
+	}
+
+	public boolean isDirty() {
+		return _dirty;
+	}
+
+	public boolean isPossiblyDirty() {
+		return _possiblyDirty;
+	}
+
+	public long getStoredAccessTime() {
+		return _storedAccessTime;
+	}
+
 	/**
-	* Since we use the built-in session for the first round, this can always be {@code false}.
+	* A proxy is made for a request which sent the session cookie, so the client has already joined the session and
+	* this is {@code false}. Sessions created without a cookie (see {@link SessionProxyFilter#setLazySessionCreation(boolean)})
+	* override this.
 	*/
 	@Override
 	public boolean isNew() {
-		checkAccess("isNew");
+		checkAccess(SessionAccessPolicy.Method.IS_NEW);
 		return false;
 	}
 
 	/**
-	* Gets an immutable map of all the attributes.
+	* Gets an immutable map of all the attributes. Attributes which have not been read yet are still
+	* {@link EncodedAttribute} values.
 	*/
 	public Map<String,Serializable> getAttributes() {
 		return ImmutableSortedMap.copyOf(_attrs);
@@ -4,11 +4,14 @@ import java.io.IOException;
 
 import java.util.UUID;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
 
 import javax.servlet.FilterChain;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
@@ -31,22 +34,55 @@ import org.springframework.web.filter.OncePerRequestFilter;
 public class SessionProxyFilter extends OncePerRequestFilter {
 
 	protected static final String COOKIE_NAME = "SessionProxyFilter_SessionId";
+	/** The request attribute holding the {@link SessionRouteRules.Mode} the request was matched to */
+	protected static final String ROUTE_MODE_ATTRIBUTE = SessionProxyFilter.class.getName() + ".routeMode";
 
 	private Persister persister;
+	private volatile long touchIntervalMillis = 60000;
+	private volatile boolean trackMutableReads = true;
+	private volatile boolean lazySessionCreation = false;
     private String[] exclusionList = new String[0];
+	private String[] readOnlyPrefixes = new String[0];
+	private String[] bypassPrefixes = new String[0];
+	private String[] bypassPatterns = new String[0];
+	private volatile SessionRouteRules routeRules = SessionRouteRules.NONE;
 
 	private final Logger log = LoggerFactory.getLogger(getClass());
 
+	/**
+	* Backs the sessions of bypassed requests: nothing is stored, and invalidating one does not reach the real persister.
+	*/
+	private static final Persister DETACHED_PERSISTER = new AbstractPersister() {
+		public void persistSession(SessionData session) {}
+		public SessionData getSessionData(String sessionId) { return null; }
+		public void invalidate(String sessionId) {}
+		public boolean isValid(String sessionId) { return false; }
+		public void cleanUp() {}
+	};
+
 	@Override
 	protected void doFilterInternal(final HttpServletRequest request,
 			final HttpServletResponse response, final FilterChain chain)
 					throws ServletException, IOException {
 		log.debug("Executing the SessionProxyFilter");
 
+		final SessionRouteRules.Mode mode = routeRules.match(request.getRequestURI());
+		// Kept for allowPersistence, so that the rules are matched once per request
+		request.setAttribute(ROUTE_MODE_ATTRIBUTE, mode);
+		if(mode == SessionRouteRules.Mode.BYPASS) {
+			log.debug("Bypassing the session for {}", request.getRequestURI());
+			chain.doFilter(bypassRequest(request), response);
+			return;
+		}
+
 		final HttpServletRequest requestForChain;
 
 		final String sessionId = getCookieValue(request);
-		if(sessionId == null) {
+		if(sessionId == null && lazySessionCreation) {
+			// No session until the application stores something in it, and no cookie until then either
+			log.debug("No cookie for presisted session found: deferring session creation");
+			requestForChain = lazySessionRequest(request, response);
+		} else if(sessionId == null) {
 			// Since there's no sessionId to use, just let the normal session stuff play out
 			log.debug("No cookie for presisted session found");
 			createCookie(request.getSession(true).getId(), request, response);
@@ -75,14 +111,20 @@ public class SessionProxyFilter extends OncePerRequestFilter {
 			};
 		}
 
-		final SessionHash originalHash = request.getSession(false) == null ? null : new SessionHash(request.getSession());
-
 		log.debug("Passing off to the next filter in the chain: " + requestForChain + " " + chain);
 		chain.doFilter(requestForChain, response);
 
 		try {
 			final HttpSession session = requestForChain.getSession(false);
 			if(session == null) return;
+			if(session instanceof SessionLazyProxy && !((SessionLazyProxy)session).isLoaded()) {
+				log.debug("Not persisting session because the request never used it");
+				return;
+			}
+			if(session instanceof CreatedSession && !((CreatedSession)session).isCookieIssued()) {
+				log.debug("Not persisting session because nothing was stored in it");
+				return;
+			}
 
 			if(session instanceof DatabaseSession) {
 				// If it's not a DatabaseSession, leave it to the wrapped session to deal with it
@@ -90,18 +132,18 @@ public class SessionProxyFilter extends OncePerRequestFilter {
 				((DatabaseSession)session).fireSessionPassivationListeners();
 			}
 
-			// Persist the session only if there looks like there was a change
-			if( originalHash != null && originalHash.equals(new SessionHash(session)) )
+			// Persist the session only if there was a change, or its stored access time needs refreshing
+			if( session instanceof DatabaseSession && !needsWrite((DatabaseSession)session) )
             {
-                log.debug("Not persisting session because there doesn't seem to have been a change");
+                log.debug("Not persisting session because it has not changed");
             }
-            else if( !allowPersistence( originalHash, session, request ) )
+            else if( !allowPersistence( null, session, request ) )
             {
                 log.debug("Not persisting session because the request is excluded " + request.getRequestURI() );
             }
             else
             {
-				if(persister.isValid(session.getId()) || !Collections.list(session.getAttributeNames()).isEmpty()) {
+				if(isPersisted(session) || !Collections.list(session.getAttributeNames()).isEmpty()) {
 					persister.persistSession(SessionData.fromSession(session));
 				} else {
 					log.debug("Not persisting session because the session is empty");
@@ -110,19 +152,141 @@ public class SessionProxyFilter extends OncePerRequestFilter {
 		} catch(IllegalStateException ise) {
 			log.debug("Not persisting session because it seems to be invalid", ise);
 		} catch(Exception e) {
-			log.error("Unknown exception while persisting " + requestForChain.getSession().getId(), e);
+			final HttpSession session = requestForChain.getSession(false);
+			log.error("Unknown exception while persisting " + (session == null ? "a session" : session.getId()), e);
 		}
 	}
 
+	/**
+	* Whether a proxied session has to be written: it was changed, it may have been changed in place (see
+	* {@link #setTrackMutableReads(boolean)}), or its stored access time is older than the touch interval.
+	*/
+	protected boolean needsWrite(DatabaseSession session) {
+		if(session.isDirty()) return true;
+		if(trackMutableReads && session.isPossiblyDirty()) return true;
+		return session.isPersisted() && System.currentTimeMillis() - session.getStoredAccessTime() >= touchIntervalMillis;
+	}
+
+	/**
+	* Whether the session already has a persisted row. Proxies know this from when they were loaded; a container
+	* session only exists for the request that issued the cookie, so it has never been persisted.
+	*/
+	protected boolean isPersisted(HttpSession session) {
+		return session instanceof DatabaseSession && ((DatabaseSession)session).isPersisted();
+	}
+
 	protected DatabaseSession proxySession(final String sessionId, final HttpServletRequest request,
 			final HttpServletResponse response) {
 		log.debug("Creating HttpSession proxy for request for {}", request.getRequestURL());
         DatabaseSession proxy = new SessionLazyProxy(getServletContext(), persister, sessionId);
+		// Deferred by the lazy proxy until the session is first used, so that requests which never use it cost nothing
 		proxy.fireSessionActivationListeners();
 		return proxy;
 	}
 
 
+	/**
+	* Wraps a request without a session cookie so that a session is only created when the application asks for one,
+	* without touching the container's sessions or the persister.
+	*/
+	protected HttpServletRequest lazySessionRequest(final HttpServletRequest request, final HttpServletResponse response) {
+		return new HttpServletRequestWrapper(request) {
+
+			private volatile CreatedSession session;
+
+			@Override
+			public synchronized HttpSession getSession(boolean create) {
+				if(session == null && create) {
+					session = new CreatedSession(getServletContext(), persister, newSessionId(), request, response);
+				}
+				return session;
+			}
+
+			@Override
+			public HttpSession getSession() {
+				return getSession(true);
+			}
+		};
+	}
+
+	/**
+	* Wraps a request on a bypassed route: it never sees the stored session, only an empty one of its own which is
+	* never written or invalidated in the store, and it does not touch the container's sessions either.
+	*/
+	protected HttpServletRequest bypassRequest(final HttpServletRequest request) {
+		return new HttpServletRequestWrapper(request) {
+
+			private volatile HttpSession session;
+
+			@Override
+			public synchronized HttpSession getSession(boolean create) {
+				if(session == null && create) {
+					session = new SessionProxy(getServletContext(), DETACHED_PERSISTER, newSessionId(), null);
+				}
+				return session;
+			}
+
+			@Override
+			public HttpSession getSession() {
+				return getSession(true);
+			}
+		};
+	}
+
+	/**
+	* Creates the id for a session which is created lazily (see {@link #setLazySessionCreation(boolean)}).
+	*/
+	protected String newSessionId() {
+		return UUID.randomUUID().toString();
+	}
+
+	/**
+	* A new session, created without a cookie, which issues its cookie when the first attribute is stored in it.
+	*/
+	private class CreatedSession extends SessionProxy {
+
+		private final HttpServletRequest request;
+		private final HttpServletResponse response;
+		private volatile boolean cookieIssued = false;
+
+		CreatedSession(final ServletContext servletContext, final Persister persister, final String sessionId,
+				final HttpServletRequest request, final HttpServletResponse response) {
+			super(servletContext, persister, sessionId, null);
+			this.request = request;
+			this.response = response;
+		}
+
+		@Override
+		public void setAttribute(String name, Object value) {
+			super.setAttribute(name, value);
+			if(value != null) issueCookie();
+		}
+
+		private synchronized void issueCookie() {
+			if(cookieIssued) return;
+			if(response.isCommitted()) {
+				log.warn("Session " + getId() + " was written after the response was committed; it will not be kept");
+				return;
+			}
+			createCookie(getId(), request, response);
+			cookieIssued = true;
+		}
+
+		boolean isCookieIssued() {
+			return cookieIssued;
+		}
+
+		/**
+		* The client only joins the session by sending the cookie back on a later request, which then gets a proxy of
+		* the persisted session. Until then, including after the cookie was issued, the session is new.
+		*/
+		@Override
+		public boolean isNew() {
+			checkAccess(SessionAccessPolicy.Method.IS_NEW);
+			return true;
+		}
+	}
+
 	protected Cookie getCookie(HttpServletRequest request) {
 		Cookie[] cookies = request.getCookies();
 		if (cookies != null) {
@@ -187,35 +351,132 @@ public class SessionProxyFilter extends OncePerRequestFilter {
 		return persister;
 	}
 
+	/**
+	* How long an unchanged session goes without being written. Writing it refreshes its stored access time, which
+	* keeps it from expiring while in use, so this must be well under the session timeout. This is the
+	* {@code keepAliveIntervalMillis} setting, not the {@code touchIntervalMillis} of {@link JdbcPersister}.
+	*/
+	public void setTouchIntervalMillis(long touchIntervalMillis) {
+		this.touchIntervalMillis = touchIntervalMillis;
+	}
+
+	public long getTouchIntervalMillis() {
+		return touchIntervalMillis;
+	}
+
+	/**
+	* Whether reading an attribute which may be mutable, and so may be changed in place, causes the session to be
+	* written. Only turn this off if the application always sets attributes again after changing them.
+	*/
+	public void setTrackMutableReads(boolean trackMutableReads) {
+		this.trackMutableReads = trackMutableReads;
+	}
+
+	public boolean isTrackMutableReads() {
+		return trackMutableReads;
+	}
+
+	/**
+	* Whether requests without a session cookie get a session only once the application stores an attribute, instead
+	* of always getting a container session and a cookie. Anonymous traffic which never stores anything in the
+	* session, such as crawlers, then costs neither a session nor a database write.
+	*/
+	public void setLazySessionCreation(boolean lazySessionCreation) {
+		this.lazySessionCreation = lazySessionCreation;
+	}
+
+	public boolean isLazySessionCreation() {
+		return lazySessionCreation;
+	}
+
     /**
-     *
+     * Regular expressions matching the request URIs whose sessions are read but never written.
      * @param exclusionList
      */
     public void setExclusionList(String[] exclusionList) {
         this.exclusionList = exclusionList;
+        compileRouteRules();
     }
 
     protected String[] getExclusionList() {
         return exclusionList;
     }
 
-    public boolean allowPersistence( SessionHash originalHash, HttpSession session, final HttpServletRequest request )
+	/**
+	* Prefixes of the request URIs whose sessions are read but never written.
+	*/
+	public void setReadOnlyPrefixes(String[] readOnlyPrefixes) {
+		this.readOnlyPrefixes = readOnlyPrefixes;
+		compileRouteRules();
+	}
+
+	protected String[] getReadOnlyPrefixes() {
+		return readOnlyPrefixes;
+	}
+
+	/**
+	* Prefixes of the request URIs which never load or write the session, such as static resources.
+	*/
+	public void setBypassPrefixes(String[] bypassPrefixes) {
+		this.bypassPrefixes = bypassPrefixes;
+		compileRouteRules();
+	}
+
+	protected String[] getBypassPrefixes() {
+		return bypassPrefixes;
+	}
+
+	/**
+	* Regular expressions matching the request URIs which never load or write the session, such as polling endpoints.
+	*/
+	public void setBypassPatterns(String[] bypassPatterns) {
+		this.bypassPatterns = bypassPatterns;
+		compileRouteRules();
+	}
+
+	protected String[] getBypassPatterns() {
+		return bypassPatterns;
+	}
+
+	private synchronized void compileRouteRules() {
+		final Map<String,SessionRouteRules.Mode> prefixes = new LinkedHashMap<String,SessionRouteRules.Mode>();
+		final Map<String,SessionRouteRules.Mode> patterns = new LinkedHashMap<String,SessionRouteRules.Mode>();
+		if(readOnlyPrefixes != null) for(String prefix : readOnlyPrefixes) prefixes.put(prefix, SessionRouteRules.Mode.READ_ONLY);
+		if(bypassPrefixes != null) for(String prefix : bypassPrefixes) prefixes.put(prefix, SessionRouteRules.Mode.BYPASS);
+		if(exclusionList != null) for(String pattern : exclusionList) patterns.put(pattern, SessionRouteRules.Mode.READ_ONLY);
+		if(bypassPatterns != null) for(String pattern : bypassPatterns) patterns.put(pattern, SessionRouteRules.Mode.BYPASS);
+		routeRules = new SessionRouteRules(prefixes, patterns);
+	}
+
+	/**
+	* The compiled route rules.
+	*/
+	public SessionRouteRules getRouteRules() {
+		return routeRules;
+	}
+
+    /**
+     * Whether the session of the request may be written. By default, only requests whose route is
+     * {@link SessionRouteRules.Mode#NORMAL} are; override this to exclude more. The route the filter matched is
+     * reused, so the rules are only matched again for a request the filter has not seen.
+     */
+    public boolean allowPersistence( HttpSession session, final HttpServletRequest request )
     {
-        boolean exclusionMatch = false;
-        String requestURI = request.getRequestURI();
-
-        for(int i = 0; i < exclusionList.length; i++)
-        {
-            String exclusionURIRegEx = exclusionList[i];
-            log.debug( "'"+exclusionURIRegEx+"' matches '"+requestURI+"'" );
-            if ( requestURI.matches( exclusionURIRegEx ) )
-            {
-                exclusionMatch = true;
-                break;
-            }
-        }
+        Object mode = request.getAttribute( ROUTE_MODE_ATTRIBUTE );
+        if( !(mode instanceof SessionRouteRules.Mode) ) mode = routeRules.match( request.getRequestURI() );
+        return mode == SessionRouteRules.Mode.NORMAL;
+    }
 
-        return !exclusionMatch;
+    /**
+     * The hook the filter calls before writing a session; it delegates to
+     * {@link #allowPersistence(HttpSession, HttpServletRequest)}. Sessions now track their own changes, so the
+     * filter no longer takes a {@link SessionHash} and passes {@code null} as {@code originalHash}.
+     * @deprecated Override {@link #allowPersistence(HttpSession, HttpServletRequest)} instead.
+     */
+    @Deprecated
+    public boolean allowPersistence( SessionHash originalHash, HttpSession session, final HttpServletRequest request )
+    {
+        return allowPersistence( session, request );
     }
 
 /*
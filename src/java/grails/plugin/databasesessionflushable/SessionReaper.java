@@ -0,0 +1,235 @@
+package grails.plugin.databasesessionflushable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.log4j.Logger;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Deletes expired sessions continuously, in small chunks, instead of in one burst. The deletion rate is kept
+ * under {@link #setRowsPerSecond(int)}, and the reaper pauses whenever the persister's own request latency
+ * (see {@link JdbcPersister#getRequestLatencyMillis()}) goes above {@link #setMaxLatencyMillis(long)}.
+ *
+ * @author Robert Fischer
+ */
+public class SessionReaper implements InitializingBean, DisposableBean {
+
+	private final Logger log = Logger.getLogger(getClass());
+
+	private final Object signal = new Object();
+
+	private volatile Thread reaper;
+	private volatile boolean running = false;
+
+	private volatile List<JdbcPersister> persisters = new CopyOnWriteArrayList<JdbcPersister>();
+	/**
+	* The persisters whose expired sessions are deleted, taken in turns.
+	*/
+	public void setPersisters(List<JdbcPersister> persisters) {
+		if(persisters == null) throw new IllegalArgumentException("Cannot assign a null persisters property");
+		this.persisters = new CopyOnWriteArrayList<JdbcPersister>(persisters);
+	}
+	public List<JdbcPersister> getPersisters() {
+		return new ArrayList<JdbcPersister>(persisters);
+	}
+
+	/**
+	* Convenience for reaping a single persister.
+	*/
+	public void setPersister(JdbcPersister persister) {
+		setPersisters(Collections.singletonList(persister));
+	}
+
+	private volatile int rowsPerSecond = 100;
+	/**
+	* The most sessions deleted per second, on average.
+	*/
+	public void setRowsPerSecond(int rowsPerSecond) {
+		this.rowsPerSecond = rowsPerSecond;
+	}
+	public int getRowsPerSecond() {
+		return rowsPerSecond;
+	}
+
+	private volatile int chunkSize = 50;
+	/**
+	* The most sessions deleted by one statement.
+	*/
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	private volatile long maxLatencyMillis = 50;
+	/**
+	* The average request latency of a persister above which reaping it pauses. Zero or less never pauses.
+	*/
+	public void setMaxLatencyMillis(long maxLatencyMillis) {
+		this.maxLatencyMillis = maxLatencyMillis;
+	}
+	public long getMaxLatencyMillis() {
+		return maxLatencyMillis;
+	}
+
+	private volatile long pauseMillis = 5000;
+	/**
+	* How long to pause when the request latency is too high.
+	*/
+	public void setPauseMillis(long pauseMillis) {
+		this.pauseMillis = pauseMillis;
+	}
+	public long getPauseMillis() {
+		return pauseMillis;
+	}
+
+	private volatile long idleIntervalMillis = 60000;
+	/**
+	* How long to wait once there is nothing left to delete.
+	*/
+	public void setIdleIntervalMillis(long idleIntervalMillis) {
+		this.idleIntervalMillis = idleIntervalMillis;
+	}
+	public long getIdleIntervalMillis() {
+		return idleIntervalMillis;
+	}
+
+	/**
+	* How long to wait before looking for rows without {@code expiresAt} again, once there are none left. Rows like
+	* that are only written by older versions of the plugin during a rolling upgrade.
+	*/
+	private static final long BACKFILL_RECHECK_MILLIS = 60 * 60 * 1000;
+
+	/** When to next fill in {@code expiresAt}, per persister. Only used by the reaper thread. */
+	private final Map<JdbcPersister,Long> nextBackfill = new IdentityHashMap<JdbcPersister,Long>();
+
+	private volatile long reapedCount = 0;
+	/**
+	* The number of sessions deleted since startup.
+	*/
+	public long getReapedCount() {
+		return reapedCount;
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		if(persisters.isEmpty()) {
+			throw new IllegalStateException("persisters property must be assigned (cannot be empty)");
+		}
+		if(rowsPerSecond < 1) {
+			throw new IllegalStateException("rowsPerSecond must be positive (was " + rowsPerSecond + ")");
+		}
+		if(chunkSize < 1) {
+			throw new IllegalStateException("chunkSize must be positive (was " + chunkSize + ")");
+		}
+		running = true;
+		reaper = new Thread(new Runnable() {
+			public void run() {
+				reapLoop();
+			}
+		}, "SessionReaper");
+		reaper.setDaemon(true);
+		reaper.start();
+	}
+
+	@Override
+	public void destroy() throws InterruptedException {
+		running = false;
+		final Thread thread = reaper;
+		if(thread != null) {
+			synchronized(signal) {
+				signal.notifyAll();
+			}
+			thread.join(pauseMillis);
+		}
+	}
+
+	private void reapLoop() {
+		log.debug("Starting the session reaper");
+		while(running) {
+			try {
+				sleep(reapRound());
+			} catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch(RuntimeException e) {
+				log.error("Unhandled error in the session reaper", e);
+				try {
+					sleep(pauseMillis);
+				} catch(InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		log.debug("Session reaper stopped");
+	}
+
+	/**
+	* Deletes one chunk from each persister that has expired sessions and is not under load.
+	* @return how long to wait before the next round
+	*/
+	private long reapRound() {
+		final long start = System.currentTimeMillis();
+		int deleted = 0;
+		boolean busy = false;
+		boolean backlog = false;
+		for(JdbcPersister persister : persisters) {
+			if(!running) break;
+			if(maxLatencyMillis > 0 && persister.getRequestLatencyMillis() > maxLatencyMillis) {
+				log.debug("Pausing the reaping of " + persister.getTableName() + ": request latency is " + persister.getRequestLatencyMillis() + "ms");
+				busy = true;
+				continue;
+			}
+			final int chunk = Math.min(chunkSize, rowsPerSecond);
+			final JdbcPersister.Reaped reaped = persister.reap(chunk);
+			deleted += reaped.deleted;
+			if(reaped.selected == chunk) {
+				backlog = true;
+			} else {
+				// Caught up: take the chance to fill in rows written by older versions
+				backfill(persister);
+			}
+		}
+		reapedCount += deleted;
+		if(deleted > 0) log.debug("Reaped " + deleted + " expired sessions");
+
+		if(backlog) {
+			// Spread the deletes so that they average out to the budget
+			final long budgetMillis = deleted * 1000L / rowsPerSecond;
+			return Math.max(0, budgetMillis - (System.currentTimeMillis() - start));
+		}
+		return busy ? pauseMillis : idleIntervalMillis;
+	}
+
+	private void backfill(final JdbcPersister persister) {
+		final Long next = nextBackfill.get(persister);
+		final long now = System.currentTimeMillis();
+		if(next != null && now < next) return;
+		if(persister.backfillExpiresAt() == 0) {
+			nextBackfill.put(persister, now + BACKFILL_RECHECK_MILLIS);
+		} else {
+			nextBackfill.remove(persister);
+		}
+	}
+
+	private void sleep(final long millis) throws InterruptedException {
+		if(millis <= 0) return;
+		synchronized(signal) {
+			if(running) signal.wait(millis);
+		}
+	}
+
+	public String toString() {
+		return "SessionReaper" + persisters;
+	}
+
+}
@@ -0,0 +1,55 @@
+package grails.plugin.databasesessionflushable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The byte layout of a whole session, for persisters which keep sessions as raw bytes outside of a database row:
+ * the id, the timestamps and the timeout, then the attributes as written by {@link SessionSerializer}, then the
+ * version (absent from records written before versions existed).
+ *
+ * @author Robert Fischer
+ */
+final class SessionRecords {
+
+	private SessionRecords() {
+	}
+
+	static byte[] encode(final SessionSerializer serializer, final SessionData session) throws IOException {
+		final byte[] attrs = serializer.serialize(JdbcPersister.storableAttributes(session));
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream(attrs.length + session.sessionId.length() + 32);
+		final DataOutputStream out = new DataOutputStream(baos);
+		out.writeUTF(session.sessionId);
+		out.writeLong(session.createdAt);
+		out.writeLong(session.lastAccessedAt);
+		out.writeInt(session.maxInactiveInterval);
+		out.writeInt(attrs.length);
+		out.write(attrs);
+		out.writeLong(session.version);
+		out.close();
+		return baos.toByteArray();
+	}
+
+	static SessionData decode(final SessionSerializer serializer, final InputStream stream) throws IOException {
+		final DataInputStream in = new DataInputStream(stream);
+		final String sessionId = in.readUTF();
+		final long createdAt = in.readLong();
+		final long lastAccessedAt = in.readLong();
+		final int maxInactiveInterval = in.readInt();
+		final byte[] attrs = new byte[in.readInt()];
+		in.readFully(attrs);
+		final long version = in.available() >= 8 ? in.readLong() : 0L;
+		return new SessionData(sessionId, serializer.deserialize(attrs), createdAt, lastAccessedAt, maxInactiveInterval, version);
+	}
+
+	/**
+	* Whether the session has outlived its timeout at the given time.
+	*/
+	static boolean isExpired(final SessionData session, final long now) {
+		return session.lastAccessedAt + session.maxInactiveInterval * 1000L < now;
+	}
+
+}
@@ -0,0 +1,114 @@
+package grails.plugin.databasesessionflushable;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Decides how the {@link SessionProxyFilter} treats the session of a request, based on its URI. The rules are
+ * compiled once: prefixes into a trie, and the regular expressions of each mode into a single pattern, so that a
+ * request is matched in one pass over its URI and one pattern match per mode, however many rules there are.
+ * <p>
+ * The longest matching prefix decides. Without a matching prefix, the patterns decide, with {@link Mode#BYPASS}
+ * taking precedence over {@link Mode#READ_ONLY}. Requests matching nothing are {@link Mode#NORMAL}.
+ *
+ * @author Robert Fischer
+ */
+public final class SessionRouteRules {
+
+	/**
+	* What happens to the session of a request.
+	*/
+	public enum Mode {
+		/** The session is loaded when used and written when changed. */
+		NORMAL,
+		/** The session is loaded when used, but never written. */
+		READ_ONLY,
+		/** The session is never loaded or written: the request only sees an empty session of its own. */
+		BYPASS
+	}
+
+	/**
+	* Rules matching nothing.
+	*/
+	public static final SessionRouteRules NONE = new SessionRouteRules(new HashMap<String,Mode>(), new HashMap<String,Mode>());
+
+	private static final class Node {
+		final Map<Character,Node> children = new HashMap<Character,Node>(4);
+		Mode mode;
+	}
+
+	private final Node prefixes = new Node();
+	private final Map<Mode,Pattern> patterns = new EnumMap<Mode,Pattern>(Mode.class);
+
+	/**
+	* Compiles the rules.
+	* @param prefixRules URI prefixes, each with the mode of the requests it starts
+	* @param patternRules regular expressions matched against the whole URI, each with the mode of the requests it matches
+	* @throws java.util.regex.PatternSyntaxException if one of the regular expressions is invalid
+	*/
+	public SessionRouteRules(final Map<String,Mode> prefixRules, final Map<String,Mode> patternRules) {
+		for(Map.Entry<String,Mode> rule : prefixRules.entrySet()) {
+			if(rule.getKey() == null || rule.getValue() == null) {
+				throw new IllegalArgumentException("Route prefixes and their modes cannot be null");
+			}
+			Node node = prefixes;
+			for(char c : rule.getKey().toCharArray()) {
+				Node child = node.children.get(c);
+				if(child == null) {
+					child = new Node();
+					node.children.put(c, child);
+				}
+				node = child;
+			}
+			node.mode = rule.getValue();
+		}
+
+		final Map<Mode,List<String>> byMode = new EnumMap<Mode,List<String>>(Mode.class);
+		for(Map.Entry<String,Mode> rule : patternRules.entrySet()) {
+			if(rule.getKey() == null || rule.getValue() == null) {
+				throw new IllegalArgumentException("Route patterns and their modes cannot be null");
+			}
+			Pattern.compile(rule.getKey()); // Reports an invalid expression on its own, rather than the merged one
+			List<String> regexes = byMode.get(rule.getValue());
+			if(regexes == null) {
+				regexes = new ArrayList<String>();
+				byMode.put(rule.getValue(), regexes);
+			}
+			regexes.add(rule.getKey());
+		}
+		for(Map.Entry<Mode,List<String>> entry : byMode.entrySet()) {
+			final StringBuilder merged = new StringBuilder();
+			for(String regex : entry.getValue()) {
+				if(merged.length() > 0) merged.append('|');
+				merged.append("(?:").append(regex).append(')');
+			}
+			patterns.put(entry.getKey(), Pattern.compile(merged.toString()));
+		}
+	}
+
+	/**
+	* The mode of the requests for the URI.
+	*/
+	public Mode match(final String uri) {
+		if(uri == null) return Mode.NORMAL;
+
+		Mode prefixMode = prefixes.mode;
+		Node node = prefixes;
+		for(int i = 0; i < uri.length() && node != null; i++) {
+			node = node.children.get(uri.charAt(i));
+			if(node != null && node.mode != null) prefixMode = node.mode;
+		}
+		if(prefixMode != null) return prefixMode;
+
+		final Pattern bypass = patterns.get(Mode.BYPASS);
+		if(bypass != null && bypass.matcher(uri).matches()) return Mode.BYPASS;
+		final Pattern readOnly = patterns.get(Mode.READ_ONLY);
+		if(readOnly != null && readOnly.matcher(uri).matches()) return Mode.READ_ONLY;
+		return Mode.NORMAL;
+	}
+
+}
@@ -0,0 +1,361 @@
+package grails.plugin.databasesessionflushable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Converts session attributes to and from the stored bytes. Everything written starts with the format byte of
+ * the {@link SessionCodec} that wrote it, so the codec used for writing can be changed at any time: existing rows
+ * are still read with the codec they were written with. Rows written before format bytes were introduced hold
+ * bare JSON and are recognized by their leading <code>'{'</code>.
+ * <p>
+ * By default the attributes are written in a framed layout, where each value is encoded on its own. Reading such
+ * bytes yields {@link EncodedAttribute} values which are only decoded when the application asks for them, and
+ * which are written back without being decoded and encoded again.
+ * <p>
+ * If a {@link SessionCompressor} is assigned, anything at least {@link #setCompressionThreshold(int)} bytes long
+ * is compressed and wrapped with a marker byte and the id of the compressor. Compressed and uncompressed bytes are
+ * both read back, so compression can be switched on and off at any time.
+ *
+ * @author Robert Fischer
+ */
+public class SessionSerializer {
+
+	private static final Logger log = Logger.getLogger(SessionSerializer.class);
+
+	private static final byte LEGACY_JSON_START = '{';
+	private static final byte FRAMED = (byte)0xF0;
+	private static final byte COMPRESSED = (byte)0xF1;
+	private static final int COMPRESSED_HEADER = 6;
+
+	private final SessionCodec[] codecsById = new SessionCodec[256];
+
+	private final SessionCompressor[] compressorsById = new SessionCompressor[256];
+
+	private volatile SessionCodec codec;
+
+	public SessionSerializer() {
+		setCodecs(Arrays.<SessionCodec>asList(
+			new JsonSessionCodec(), new SmileSessionCodec(), new JavaSerializationSessionCodec()
+		));
+		codec = codecsById[JsonSessionCodec.FORMAT_ID];
+		setCompressors(Arrays.<SessionCompressor>asList(new DeflateSessionCompressor(), new Lz4SessionCompressor()));
+	}
+
+	/**
+	* The codec used to write sessions. It is registered for reading as well, if it was not already.
+	*/
+	public void setCodec(SessionCodec codec) {
+		if(codec == null) throw new IllegalArgumentException("Cannot assign a null codec");
+		register(codec);
+		this.codec = codec;
+	}
+	public SessionCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	* Assigns the codec used to write sessions by its name (see {@link SessionCodec#getName()}).
+	*/
+	public void setCodecName(String name) {
+		setCodec(getCodec(name));
+	}
+
+	private volatile boolean lazyAttributes = true;
+	/**
+	* Whether attributes are written in the framed layout and decoded lazily when read back (the default). When
+	* {@code false}, the whole attribute map is encoded by the codec in one go, which is slightly more compact.
+	*/
+	public void setLazyAttributes(boolean lazyAttributes) {
+		this.lazyAttributes = lazyAttributes;
+	}
+	public boolean isLazyAttributes() {
+		return lazyAttributes;
+	}
+
+	private volatile SessionCompressor compressor;
+	/**
+	* The compressor for stored bytes, or {@code null} (the default) not to compress. It is registered for reading
+	* as well, if it was not already.
+	*/
+	public void setCompressor(SessionCompressor compressor) {
+		if(compressor != null) registerCompressor(compressor);
+		this.compressor = compressor;
+	}
+	public SessionCompressor getCompressor() {
+		return compressor;
+	}
+
+	/**
+	* Assigns the compressor by its name (see {@link SessionCompressor#getName()}); {@code none} switches
+	* compression off.
+	*/
+	public void setCompressorName(String name) {
+		setCompressor(name == null || "none".equalsIgnoreCase(name.trim()) ? null : getCompressor(name));
+	}
+
+	private volatile int compressionThreshold = 1024;
+	/**
+	* The smallest number of bytes worth compressing (default 1024). Smaller payloads rarely shrink enough to pay
+	* for the work.
+	*/
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	* Registers compressors for reading, in addition to the built-in ones.
+	*/
+	public void setCompressors(List<SessionCompressor> compressors) {
+		if(compressors == null) throw new IllegalArgumentException("Cannot assign a null compressors property");
+		for(SessionCompressor c : compressors) registerCompressor(c);
+	}
+
+	public List<SessionCompressor> getCompressors() {
+		final List<SessionCompressor> compressors = new ArrayList<SessionCompressor>();
+		synchronized(compressorsById) {
+			for(SessionCompressor c : compressorsById) {
+				if(c != null) compressors.add(c);
+			}
+		}
+		return compressors;
+	}
+
+	private void registerCompressor(SessionCompressor c) {
+		if(c == null) throw new IllegalArgumentException("Cannot register a null compressor");
+		final int id = c.getFormatId() & 0xff;
+		synchronized(compressorsById) {
+			final SessionCompressor existing = compressorsById[id];
+			if(existing != null && existing != c && !existing.getClass().equals(c.getClass())) {
+				throw new IllegalArgumentException(
+					"Format byte " + id + " of compressor " + c.getName() + " is already used by compressor " + existing.getName()
+				);
+			}
+			compressorsById[id] = c;
+		}
+	}
+
+	public SessionCompressor getCompressor(String name) {
+		if(name == null) throw new IllegalArgumentException("Cannot look up a compressor with a null name");
+		for(SessionCompressor c : getCompressors()) {
+			if(c.getName().equalsIgnoreCase(name.trim())) return c;
+		}
+		throw new IllegalArgumentException("Unknown session compressor: " + name);
+	}
+
+	/**
+	* Registers codecs for reading, in addition to the built-in ones.
+	*/
+	public void setCodecs(List<SessionCodec> codecs) {
+		if(codecs == null) throw new IllegalArgumentException("Cannot assign a null codecs property");
+		for(SessionCodec c : codecs) register(c);
+	}
+
+	public List<SessionCodec> getCodecs() {
+		final List<SessionCodec> codecs = new ArrayList<SessionCodec>();
+		synchronized(codecsById) {
+			for(SessionCodec c : codecsById) {
+				if(c != null) codecs.add(c);
+			}
+		}
+		return codecs;
+	}
+
+	private void register(SessionCodec c) {
+		if(c == null) throw new IllegalArgumentException("Cannot register a null codec");
+		final int id = c.getFormatId() & 0xff;
+		if(c.getFormatId() == LEGACY_JSON_START || c.getFormatId() == FRAMED || c.getFormatId() == COMPRESSED) {
+			throw new IllegalArgumentException("Format byte " + id + " of codec " + c.getName() + " is reserved");
+		}
+		synchronized(codecsById) {
+			final SessionCodec existing = codecsById[id];
+			if(existing != null && existing != c && !existing.getClass().equals(c.getClass())) {
+				throw new IllegalArgumentException(
+					"Format byte " + id + " of codec " + c.getName() + " is already used by codec " + existing.getName()
+				);
+			}
+			codecsById[id] = c;
+		}
+	}
+
+	public SessionCodec getCodec(String name) {
+		if(name == null) throw new IllegalArgumentException("Cannot look up a codec with a null name");
+		for(SessionCodec c : getCodecs()) {
+			if(c.getName().equalsIgnoreCase(name.trim())) return c;
+		}
+		throw new IllegalArgumentException("Unknown session codec: " + name);
+	}
+
+	/**
+	* Encodes the attributes: either framed, or with the current codec prefixed by its format byte.
+	*/
+	public byte[] serialize(Map<String,Serializable> attributes) throws IOException {
+		final SessionCodec c = codec;
+		final Map<String,Serializable> attrs = attributes == null ? Collections.<String,Serializable>emptyMap() : attributes;
+		final byte[] bytes = compress(lazyAttributes ? frame(attrs) : prefix(c, c.encode(materialize(attrs))));
+		if(log.isDebugEnabled()) log.debug("Serialized " + attrs.size() + " attributes to " + bytes.length + " bytes as " + c.getName());
+		return bytes;
+	}
+
+	/**
+	* Decodes attributes written by {@link #serialize(Map)} with any registered codec, or stored as bare JSON.
+	* Framed attributes come back as {@link EncodedAttribute} values.
+	*/
+	public Map<String,Serializable> deserialize(byte[] stored) throws IOException {
+		if(stored == null || stored.length == 0) return Collections.emptyMap();
+		final byte[] bytes = uncompress(stored);
+		if(bytes[0] == LEGACY_JSON_START) {
+			return codecsById[JsonSessionCodec.FORMAT_ID].decode(bytes, 0, bytes.length);
+		}
+		if(bytes[0] == FRAMED) {
+			return unframe(bytes);
+		}
+		final SessionCodec c = codecFor(bytes);
+		if(log.isDebugEnabled()) log.debug("Deserializing " + bytes.length + " bytes as " + c.getName());
+		return c.decode(bytes, 1, bytes.length - 1);
+	}
+
+	/**
+	* Encodes a single attribute value with the current codec, prefixed by its format byte. An
+	* {@link EncodedAttribute} is returned as it is.
+	*/
+	public byte[] serializeValue(Serializable value) throws IOException {
+		if(value instanceof EncodedAttribute) return ((EncodedAttribute)value).getBytes();
+		final SessionCodec c = codec;
+		return prefix(c, c.encodeValue(value));
+	}
+
+	/**
+	* Decodes a single attribute value written by {@link #serializeValue(Serializable)} with any registered codec.
+	*/
+	public Serializable deserializeValue(byte[] stored) throws IOException {
+		if(stored == null || stored.length == 0) return null;
+		final byte[] bytes = uncompress(stored);
+		return codecFor(bytes).decodeValue(bytes, 1, bytes.length - 1);
+	}
+
+	/**
+	* Like {@link #deserializeValue(byte[])}, but postpones the decoding if attributes are decoded lazily.
+	*/
+	public Serializable readValue(byte[] bytes) throws IOException {
+		if(lazyAttributes && bytes != null && bytes.length > 0) return new EncodedAttribute(this, bytes);
+		return deserializeValue(bytes);
+	}
+
+	/**
+	* Compresses the bytes if a compressor is assigned, they reach the threshold and compressing actually makes
+	* them smaller. Otherwise they are returned as they are.
+	*/
+	public byte[] compress(byte[] bytes) throws IOException {
+		final SessionCompressor c = compressor;
+		if(c == null || bytes == null || bytes.length < compressionThreshold || bytes[0] == COMPRESSED) return bytes;
+		final byte[] payload = c.compress(bytes, 0, bytes.length);
+		if(payload.length + COMPRESSED_HEADER >= bytes.length) {
+			log.debug("Compressing " + bytes.length + " bytes with " + c.getName() + " did not make them smaller");
+			return bytes;
+		}
+		final byte[] result = new byte[payload.length + COMPRESSED_HEADER];
+		result[0] = COMPRESSED;
+		result[1] = c.getFormatId();
+		result[2] = (byte)(bytes.length >>> 24);
+		result[3] = (byte)(bytes.length >>> 16);
+		result[4] = (byte)(bytes.length >>> 8);
+		result[5] = (byte)bytes.length;
+		System.arraycopy(payload, 0, result, COMPRESSED_HEADER, payload.length);
+		if(log.isDebugEnabled()) log.debug("Compressed " + bytes.length + " bytes to " + result.length + " with " + c.getName());
+		return result;
+	}
+
+	/**
+	* Undoes {@link #compress(byte[])}: bytes which are not compressed are returned as they are.
+	*/
+	public byte[] uncompress(byte[] bytes) throws IOException {
+		if(bytes == null || bytes.length == 0 || bytes[0] != COMPRESSED) return bytes;
+		if(bytes.length < COMPRESSED_HEADER) throw new IOException("Truncated compressed session: " + bytes.length + " bytes");
+		final SessionCompressor c = compressorsById[bytes[1] & 0xff];
+		if(c == null) {
+			throw new IOException("No session compressor registered for format byte " + (bytes[1] & 0xff));
+		}
+		final int length = ((bytes[2] & 0xff) << 24) | ((bytes[3] & 0xff) << 16) | ((bytes[4] & 0xff) << 8) | (bytes[5] & 0xff);
+		return c.decompress(bytes, COMPRESSED_HEADER, bytes.length - COMPRESSED_HEADER, length);
+	}
+
+	/**
+	* Decodes any {@link EncodedAttribute} values, for when the whole map is handed to a codec.
+	*/
+	private static Map<String,Serializable> materialize(Map<String,Serializable> attrs) {
+		Map<String,Serializable> result = attrs;
+		for(Map.Entry<String,Serializable> entry : attrs.entrySet()) {
+			if(entry.getValue() instanceof EncodedAttribute) {
+				if(result == attrs) result = new HashMap<String,Serializable>(attrs);
+				result.put(entry.getKey(), ((EncodedAttribute)entry.getValue()).decode());
+			}
+		}
+		return result;
+	}
+
+	/**
+	* The framed layout: the {@code FRAMED} byte, the attribute count, then the name, length and
+	* {@link #serializeValue(Serializable) encoded value} of each attribute, sorted by name.
+	*/
+	private byte[] frame(Map<String,Serializable> attrs) throws IOException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(baos);
+		out.writeByte(FRAMED);
+		out.writeInt(attrs.size());
+		for(Map.Entry<String,Serializable> entry : new TreeMap<String,Serializable>(attrs).entrySet()) {
+			final byte[] value = serializeValue(entry.getValue());
+			out.writeUTF(entry.getKey());
+			out.writeInt(value.length);
+			out.write(value);
+		}
+		out.close();
+		return baos.toByteArray();
+	}
+
+	private Map<String,Serializable> unframe(byte[] bytes) throws IOException {
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 1, bytes.length - 1));
+		final int count = in.readInt();
+		final Map<String,Serializable> attrs = new HashMap<String,Serializable>(Math.max(4, count * 2));
+		for(int i = 0; i < count; i++) {
+			final String name = in.readUTF();
+			final byte[] value = new byte[in.readInt()];
+			in.readFully(value);
+			attrs.put(name, new EncodedAttribute(this, value));
+		}
+		if(log.isDebugEnabled()) log.debug("Read " + count + " framed attributes from " + bytes.length + " bytes");
+		return attrs;
+	}
+
+	private static byte[] prefix(final SessionCodec c, final byte[] payload) {
+		final byte[] bytes = new byte[payload.length + 1];
+		bytes[0] = c.getFormatId();
+		System.arraycopy(payload, 0, bytes, 1, payload.length);
+		return bytes;
+	}
+
+	private SessionCodec codecFor(final byte[] bytes) throws IOException {
+		final SessionCodec c = codecsById[bytes[0] & 0xff];
+		if(c == null) {
+			throw new IOException("No session codec registered for format byte " + (bytes[0] & 0xff));
+		}
+		return c;
+	}
+
+}
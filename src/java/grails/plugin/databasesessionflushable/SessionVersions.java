@@ -0,0 +1,35 @@
+package grails.plugin.databasesessionflushable;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates the versions written along with sessions. A version is the time in milliseconds, then a sequence
+ * number within that millisecond, then a random number identifying this JVM: versions increase on every node and
+ * over time, and two nodes writing in the same millisecond almost certainly produce different ones.
+ *
+ * @author Robert Fischer
+ */
+final class SessionVersions {
+
+	private static final int NODE_BITS = 8;
+	private static final int SEQUENCE_BITS = 12;
+	private static final long NODE = new SecureRandom().nextInt(1 << NODE_BITS);
+
+	private static final AtomicLong lastStamp = new AtomicLong();
+
+	private SessionVersions() {
+	}
+
+	/**
+	* A new version, greater than any this JVM generated before. Never 0.
+	*/
+	static long next() {
+		while(true) {
+			final long previous = lastStamp.get();
+			final long stamp = Math.max(System.currentTimeMillis() << SEQUENCE_BITS, previous + 1);
+			if(lastStamp.compareAndSet(previous, stamp)) return (stamp << NODE_BITS) | NODE;
+		}
+	}
+
+}
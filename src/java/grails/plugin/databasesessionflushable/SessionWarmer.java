@@ -0,0 +1,263 @@
+package grails.plugin.databasesessionflushable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.log4j.Logger;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Fills a cache tier (usually the {@link InMemoryPersister}) with the most recently accessed sessions after startup,
+ * so that the first minutes of traffic after a deploy do not all go to the database. The sessions are streamed in
+ * the background in chunks, at most {@link #setSessionsPerSecond(int)} of them per second, pausing whenever the
+ * database is slow to answer requests.
+ *
+ * @author Robert Fischer
+ */
+public class SessionWarmer implements InitializingBean, DisposableBean {
+
+	private final Logger log = Logger.getLogger(getClass());
+
+	private final Object signal = new Object();
+
+	private volatile Thread warmer;
+	private volatile boolean running = false;
+
+	private volatile List<JdbcPersister> persisters = new CopyOnWriteArrayList<JdbcPersister>();
+	/**
+	* The persisters the sessions are read from.
+	*/
+	public void setPersisters(List<JdbcPersister> persisters) {
+		if(persisters == null) throw new IllegalArgumentException("Cannot assign a null persisters property");
+		this.persisters = new CopyOnWriteArrayList<JdbcPersister>(persisters);
+	}
+	public List<JdbcPersister> getPersisters() {
+		return new ArrayList<JdbcPersister>(persisters);
+	}
+
+	/**
+	* Convenience for reading from a single persister.
+	*/
+	public void setPersister(JdbcPersister persister) {
+		setPersisters(Collections.singletonList(persister));
+	}
+
+	private volatile Persister cache;
+	/**
+	* The cache tier the sessions are written to.
+	*/
+	public void setCache(Persister cache) {
+		this.cache = cache;
+	}
+	public Persister getCache() {
+		return cache;
+	}
+
+	private volatile SessionChangeTracker changeTracker;
+	/**
+	* The tracker of the writes and invalidations made by requests, usually the {@link ChainPersister}'s. A session
+	* which requests change while it is being loaded is not left in the cache. Without one, the warm-up may cache a
+	* copy of a session older than a write that raced with it.
+	*/
+	public void setChangeTracker(SessionChangeTracker changeTracker) {
+		this.changeTracker = changeTracker;
+	}
+	public SessionChangeTracker getChangeTracker() {
+		return changeTracker;
+	}
+
+	private volatile int maxSessions = 10000;
+	/**
+	* The most sessions loaded from each persister.
+	*/
+	public void setMaxSessions(int maxSessions) {
+		this.maxSessions = maxSessions;
+	}
+	public int getMaxSessions() {
+		return maxSessions;
+	}
+
+	private volatile int maxAgeSeconds = 1800;
+	/**
+	* Only sessions accessed within this many seconds before startup are loaded.
+	*/
+	public void setMaxAgeSeconds(int maxAgeSeconds) {
+		this.maxAgeSeconds = maxAgeSeconds;
+	}
+	public int getMaxAgeSeconds() {
+		return maxAgeSeconds;
+	}
+
+	private volatile int sessionsPerSecond = 500;
+	/**
+	* The most sessions loaded per second, on average.
+	*/
+	public void setSessionsPerSecond(int sessionsPerSecond) {
+		this.sessionsPerSecond = sessionsPerSecond;
+	}
+	public int getSessionsPerSecond() {
+		return sessionsPerSecond;
+	}
+
+	private volatile int chunkSize = 100;
+	/**
+	* The most sessions loaded by one query.
+	*/
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	private volatile long maxLatencyMillis = 50;
+	/**
+	* The average request latency of a persister above which loading from it pauses. Zero or less never pauses.
+	*/
+	public void setMaxLatencyMillis(long maxLatencyMillis) {
+		this.maxLatencyMillis = maxLatencyMillis;
+	}
+	public long getMaxLatencyMillis() {
+		return maxLatencyMillis;
+	}
+
+	private volatile long pauseMillis = 1000;
+	/**
+	* How long to pause when the request latency is too high.
+	*/
+	public void setPauseMillis(long pauseMillis) {
+		this.pauseMillis = pauseMillis;
+	}
+	public long getPauseMillis() {
+		return pauseMillis;
+	}
+
+	private volatile long warmedCount = 0;
+	/**
+	* The number of sessions loaded into the cache so far.
+	*/
+	public long getWarmedCount() {
+		return warmedCount;
+	}
+
+	/**
+	* Whether the warm-up is still under way.
+	*/
+	public boolean isWarming() {
+		final Thread thread = warmer;
+		return thread != null && thread.isAlive();
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		if(persisters.isEmpty()) {
+			throw new IllegalStateException("persisters property must be assigned (cannot be empty)");
+		}
+		if(cache == null) {
+			throw new IllegalStateException("cache property must be assigned (cannot be null)");
+		}
+		if(sessionsPerSecond < 1) {
+			throw new IllegalStateException("sessionsPerSecond must be positive (was " + sessionsPerSecond + ")");
+		}
+		if(chunkSize < 1) {
+			throw new IllegalStateException("chunkSize must be positive (was " + chunkSize + ")");
+		}
+		running = true;
+		warmer = new Thread(new Runnable() {
+			public void run() {
+				warm();
+			}
+		}, "SessionWarmer");
+		warmer.setDaemon(true);
+		warmer.start();
+	}
+
+	@Override
+	public void destroy() throws InterruptedException {
+		running = false;
+		final Thread thread = warmer;
+		if(thread != null) {
+			synchronized(signal) {
+				signal.notifyAll();
+			}
+			thread.join(pauseMillis);
+		}
+	}
+
+	private void warm() {
+		final long start = System.currentTimeMillis();
+		final long since = start - maxAgeSeconds * 1000L;
+		try {
+			for(JdbcPersister persister : persisters) {
+				if(!running) break;
+				warmFrom(persister, persister.getRecentSessionIds(since, maxSessions));
+			}
+			log.info("Warmed up the session cache with " + warmedCount + " sessions in " + (System.currentTimeMillis() - start) + "ms");
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} catch(RuntimeException e) {
+			log.error("Could not warm up the session cache (warmed " + warmedCount + " sessions)", e);
+		}
+	}
+
+	private void warmFrom(final JdbcPersister persister, final List<String> sessionIds) throws InterruptedException {
+		log.debug("Warming up " + sessionIds.size() + " sessions from " + persister.getTableName());
+		for(int from = 0; from < sessionIds.size() && running; ) {
+			if(maxLatencyMillis > 0 && persister.getRequestLatencyMillis() > maxLatencyMillis) {
+				log.debug("Pausing the warm-up: request latency is " + persister.getRequestLatencyMillis() + "ms");
+				sleep(pauseMillis);
+				continue;
+			}
+			final long chunkStart = System.currentTimeMillis();
+			final List<String> chunk = sessionIds.subList(from, Math.min(sessionIds.size(), from + chunkSize));
+			from += chunk.size();
+
+			final SessionChangeTracker tracker = changeTracker;
+			final Map<String,Long> changes = new HashMap<String,Long>();
+			if(tracker != null) {
+				for(String sessionId : chunk) changes.put(sessionId, tracker.count(sessionId));
+			}
+
+			// Sessions which requests have already brought into the cache are at least as recent as ours
+			final List<String> missing = new ArrayList<String>(chunk);
+			missing.removeAll(cache.getSessionsData(chunk).keySet());
+			if(missing.isEmpty()) continue;
+			final Map<String,SessionData> loaded = persister.getSessionsData(missing);
+			loaded.keySet().removeAll(cache.getSessionsData(missing).keySet());
+			cache.persistSessions(loaded.values());
+			if(tracker != null) {
+				// A request changed these while they were loaded, so the copies may be out of date
+				final List<String> changed = new ArrayList<String>();
+				for(String sessionId : loaded.keySet()) {
+					if(tracker.changedSince(sessionId, changes.get(sessionId))) changed.add(sessionId);
+				}
+				if(!changed.isEmpty()) {
+					cache.invalidateAll(changed);
+					loaded.keySet().removeAll(changed);
+				}
+			}
+			warmedCount += loaded.size();
+
+			// Spread the loads so that they average out to the budget
+			sleep(chunk.size() * 1000L / sessionsPerSecond - (System.currentTimeMillis() - chunkStart));
+		}
+	}
+
+	private void sleep(final long millis) throws InterruptedException {
+		if(millis <= 0) return;
+		synchronized(signal) {
+			if(running) signal.wait(millis);
+		}
+	}
+
+	public String toString() {
+		return "SessionWarmer" + persisters;
+	}
+
+}
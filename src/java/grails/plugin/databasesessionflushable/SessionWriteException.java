@@ -0,0 +1,32 @@
+package grails.plugin.databasesessionflushable;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Thrown by {@link Persister#persistSessions(Collection)} when some of the sessions were not stored. They are
+ * listed, so that the caller can try those again on their own.
+ *
+ * @author Robert Fischer
+ */
+public class SessionWriteException extends RuntimeException {
+
+	private static final long serialVersionUID = 1;
+
+	private final Set<String> sessionIds;
+
+	public SessionWriteException(String message, Collection<String> sessionIds, Throwable cause) {
+		super(message, cause);
+		this.sessionIds = Collections.unmodifiableSet(new LinkedHashSet<String>(sessionIds));
+	}
+
+	/**
+	* The ids of the sessions which were not stored.
+	*/
+	public Set<String> getSessionIds() {
+		return sessionIds;
+	}
+
+}
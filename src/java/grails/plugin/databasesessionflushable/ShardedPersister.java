@@ -0,0 +1,314 @@
+package grails.plugin.databasesessionflushable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * A {@link Persister} that spreads sessions over several persisters (usually {@link JdbcPersister}s on different
+ * databases or tables), routing each session id to one shard by consistent hashing.
+ * <p>
+ * To add shards without losing sessions, list the shard names used until then as {@link #setPreviousShardNames(List)}.
+ * A session not found on its new shard is then looked up on the shard it used to belong to, and moved over. Once
+ * the sessions left on the old shards have expired, the previous shard names can be dropped.
+ *
+ * @author Robert Fischer
+ */
+public class ShardedPersister extends AbstractPersister implements VersionedPersister, InitializingBean {
+
+	private final Logger log = Logger.getLogger(getClass());
+
+	private volatile Map<String,Persister> shards = Collections.emptyMap();
+	/**
+	* The shards by name. The names place the shards on the hash ring, so they must not change once sessions have
+	* been written.
+	*/
+	public void setShards(Map<String,Persister> shards) {
+		if(shards == null) throw new IllegalArgumentException("Cannot assign a null shards property");
+		this.shards = Collections.unmodifiableMap(new LinkedHashMap<String,Persister>(shards));
+	}
+	public Map<String,Persister> getShards() {
+		return shards;
+	}
+
+	private volatile List<String> activeShardNames;
+	/**
+	* The shards which receive sessions; by default, all of them. Leaving a shard out drains it: its sessions are
+	* still found and moved away as long as it is listed in the previous shard names.
+	*/
+	public void setActiveShardNames(List<String> activeShardNames) {
+		this.activeShardNames = activeShardNames;
+	}
+	public List<String> getActiveShardNames() {
+		return activeShardNames;
+	}
+
+	private volatile List<String> previousShardNames;
+	/**
+	* The shards which received sessions before the current layout, or {@code null} if the layout never changed.
+	*/
+	public void setPreviousShardNames(List<String> previousShardNames) {
+		this.previousShardNames = previousShardNames;
+	}
+	public List<String> getPreviousShardNames() {
+		return previousShardNames;
+	}
+
+	private volatile int virtualNodes = 160;
+	/**
+	* How many points each shard has on the hash ring. More points spread the sessions more evenly.
+	*/
+	public void setVirtualNodes(int virtualNodes) {
+		this.virtualNodes = virtualNodes;
+	}
+	public int getVirtualNodes() {
+		return virtualNodes;
+	}
+
+	private volatile HashRing ring;
+	private volatile HashRing previousRing;
+
+	@Override
+	public void afterPropertiesSet() {
+		if(shards.isEmpty()) {
+			throw new IllegalStateException("shards property must be assigned (cannot be empty)");
+		}
+		if(virtualNodes < 1) {
+			throw new IllegalStateException("virtualNodes must be positive (was " + virtualNodes + ")");
+		}
+		final List<String> active = activeShardNames == null ? new ArrayList<String>(shards.keySet()) : activeShardNames;
+		checkShardNames("activeShardNames", active);
+		ring = new HashRing(active, virtualNodes);
+		if(previousShardNames != null && !previousShardNames.isEmpty()) {
+			checkShardNames("previousShardNames", previousShardNames);
+			previousRing = new HashRing(previousShardNames, virtualNodes);
+		} else {
+			previousRing = null;
+		}
+		log.info("Sharding sessions over " + active + (previousRing == null ? "" : " (previously " + previousShardNames + ")"));
+	}
+
+	private void checkShardNames(final String property, final List<String> names) {
+		if(names.isEmpty()) {
+			throw new IllegalStateException(property + " cannot be empty");
+		}
+		for(String name : names) {
+			if(!shards.containsKey(name)) {
+				throw new IllegalStateException(property + " names shard " + name + ", which is not in the shards property");
+			}
+		}
+	}
+
+	/**
+	* The shard a session belongs to.
+	*/
+	public Persister shardFor(final String sessionId) {
+		return shards.get(ring.nodeFor(sessionId));
+	}
+
+	/**
+	* The shard a session belonged to before the current layout, if that is a different one; otherwise {@code null}.
+	*/
+	private Persister previousShardFor(final String sessionId) {
+		final HashRing previous = previousRing;
+		if(previous == null) return null;
+		final Persister shard = shards.get(previous.nodeFor(sessionId));
+		return shard == shardFor(sessionId) ? null : shard;
+	}
+
+	@Override
+	public void persistSession(final SessionData sessionData) {
+		if(sessionData == null) return;
+		shardFor(sessionData.sessionId).persistSession(sessionData);
+	}
+
+	/**
+	* Retrieves the session from its shard, moving it over from its previous shard if need be. May be {@code null}.
+	*/
+	@Override
+	public SessionData getSessionData(final String sessionId) {
+		final Persister shard = shardFor(sessionId);
+		final SessionData data = shard.getSessionData(sessionId);
+		if(data != null) return data;
+
+		final Persister previous = previousShardFor(sessionId);
+		if(previous == null) return null;
+		final SessionData moved = previous.getSessionData(sessionId);
+		return moved == null ? null : move(moved, previous, shard);
+	}
+
+	/**
+	* Moves a session found on its previous shard to its new one, and returns the session as now stored. If the
+	* session was written to the new shard meanwhile, that newer copy is kept and returned instead. If the move
+	* fails, the session is left on its previous shard.
+	*/
+	private SessionData move(final SessionData session, final Persister previous, final Persister shard) {
+		final String sessionId = session.sessionId;
+		log.debug("Moving session " + sessionId + " to its new shard");
+		final SessionData current;
+		try {
+			current = storeIfAbsent(shard, session) ? session : shard.getSessionData(sessionId);
+		} catch(RuntimeException e) {
+			log.warn("Could not move session " + sessionId + " to " + shard, e);
+			return session;
+		}
+		previous.invalidate(sessionId);
+		return current;
+	}
+
+	/**
+	* Stores the session on the shard unless it is already there. Only a {@link JdbcPersister} can do that in one
+	* step; on other shards, a write racing with the check can still be overwritten.
+	*/
+	private static boolean storeIfAbsent(final Persister shard, final SessionData session) {
+		if(shard instanceof JdbcPersister) return ((JdbcPersister)shard).persistSessionIfAbsent(session);
+		if(shard.isValid(session.sessionId)) return false;
+		shard.persistSession(session);
+		return true;
+	}
+
+	/**
+	* Groups the session ids by shard, so that each shard is asked only once. Only the sessions left over are looked
+	* up on their previous shards, and moved as {@link #getSessionData(String)} does.
+	*/
+	@Override
+	public Map<String,SessionData> getSessionsData(final Collection<String> sessionIds) {
+		final Map<String,SessionData> found = new HashMap<String,SessionData>();
+		if(sessionIds == null || sessionIds.isEmpty()) return found;
+		for(Map.Entry<Persister,List<String>> group : groupByShard(sessionIds, false).entrySet()) {
+			found.putAll(group.getKey().getSessionsData(group.getValue()));
+		}
+		if(previousRing == null || found.size() == sessionIds.size()) return found;
+
+		final List<String> missing = new ArrayList<String>();
+		for(String sessionId : sessionIds) {
+			if(!found.containsKey(sessionId)) missing.add(sessionId);
+		}
+		for(Map.Entry<Persister,List<String>> group : groupByShard(missing, true).entrySet()) {
+			// Only the sessions left behind by the last layout change move, so they are moved one at a time
+			for(SessionData session : group.getKey().getSessionsData(group.getValue()).values()) {
+				final SessionData current = move(session, group.getKey(), shardFor(session.sessionId));
+				if(current != null) found.put(current.sessionId, current);
+			}
+		}
+		return found;
+	}
+
+	@Override
+	public void persistSessions(final Collection<SessionData> sessions) {
+		if(sessions == null || sessions.isEmpty()) return;
+		final Map<Persister,List<SessionData>> groups = new IdentityHashMap<Persister,List<SessionData>>();
+		for(SessionData session : sessions) {
+			if(session == null) continue;
+			final Persister shard = shardFor(session.sessionId);
+			List<SessionData> group = groups.get(shard);
+			if(group == null) groups.put(shard, group = new ArrayList<SessionData>());
+			group.add(session);
+		}
+		// A failing shard does not keep the others from being written; the sessions it did not store are reported
+		final Set<String> failed = new LinkedHashSet<String>();
+		RuntimeException error = null;
+		for(Map.Entry<Persister,List<SessionData>> group : groups.entrySet()) {
+			try {
+				group.getKey().persistSessions(group.getValue());
+			} catch(SessionWriteException e) {
+				failed.addAll(e.getSessionIds());
+				if(error == null) error = e;
+			} catch(RuntimeException e) {
+				for(SessionData session : group.getValue()) failed.add(session.sessionId);
+				if(error == null) error = e;
+			}
+		}
+		if(!failed.isEmpty()) {
+			throw new SessionWriteException("Could not persist " + failed.size() + " sessions on their shards", failed, error);
+		}
+	}
+
+	@Override
+	public void invalidateAll(final Collection<String> sessionIds) {
+		if(sessionIds == null || sessionIds.isEmpty()) return;
+		for(Map.Entry<Persister,List<String>> group : groupByShard(sessionIds, false).entrySet()) {
+			group.getKey().invalidateAll(group.getValue());
+		}
+		if(previousRing == null) return;
+		for(Map.Entry<Persister,List<String>> group : groupByShard(sessionIds, true).entrySet()) {
+			group.getKey().invalidateAll(group.getValue());
+		}
+	}
+
+	/**
+	* Groups the session ids by their current shard, or by their previous shard if it differs from the current one.
+	*/
+	private Map<Persister,List<String>> groupByShard(final Collection<String> sessionIds, final boolean previous) {
+		final Map<Persister,List<String>> groups = new IdentityHashMap<Persister,List<String>>();
+		for(String sessionId : sessionIds) {
+			final Persister shard = previous ? previousShardFor(sessionId) : shardFor(sessionId);
+			if(shard == null) continue;
+			List<String> group = groups.get(shard);
+			if(group == null) groups.put(shard, group = new ArrayList<String>());
+			group.add(sessionId);
+		}
+		return groups;
+	}
+
+	@Override
+	public void invalidate(final String sessionId) {
+		shardFor(sessionId).invalidate(sessionId);
+		final Persister previous = previousShardFor(sessionId);
+		if(previous != null) previous.invalidate(sessionId);
+	}
+
+	/**
+	* The version of the session on its shard, or on its previous shard if it has not moved yet. A shard which does
+	* not store versions reports {@code 0}.
+	*/
+	@Override
+	public long getVersion(final String sessionId) {
+		final long version = versionOn(shardFor(sessionId), sessionId);
+		if(version >= 0) return version;
+		final Persister previous = previousShardFor(sessionId);
+		return previous == null ? -1 : versionOn(previous, sessionId);
+	}
+
+	private static long versionOn(final Persister shard, final String sessionId) {
+		if(shard instanceof VersionedPersister) return ((VersionedPersister)shard).getVersion(sessionId);
+		return shard.isValid(sessionId) ? 0 : -1;
+	}
+
+	@Override
+	public boolean isValid(final String sessionId) {
+		if(shardFor(sessionId).isValid(sessionId)) return true;
+		final Persister previous = previousShardFor(sessionId);
+		return previous != null && previous.isValid(sessionId);
+	}
+
+	/**
+	* Cleans up each shard in turn. A failing shard does not keep the others from being cleaned up.
+	*/
+	@Override
+	public void cleanUp() {
+		for(Map.Entry<String,Persister> shard : shards.entrySet()) {
+			try {
+				shard.getValue().cleanUp();
+			} catch(RuntimeException e) {
+				log.error("Error cleaning up session shard " + shard.getKey(), e);
+			}
+		}
+	}
+
+	public String toString() {
+		return "ShardedPersister" + shards.keySet();
+	}
+
+}
@@ -0,0 +1,29 @@
+package grails.plugin.databasesessionflushable;
+
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Encodes the attributes as Smile, Jackson's binary JSON format. It maps the same values as the
+ * {@link JsonSessionCodec}, but is smaller and cheaper to parse.
+ *
+ * @author Robert Fischer
+ */
+public class SmileSessionCodec extends JacksonSessionCodec {
+
+	public static final byte FORMAT_ID = 2;
+
+	public SmileSessionCodec() {
+		super(new SmileFactory());
+	}
+
+	@Override
+	public byte getFormatId() {
+		return FORMAT_ID;
+	}
+
+	@Override
+	public String getName() {
+		return "smile";
+	}
+
+}
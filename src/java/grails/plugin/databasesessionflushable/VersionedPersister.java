@@ -0,0 +1,17 @@
+package grails.plugin.databasesessionflushable;
+
+/**
+ * A {@link Persister} which stores a version with each session, which changes whenever the session is written.
+ * It lets a cache check that its copy of a session is current without reading the whole session.
+ *
+ * @author Robert Fischer
+ */
+public interface VersionedPersister extends Persister {
+
+	/**
+	* The version of the stored session, {@code 0} if it is stored without one, or {@code -1} if there is no such
+	* session.
+	*/
+	long getVersion(String sessionId);
+
+}
@@ -0,0 +1,401 @@
+package grails.plugin.databasesessionflushable;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * A {@link Persister} that queues writes and hands them to another persister from a background thread. Writes
+ * to the same session are coalesced, so only the latest {@link SessionData} queued for a session is ever written.
+ * Invalidations travel through the same queue so that they cannot be overtaken by an older write.
+ * <p>
+ * Until a queued write has landed, reads for that session are answered from the queue, so a node always sees its
+ * own writes. If the queue is full, writes for sessions not already queued go straight to the underlying persister.
+ *
+ * @author Robert Fischer
+ */
+public class WriteBehindPersister extends AbstractPersister implements VersionedPersister, InitializingBean, DisposableBean {
+
+	private final Logger log = Logger.getLogger(getClass());
+
+	/**
+	* A queued operation: either a write of {@link #data}, or an invalidation if that is {@code null}.
+	*/
+	private static final class PendingWrite {
+		public final SessionData data;
+		/** How many times writing this has failed already. */
+		public final int failures;
+
+		public PendingWrite(final SessionData data) {
+			this(data, 0);
+		}
+
+		private PendingWrite(final SessionData data, final int failures) {
+			this.data = data;
+			this.failures = failures;
+		}
+
+		public boolean isInvalidation() {
+			return data == null;
+		}
+
+		public PendingWrite failed() {
+			return new PendingWrite(data, failures + 1);
+		}
+	}
+
+	private final ConcurrentMap<String,PendingWrite> pending = new ConcurrentHashMap<String,PendingWrite>();
+	private final ConcurrentMap<String,PendingWrite> inFlight = new ConcurrentHashMap<String,PendingWrite>();
+	private final Object signal = new Object();
+
+	private volatile Thread writer;
+	private volatile boolean running = false;
+
+	private volatile Persister persister;
+	/**
+	* The persister that receives the writes (usually a {@link JdbcPersister}).
+	*/
+	public void setPersister(Persister persister) {
+		this.persister = persister;
+	}
+	public Persister getPersister() {
+		return persister;
+	}
+
+	private volatile long flushIntervalMillis = 1000;
+	/**
+	* How long the background writer waits between flushes when the queue has not filled a batch.
+	*/
+	public void setFlushIntervalMillis(long flushIntervalMillis) {
+		this.flushIntervalMillis = flushIntervalMillis;
+	}
+	public long getFlushIntervalMillis() {
+		return flushIntervalMillis;
+	}
+
+	private volatile int maxQueueDepth = 10000;
+	/**
+	* The number of distinct sessions that may be waiting to be written.
+	*/
+	public void setMaxQueueDepth(int maxQueueDepth) {
+		this.maxQueueDepth = maxQueueDepth;
+	}
+	public int getMaxQueueDepth() {
+		return maxQueueDepth;
+	}
+
+	private volatile int maxBatchSize = 500;
+	/**
+	* The largest number of sessions written in one batch.
+	*/
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	private volatile long shutdownTimeoutMillis = 30000;
+	/**
+	* How long shutting down waits for the background writer before draining the queue itself.
+	*/
+	public void setShutdownTimeoutMillis(long shutdownTimeoutMillis) {
+		this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+	}
+	public long getShutdownTimeoutMillis() {
+		return shutdownTimeoutMillis;
+	}
+
+	private volatile int maxRetries = 3;
+	/**
+	* How many times a write that failed is queued again before it is given up on. A newer write queued for the same
+	* session in the meantime replaces it.
+	*/
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	* The number of sessions currently waiting to be written.
+	*/
+	public int getQueueDepth() {
+		return pending.size();
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		if(persister == null) {
+			throw new IllegalStateException("persister property must be assigned (cannot be null)");
+		}
+		if(maxQueueDepth < 1) {
+			throw new IllegalStateException("maxQueueDepth must be positive (was " + maxQueueDepth + ")");
+		}
+		if(maxBatchSize < 1) {
+			throw new IllegalStateException("maxBatchSize must be positive (was " + maxBatchSize + ")");
+		}
+		running = true;
+		writer = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "WriteBehindPersister");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	* Stops the background writer and writes out anything still queued.
+	*/
+	@Override
+	public void destroy() throws InterruptedException {
+		running = false;
+		final Thread thread = writer;
+		if(thread != null) {
+			synchronized(signal) {
+				signal.notifyAll();
+			}
+			thread.join(shutdownTimeoutMillis);
+			if(thread.isAlive()) {
+				log.warn("Background session writer did not stop within " + shutdownTimeoutMillis + "ms; draining the queue directly");
+			}
+		}
+		drain();
+	}
+
+	private void writeLoop() {
+		log.debug("Starting the background session writer");
+		while(running) {
+			try {
+				synchronized(signal) {
+					if(running && pending.size() < maxBatchSize) {
+						signal.wait(flushIntervalMillis);
+					}
+				}
+				drain();
+			} catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch(RuntimeException e) {
+				log.error("Unhandled error in the background session writer", e);
+			}
+		}
+		log.debug("Background session writer stopped");
+	}
+
+	/**
+	* Writes batches until the queue is empty.
+	*/
+	private void drain() {
+		while(!pending.isEmpty()) {
+			flushBatch();
+		}
+	}
+
+	private void flushBatch() {
+		final List<SessionData> writes = new ArrayList<SessionData>();
+		final List<String> invalidations = new ArrayList<String>();
+		final List<Map.Entry<String,PendingWrite>> taken = new ArrayList<Map.Entry<String,PendingWrite>>();
+		final List<Map.Entry<String,PendingWrite>> takenWrites = new ArrayList<Map.Entry<String,PendingWrite>>();
+		final List<Map.Entry<String,PendingWrite>> takenInvalidations = new ArrayList<Map.Entry<String,PendingWrite>>();
+
+		for(Iterator<Map.Entry<String,PendingWrite>> it = pending.entrySet().iterator(); it.hasNext() && taken.size() < maxBatchSize; ) {
+			final Map.Entry<String,PendingWrite> entry = it.next();
+			final String sessionId = entry.getKey();
+			final PendingWrite write = entry.getValue();
+
+			// Publish to inFlight before leaving pending, so that readers always find the write somewhere
+			inFlight.put(sessionId, write);
+			if(!pending.remove(sessionId, write)) {
+				// A newer write arrived: it stays queued, and this older one is still safe to write now
+				log.debug("Session " + sessionId + " was written again while being flushed");
+			}
+			final Map.Entry<String,PendingWrite> took = new AbstractMap.SimpleImmutableEntry<String,PendingWrite>(sessionId, write);
+			taken.add(took);
+			if(write.isInvalidation()) {
+				invalidations.add(sessionId);
+				takenInvalidations.add(took);
+			} else {
+				writes.add(write.data);
+				takenWrites.add(took);
+			}
+		}
+		if(taken.isEmpty()) return;
+
+		log.debug("Flushing " + writes.size() + " session writes and " + invalidations.size() + " invalidations");
+		try {
+			if(!writes.isEmpty()) {
+				try {
+					persister.persistSessions(writes);
+				} catch(SessionWriteException e) {
+					log.error("Error flushing " + e.getSessionIds().size() + " of " + writes.size() + " queued session writes", e);
+					requeue(takenWrites, e.getSessionIds());
+				} catch(RuntimeException e) {
+					log.error("Error flushing " + writes.size() + " queued session writes", e);
+					requeue(takenWrites, null);
+				}
+			}
+			if(!invalidations.isEmpty()) {
+				try {
+					persister.invalidateAll(invalidations);
+				} catch(RuntimeException e) {
+					log.error("Error flushing " + invalidations.size() + " queued session invalidations", e);
+					requeue(takenInvalidations, null);
+				}
+			}
+		} finally {
+			for(Map.Entry<String,PendingWrite> entry : taken) {
+				inFlight.remove(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	* Queues failed operations again, unless a newer one was queued for the session meanwhile. This happens before
+	* they leave {@link #inFlight}, so that readers keep seeing them.
+	* @param failedIds the sessions which failed, or {@code null} if they all did
+	*/
+	private void requeue(final List<Map.Entry<String,PendingWrite>> taken, final Set<String> failedIds) {
+		for(Map.Entry<String,PendingWrite> entry : taken) {
+			if(failedIds != null && !failedIds.contains(entry.getKey())) continue;
+			final PendingWrite write = entry.getValue();
+			if(write.failures >= maxRetries) {
+				log.error("Giving up on " + (write.isInvalidation() ? "invalidating" : "writing") + " session " + entry.getKey() +
+					" after " + (write.failures + 1) + " attempts");
+				continue;
+			}
+			pending.putIfAbsent(entry.getKey(), write.failed());
+		}
+	}
+
+	private void enqueue(final String sessionId, final PendingWrite write) {
+		if(running && (pending.size() < maxQueueDepth || pending.containsKey(sessionId) || inFlight.containsKey(sessionId))) {
+			pending.put(sessionId, write);
+			if(pending.size() >= maxBatchSize) {
+				synchronized(signal) {
+					signal.notifyAll();
+				}
+			}
+			return;
+		}
+		if(inFlight.containsKey(sessionId)) {
+			// An older write is being flushed and is queued again if it fails, so writing this one directly could be
+			// overwritten by the retry. Queue it instead: the flush drains it, unless the flush has just finished.
+			pending.put(sessionId, write);
+			if(inFlight.containsKey(sessionId) || !pending.remove(sessionId, write)) return;
+		}
+
+		log.debug("Write-behind queue is full or stopped: writing session " + sessionId + " directly");
+		if(write.isInvalidation()) {
+			persister.invalidate(sessionId);
+		} else {
+			persister.persistSession(write.data);
+		}
+	}
+
+	/**
+	* Looks up the latest queued operation for the session, or {@code null} if nothing is waiting to be written.
+	*/
+	private PendingWrite findQueued(final String sessionId) {
+		final PendingWrite write = pending.get(sessionId);
+		if(write != null) return write;
+		return inFlight.get(sessionId);
+	}
+
+	/**
+	* Queues the session to be written. The sessionData may be {@code null}.
+	*/
+	@Override
+	public void persistSession(final SessionData sessionData) {
+		if(sessionData == null) return;
+		log.debug("Queueing session for write: " + sessionData);
+		enqueue(sessionData.sessionId, new PendingWrite(sessionData));
+	}
+
+	/**
+	* Retrieves the session data, preferring a write that has not landed yet. May be {@code null}.
+	*/
+	@Override
+	public SessionData getSessionData(final String sessionId) {
+		final PendingWrite write = findQueued(sessionId);
+		if(write != null) {
+			log.debug("Serving session " + sessionId + " from the write-behind queue");
+			return write.data;
+		}
+		return persister.getSessionData(sessionId);
+	}
+
+	/**
+	* Retrieves a number of sessions, preferring writes that have not landed yet, and reading the others from the
+	* underlying persister at once.
+	*/
+	@Override
+	public Map<String,SessionData> getSessionsData(final Collection<String> sessionIds) {
+		final Map<String,SessionData> found = new HashMap<String,SessionData>();
+		if(sessionIds == null || sessionIds.isEmpty()) return found;
+		final List<String> unqueued = new ArrayList<String>(sessionIds.size());
+		for(String sessionId : sessionIds) {
+			final PendingWrite write = findQueued(sessionId);
+			if(write == null) {
+				unqueued.add(sessionId);
+			} else if(!write.isInvalidation()) {
+				found.put(sessionId, write.data);
+			}
+		}
+		if(!unqueued.isEmpty()) found.putAll(persister.getSessionsData(unqueued));
+		return found;
+	}
+
+	/**
+	 * Queues the session to be deleted.
+	 * @param sessionId the session id
+	 */
+	@Override
+	public void invalidate(final String sessionId) {
+		log.debug("Queueing invalidation of session " + sessionId);
+		enqueue(sessionId, new PendingWrite(null));
+	}
+
+	/**
+	* The version of a write that has not landed yet, or else the version stored by the underlying persister.
+	*/
+	@Override
+	public long getVersion(final String sessionId) {
+		final PendingWrite write = findQueued(sessionId);
+		if(write != null) return write.isInvalidation() ? -1 : write.data.version;
+		if(persister instanceof VersionedPersister) return ((VersionedPersister)persister).getVersion(sessionId);
+		return persister.isValid(sessionId) ? 0 : -1;
+	}
+
+	@Override
+	public boolean isValid(final String sessionId) {
+		final PendingWrite write = findQueued(sessionId);
+		if(write != null) return !write.isInvalidation();
+		return persister.isValid(sessionId);
+	}
+
+	@Override
+	public void cleanUp() {
+		persister.cleanUp();
+	}
+
+	public String toString() {
+		return "WriteBehindPersister[" + persister + "]";
+	}
+
+}
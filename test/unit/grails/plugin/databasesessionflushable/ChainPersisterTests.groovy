@@ -0,0 +1,87 @@
+package grails.plugin.databasesessionflushable
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+import static grails.plugin.databasesessionflushable.H2Persisters.session
+
+class ChainPersisterTests {
+
+	/**
+	* Runs {@code afterRead} once a read has found its sessions, before the chain gets them back.
+	*/
+	static class RacingPersister extends InMemoryPersister {
+		Closure afterRead
+
+		@Override
+		SessionData getSessionData(String sessionId) {
+			def data = super.getSessionData(sessionId)
+			race()
+			data
+		}
+
+		@Override
+		Map<String,SessionData> getSessionsData(Collection<String> sessionIds) {
+			def data = super.getSessionsData(sessionIds)
+			race()
+			data
+		}
+
+		private void race() {
+			def hook = afterRead
+			afterRead = null
+			if(hook) hook()
+		}
+	}
+
+	private InMemoryPersister cache
+	private RacingPersister store
+	private ChainPersister chain
+
+	@Before
+	void createChain() {
+		cache = new InMemoryPersister()
+		cache.afterPropertiesSet()
+		store = new RacingPersister()
+		store.afterPropertiesSet()
+		chain = new ChainPersister(persisters: [cache, store])
+		chain.afterPropertiesSet()
+	}
+
+	@After
+	void destroyChain() {
+		chain.destroy()
+	}
+
+	@Test
+	void backfillsTheCachesOnARead() {
+		store.persistSession(session('s1', [v: 1]))
+
+		assert chain.getSessionData('s1') != null
+		assert cache.getSessionData('s1') != null
+	}
+
+	@Test
+	void doesNotBackfillASessionInvalidatedWhileItWasLoaded() {
+		store.persistSession(session('s1', [v: 1]))
+		store.afterRead = { chain.invalidate('s1') }
+
+		chain.getSessionData('s1')
+
+		assert cache.getSessionData('s1') == null
+		assert chain.getSessionData('s1') == null
+	}
+
+	@Test
+	void doesNotBackfillSessionsInvalidatedWhileTheyWereLoaded() {
+		store.persistSessions([session('s1', [v: 1]), session('s2', [v: 2])])
+		store.afterRead = { chain.invalidate('s1') }
+
+		assert chain.getSessionsData(['s1', 's2']).keySet() == ['s1', 's2'] as Set
+
+		assert cache.getSessionData('s1') == null
+		assert cache.getSessionData('s2') != null
+		assert chain.getSessionsData(['s1', 's2']).keySet() == ['s2'] as Set
+	}
+}
@@ -0,0 +1,67 @@
+package grails.plugin.databasesessionflushable
+
+import java.util.concurrent.atomic.AtomicInteger
+
+import org.springframework.dao.DataAccessResourceFailureException
+import org.springframework.jdbc.core.JdbcTemplate
+import org.springframework.jdbc.datasource.DataSourceTransactionManager
+import org.springframework.jdbc.datasource.DriverManagerDataSource
+import org.springframework.transaction.support.TransactionTemplate
+
+/**
+ * Builds {@link JdbcPersister}s on in-memory H2 databases of their own, configured the way the plugin does.
+ */
+class H2Persisters {
+
+	/**
+	* Fails the next {@code failures} writes, whether single statements or batches.
+	*/
+	static class FlakyJdbcTemplate extends JdbcTemplate {
+		int failures = 0
+
+		FlakyJdbcTemplate(javax.sql.DataSource dataSource) {
+			super(dataSource)
+		}
+
+		private void failIfAsked() {
+			if(failures > 0) {
+				failures--
+				throw new DataAccessResourceFailureException("write failed")
+			}
+		}
+
+		@Override
+		int update(String sql, Object... args) {
+			failIfAsked()
+			super.update(sql, args)
+		}
+
+		@Override
+		int[] batchUpdate(String sql, List<Object[]> batchArgs) {
+			failIfAsked()
+			super.batchUpdate(sql, batchArgs)
+		}
+	}
+
+	private static final AtomicInteger databases = new AtomicInteger()
+
+	static DriverManagerDataSource dataSource() {
+		def dataSource = new DriverManagerDataSource("jdbc:h2:mem:sessions${databases.incrementAndGet()};DB_CLOSE_DELAY=-1", 'sa', '')
+		dataSource.driverClassName = 'org.h2.Driver'
+		dataSource
+	}
+
+	static JdbcPersister create(Map properties = [:], javax.sql.DataSource dataSource = dataSource()) {
+		def persister = new JdbcPersister(jdbcTemplate: new FlakyJdbcTemplate(dataSource))
+		def transactions = new TransactionTemplate(new DataSourceTransactionManager(dataSource))
+		transactions.propagationBehaviorName = 'PROPAGATION_NEVER'
+		persister.transactionTemplate = transactions
+		properties.each { name, value -> persister[name] = value }
+		persister.afterPropertiesSet()
+		persister
+	}
+
+	static SessionData session(String id, Map attrs, long createdAt = System.currentTimeMillis()) {
+		new SessionData(id, attrs as HashMap<String,Serializable>, createdAt, System.currentTimeMillis(), 600)
+	}
+}
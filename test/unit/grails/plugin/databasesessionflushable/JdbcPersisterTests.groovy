@@ -0,0 +1,112 @@
+package grails.plugin.databasesessionflushable
+
+import org.junit.Test
+
+import static grails.plugin.databasesessionflushable.H2Persisters.*
+
+class JdbcPersisterTests {
+
+	private static Map<String,Serializable> attributes(JdbcPersister persister, String id) {
+		persister.getSessionData(id).attrs.collectEntries { name, value ->
+			[name, value instanceof EncodedAttribute ? value.decode() : value]
+		}
+	}
+
+	@Test
+	void insertsAndUpdatesSessionsWithEachDialect() {
+		// The generic dialect has no upsert: it updates, and inserts when there was nothing to update
+		for(dialect in ['h2', 'generic']) {
+			def dataSource = dataSource()
+			def persister = create([dialectName: dialect], dataSource)
+			def reader = create([:], dataSource)
+			def createdAt = System.currentTimeMillis() - 60000
+
+			persister.persistSession(session('s1', [v: 1], createdAt))
+			assert attributes(reader, 's1') == [v: 1]
+			persister.persistSession(session('s1', [v: 2], createdAt))
+			assert attributes(reader, 's1') == [v: 2]
+
+			persister.persistSessions([session('s1', [v: 3], createdAt), session('s2', [v: 4])])
+			assert attributes(reader, 's1') == [v: 3]
+			assert attributes(reader, 's2') == [v: 4]
+			assert reader.getSessionData('s1').createdAt == createdAt
+		}
+	}
+
+	@Test
+	void keepsTheCreatedAtOfAStoredSession() {
+		def dataSource = dataSource()
+		def createdAt = System.currentTimeMillis() - 60000
+		create([dialectName: 'generic'], dataSource).persistSession(session('s1', [v: 1], createdAt))
+
+		// Another node, which has not seen the session, updates the row rather than inserting it
+		def other = create([dialectName: 'generic'], dataSource)
+		other.persistSession(session('s1', [v: 2]))
+
+		assert attributes(other, 's1') == [v: 2]
+		assert create([:], dataSource).getSessionData('s1').createdAt == createdAt
+	}
+
+	@Test
+	void writesOnlyChangedAttributes() {
+		def persister = create(attributeStorage: true)
+		persister.persistSession(session('s1', [a: 1, b: 2, c: 3]))
+		persister.persistSession(session('s1', [a: 1, b: 20, d: 4]))
+
+		assert attributes(persister, 's1') == [a: 1, b: 20, d: 4]
+	}
+
+	@Test
+	void keepsTheStoredAttributesWhenAWriteFailsHalfway() {
+		for(cacheSize in [10000, 0]) {
+			def persister = create(attributeStorage: true, digestCacheSize: cacheSize)
+			persister.persistSession(session('s1', [a: 1, b: 2]))
+
+			// The attribute name does not fit its column, so the write fails after the session row was written
+			persister.persistSession(session('s1', [a: 3, ('x' * 300): 4]))
+
+			assert attributes(persister, 's1') == [a: 1, b: 2]
+			persister.persistSession(session('s1', [a: 3]))
+			assert attributes(persister, 's1') == [a: 3]
+		}
+	}
+
+	@Test
+	void replacesTheAttributesOfASessionItDoesNotKnow() {
+		def dataSource = dataSource()
+		create([attributeStorage: true], dataSource).persistSession(session('s1', [a: 1, b: 2]))
+
+		def other = create([attributeStorage: true], dataSource)
+		other.persistSession(session('s1', [b: 3, c: 4]))
+
+		assert attributes(other, 's1') == [b: 3, c: 4]
+	}
+
+	@Test
+	void writesAChangeBetweenValuesWithTheSameHashCode() {
+		assert 'Aa'.hashCode() == 'BB'.hashCode()
+		def serializer = new SessionSerializer()
+		assert Arrays.hashCode(serializer.serializeValue('Aa')) == Arrays.hashCode(serializer.serializeValue('BB'))
+
+		def persister = create(attributeStorage: true)
+		persister.persistSession(session('s1', [v: 'Aa']))
+		persister.persistSession(session('s1', [v: 'BB']))
+
+		assert attributes(persister, 's1') == [v: 'BB']
+	}
+
+	@Test
+	void writesContentAgainAfterAFailedWrite() {
+		def dataSource = dataSource()
+		def persister = create([touchIntervalMillis: 60000], dataSource)
+		def reader = create([:], dataSource)
+		persister.persistSession(session('s1', [v: 1]))
+
+		persister.jdbcTemplate.failures = 1
+		persister.persistSession(session('s1', [v: 2]))
+		assert attributes(reader, 's1') == [v: 1]
+
+		persister.persistSession(session('s1', [v: 2]))
+		assert attributes(reader, 's1') == [v: 2]
+	}
+}
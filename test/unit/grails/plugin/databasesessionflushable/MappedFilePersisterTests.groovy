@@ -0,0 +1,114 @@
+package grails.plugin.databasesessionflushable
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+import static grails.plugin.databasesessionflushable.H2Persisters.session
+
+class MappedFilePersisterTests {
+
+	private File directory
+	private MappedFilePersister persister
+
+	@Before
+	void createDirectory() {
+		directory = File.createTempFile('sessions', '')
+		directory.delete()
+		persister = open()
+	}
+
+	@After
+	void deleteDirectory() {
+		persister.destroy()
+		directory.deleteDir()
+	}
+
+	private MappedFilePersister open() {
+		def persister = new MappedFilePersister(directory: directory, segmentBytes: 1024, compactionIntervalMillis: 0)
+		persister.afterPropertiesSet()
+		persister
+	}
+
+	private MappedFilePersister reopen() {
+		persister.destroy()
+		persister = open()
+	}
+
+	private static def value(Persister persister, String id) {
+		def value = persister.getSessionData(id)?.attrs?.v
+		value instanceof EncodedAttribute ? value.decode() : value
+	}
+
+	@Test
+	void recoversTheLatestWriteOfEachSession() {
+		persister.persistSession(session('s1', [v: 1]))
+		persister.persistSession(session('s2', [v: 2]))
+		persister.persistSession(session('s1', [v: 3]))
+
+		reopen()
+
+		assert persister.size == 2
+		assert value(persister, 's1') == 3
+		assert value(persister, 's2') == 2
+	}
+
+	@Test
+	void keepsInvalidatedSessionsGoneAfterARestart() {
+		persister.persistSession(session('s1', [v: 1]))
+		persister.persistSession(session('s2', [v: 2]))
+		persister.invalidate('s1')
+
+		reopen()
+
+		assert persister.getSessionData('s1') == null
+		assert value(persister, 's2') == 2
+	}
+
+	@Test
+	void recoversWhatCompactionMoved() {
+		def ids = (0..<100).collect { "s$it".toString() }
+		for(id in ids) persister.persistSession(session(id, [v: id]))
+		def files = persister.fileCount
+		assert files > 3
+		for(id in ids.take(90)) persister.invalidate(id)
+
+		persister.cleanUp()
+		assert persister.fileCount < files
+
+		reopen()
+
+		assert persister.size == 10
+		assert ids.take(90).every { persister.getSessionData(it) == null }
+		assert ids.drop(90).every { value(persister, it) == it }
+	}
+
+	@Test
+	void dropsATornLastRecord() {
+		persister.persistSession(session('s1', [v: 1]))
+		persister.persistSession(session('s2', [v: 2]))
+		persister.destroy()
+
+		// Cut the file in the middle of the last record, as a crash while writing it would
+		def file = directory.listFiles().find { it.name.endsWith('.log') }
+		def bytes = file.bytes
+		def magic = [0x5E, 0x55, 0xD4, 0x7A] as byte[]
+		def last = (0..bytes.length - 4).findAll { i -> (0..3).every { bytes[i + it] == magic[it] } }.max()
+		def raf = new RandomAccessFile(file, 'rw')
+		try {
+			raf.setLength(last + 20)
+		} finally {
+			raf.close()
+		}
+		persister = open()
+
+		assert value(persister, 's1') == 1
+		assert persister.getSessionData('s2') == null
+
+		// The log carries on where the intact records end
+		persister.persistSession(session('s3', [v: 3]))
+		reopen()
+		assert value(persister, 's1') == 1
+		assert value(persister, 's3') == 3
+	}
+}
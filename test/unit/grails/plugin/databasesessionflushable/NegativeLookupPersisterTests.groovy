@@ -0,0 +1,74 @@
+package grails.plugin.databasesessionflushable
+
+import org.junit.Test
+
+import static grails.plugin.databasesessionflushable.H2Persisters.session
+
+class NegativeLookupPersisterTests {
+
+	private static NegativeLookupPersister lookup(Persister persister, List<Persister> seeds) {
+		def lookup = new NegativeLookupPersister(persister: persister, filterEnabled: true, seedPersisters: seeds)
+		lookup.afterPropertiesSet()
+		lookup
+	}
+
+	@Test
+	void seedsTheFilterFromTheSessionFiles() {
+		def directory = File.createTempFile('sessions', '')
+		directory.delete()
+		try {
+			def files = new MappedFilePersister(directory: directory, segmentBytes: 64 * 1024, compactionIntervalMillis: 0)
+			files.afterPropertiesSet()
+			files.persistSession(session('s1', [v: 1]))
+			files.destroy()
+
+			def reopened = new MappedFilePersister(directory: directory, segmentBytes: 64 * 1024, compactionIntervalMillis: 0)
+			reopened.afterPropertiesSet()
+			def lookup = lookup(reopened, [reopened])
+
+			assert lookup.getSessionData('s1') != null
+			assert lookup.getSessionData('s2') == null
+			assert lookup.filterRejectionCount == 1
+			reopened.destroy()
+		} finally {
+			directory.deleteDir()
+		}
+	}
+
+	@Test
+	void seedsTheFilterFromTheDatabase() {
+		def jdbc = H2Persisters.create()
+		jdbc.persistSession(session('s1', [v: 1]))
+
+		def lookup = lookup(jdbc, [jdbc])
+
+		assert lookup.getSessionData('s1') != null
+		assert lookup.getSessionData('s2') == null
+		assert lookup.filterRejectionCount == 1
+	}
+
+	@Test
+	void doesNotRememberAMissWhichAWriteOvertook() {
+		NegativeLookupPersister lookup
+		// The session is written after the store found it missing, but before the lookup records the miss
+		def store = new InMemoryPersister() {
+			SessionData getSessionData(String id) {
+				def data = super.getSessionData(id)
+				if(id == 's1' && data == null) lookup.persistSession(session('s1', [v: 1]))
+				data
+			}
+		}
+		store.afterPropertiesSet()
+		lookup = new NegativeLookupPersister(persister: store)
+		lookup.afterPropertiesSet()
+
+		assert lookup.getSessionData('s1') == null
+		assert lookup.getSessionData('s1') != null
+		assert lookup.negativeHitCount == 0
+	}
+
+	@Test(expected = IllegalStateException)
+	void requiresSeedsForTheFilter() {
+		lookup(H2Persisters.create(), [])
+	}
+}
@@ -0,0 +1,88 @@
+package grails.plugin.databasesessionflushable
+
+import java.util.regex.PatternSyntaxException
+
+import org.junit.Test
+
+import static grails.plugin.databasesessionflushable.SessionRouteRules.Mode.*
+
+class SessionRouteRulesTests {
+
+	private static SessionRouteRules rules(Map prefixes, Map patterns = [:]) {
+		new SessionRouteRules(prefixes as LinkedHashMap, patterns as LinkedHashMap)
+	}
+
+	@Test
+	void matchesNothingWithoutRules() {
+		assert SessionRouteRules.NONE.match('/home') == NORMAL
+		assert SessionRouteRules.NONE.match('') == NORMAL
+		assert SessionRouteRules.NONE.match(null) == NORMAL
+	}
+
+	@Test
+	void matchesPrefixes() {
+		def rules = rules(['/static/': BYPASS, '/reports': READ_ONLY])
+
+		assert rules.match('/static/app.js') == BYPASS
+		assert rules.match('/reports') == READ_ONLY
+		assert rules.match('/reports/2013/03') == READ_ONLY
+		assert rules.match('/static') == NORMAL
+		assert rules.match('/report') == NORMAL
+		assert rules.match('/home/static/') == NORMAL
+	}
+
+	@Test
+	void letsTheLongestPrefixDecide() {
+		def rules = rules(['/api/': READ_ONLY, '/api/health': BYPASS, '/api/health/deep': NORMAL])
+
+		assert rules.match('/api/users') == READ_ONLY
+		assert rules.match('/api/health') == BYPASS
+		assert rules.match('/api/healthz') == BYPASS
+		assert rules.match('/api/health/deep/check') == NORMAL
+	}
+
+	@Test
+	void matchesPatternsAgainstTheWholeUri() {
+		def rules = rules([:], ['.*\\.(css|js|png)': BYPASS, '/feed/[0-9]+': READ_ONLY])
+
+		assert rules.match('/assets/app.css') == BYPASS
+		assert rules.match('/assets/app.css.map') == NORMAL
+		assert rules.match('/feed/42') == READ_ONLY
+		assert rules.match('/feed/42/edit') == NORMAL
+	}
+
+	@Test
+	void prefersBypassPatternsOverReadOnlyOnes() {
+		def rules = rules([:], ['/public/.*': READ_ONLY, '.*\\.js': BYPASS])
+
+		assert rules.match('/public/app.js') == BYPASS
+		assert rules.match('/public/index') == READ_ONLY
+	}
+
+	@Test
+	void prefersPrefixesOverPatterns() {
+		def rules = rules(['/admin/': NORMAL, '/public/': READ_ONLY], ['.*\\.js': BYPASS])
+
+		assert rules.match('/admin/app.js') == NORMAL
+		assert rules.match('/public/app.js') == READ_ONLY
+		assert rules.match('/other/app.js') == BYPASS
+	}
+
+	@Test
+	void keepsPatternsApartWhenMergingThem() {
+		def rules = rules([:], ['/a|/b': READ_ONLY, '/c': READ_ONLY])
+
+		assert ['/a', '/b', '/c'].every { rules.match(it) == READ_ONLY }
+		assert rules.match('/a/c') == NORMAL
+	}
+
+	@Test(expected = PatternSyntaxException)
+	void rejectsInvalidPatterns() {
+		rules([:], ['/ok': READ_ONLY, '/broken(': BYPASS])
+	}
+
+	@Test(expected = IllegalArgumentException)
+	void rejectsRulesWithoutAMode() {
+		rules(['/static/': null])
+	}
+}
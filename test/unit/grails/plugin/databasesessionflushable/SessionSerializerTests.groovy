@@ -0,0 +1,108 @@
+package grails.plugin.databasesessionflushable
+
+import org.junit.Test
+
+class SessionSerializerTests {
+
+	private static final Map<String,Serializable> ATTRS = [user: 'bob', count: 42, roles: ['admin', 'user'] as ArrayList]
+
+	private static Map<String,Serializable> decoded(Map<String,Serializable> attrs) {
+		attrs.collectEntries { name, value -> [name, value instanceof EncodedAttribute ? value.decode() : value] }
+	}
+
+	@Test
+	void readsLegacyJson() {
+		def serializer = new SessionSerializer()
+
+		assert serializer.deserialize('{"user":"bob","count":42}'.getBytes('UTF-8')) == [user: 'bob', count: 42]
+	}
+
+	@Test
+	void roundTripsFramedAttributesLazily() {
+		def serializer = new SessionSerializer()
+
+		byte[] bytes = serializer.serialize(ATTRS)
+		assert bytes[0] == (byte)0xF0
+
+		def attrs = serializer.deserialize(bytes)
+		assert attrs.keySet() == ATTRS.keySet()
+		assert attrs.values().every { it instanceof EncodedAttribute }
+		assert decoded(attrs) == ATTRS
+	}
+
+	@Test
+	void writesUndecodedAttributesBackAsTheyWere() {
+		def serializer = new SessionSerializer()
+		byte[] bytes = serializer.serialize(ATTRS)
+
+		assert serializer.serialize(serializer.deserialize(bytes)) == bytes
+	}
+
+	@Test
+	void roundTripsWithEachCodec() {
+		for(name in ['json', 'smile', 'java']) {
+			def serializer = new SessionSerializer(codecName: name, lazyAttributes: false)
+
+			byte[] bytes = serializer.serialize(ATTRS)
+			assert bytes[0] == serializer.getCodec(name).formatId
+			assert serializer.deserialize(bytes) == ATTRS
+		}
+	}
+
+	@Test
+	void readsWhatAnotherCodecWrote() {
+		byte[] bytes = new SessionSerializer(codecName: 'smile', lazyAttributes: false).serialize(ATTRS)
+
+		assert new SessionSerializer(codecName: 'java').deserialize(bytes) == ATTRS
+	}
+
+	@Test
+	void roundTripsCompressedAttributes() {
+		def attrs = [text: 'session ' * 1000] as HashMap<String,Serializable>
+		for(name in ['deflate', 'lz4']) {
+			for(lazy in [true, false]) {
+				def serializer = new SessionSerializer(compressorName: name, compressionThreshold: 64, lazyAttributes: lazy)
+
+				byte[] bytes = serializer.serialize(attrs)
+				assert bytes[0] == (byte)0xF1
+				assert bytes[1] == serializer.getCompressor(name).formatId
+				assert bytes.length < 1000
+				assert decoded(serializer.deserialize(bytes)) == attrs
+			}
+		}
+	}
+
+	@Test
+	void leavesSmallPayloadsUncompressed() {
+		def serializer = new SessionSerializer(compressorName: 'deflate', compressionThreshold: 1024)
+
+		byte[] bytes = serializer.serialize(ATTRS)
+		assert bytes[0] == (byte)0xF0
+		assert serializer.uncompress(bytes).is(bytes)
+	}
+
+	@Test
+	void readsCompressedAttributesWithCompressionSwitchedOff() {
+		def attrs = [text: 'session ' * 1000] as HashMap<String,Serializable>
+		byte[] bytes = new SessionSerializer(compressorName: 'lz4', compressionThreshold: 64).serialize(attrs)
+
+		assert decoded(new SessionSerializer(compressorName: 'none').deserialize(bytes)) == attrs
+	}
+
+	@Test
+	void roundTripsSingleValues() {
+		def serializer = new SessionSerializer()
+
+		assert serializer.deserializeValue(serializer.serializeValue('bob')) == 'bob'
+		assert serializer.deserializeValue(serializer.serializeValue(['a', 'b'] as ArrayList)) == ['a', 'b']
+		assert serializer.deserializeValue(null) == null
+	}
+
+	@Test
+	void readsNothingAsNoAttributes() {
+		def serializer = new SessionSerializer()
+
+		assert serializer.deserialize(null) == [:]
+		assert serializer.deserialize(new byte[0]) == [:]
+	}
+}
@@ -0,0 +1,48 @@
+package grails.plugin.databasesessionflushable
+
+import org.junit.Test
+
+import static grails.plugin.databasesessionflushable.H2Persisters.session
+
+class SessionWarmerTests {
+
+	private static void warm(JdbcPersister jdbc, Persister cache, SessionChangeTracker tracker) {
+		def warmer = new SessionWarmer(persister: jdbc, cache: cache, changeTracker: tracker, maxLatencyMillis: 0, sessionsPerSecond: 100000)
+		warmer.afterPropertiesSet()
+		while(warmer.warming) Thread.sleep(10)
+		warmer.destroy()
+	}
+
+	@Test
+	void loadsTheRecentSessionsIntoTheCache() {
+		def jdbc = H2Persisters.create()
+		jdbc.persistSessions([session('s1', [v: 1]), session('s2', [v: 2])])
+		def cache = new InMemoryPersister()
+		cache.afterPropertiesSet()
+
+		warm(jdbc, cache, new SessionChangeTracker())
+
+		assert cache.getSessionsData(['s1', 's2']).keySet() == ['s1', 's2'] as Set
+	}
+
+	@Test
+	void doesNotCacheASessionInvalidatedWhileItWasLoaded() {
+		def jdbc = H2Persisters.create()
+		jdbc.persistSessions([session('s1', [v: 1]), session('s2', [v: 2])])
+		def tracker = new SessionChangeTracker()
+		def cache = new ChainPersisterTests.RacingPersister()
+		cache.afterPropertiesSet()
+		// The warmer checks the cache again once it has loaded the chunk: a request invalidates s1 in between
+		cache.afterRead = {
+			cache.afterRead = {
+				tracker.changed('s1')
+				jdbc.invalidate('s1')
+				cache.invalidate('s1')
+			}
+		}
+
+		warm(jdbc, cache, tracker)
+
+		assert cache.getSessionsData(['s1', 's2']).keySet() == ['s2'] as Set
+	}
+}
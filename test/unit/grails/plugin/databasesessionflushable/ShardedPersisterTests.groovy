@@ -0,0 +1,144 @@
+package grails.plugin.databasesessionflushable
+
+import org.junit.Before
+import org.junit.Test
+
+class ShardedPersisterTests {
+
+	private Map<String,InMemoryPersister> shards
+
+	@Before
+	void createShards() {
+		shards = [:]
+		for(name in ['a', 'b', 'c', 'd']) {
+			def shard = new InMemoryPersister()
+			shard.afterPropertiesSet()
+			shards[name] = shard
+		}
+	}
+
+	private ShardedPersister sharded(List<String> active, List<String> previous = null) {
+		def persister = new ShardedPersister(shards: shards, activeShardNames: active, previousShardNames: previous)
+		persister.afterPropertiesSet()
+		persister
+	}
+
+	private static SessionData session(String id) {
+		def now = System.currentTimeMillis()
+		new SessionData(id, [id: id] as HashMap<String,Serializable>, now, now, 600)
+	}
+
+	private static List<String> ids(int count) {
+		(0..<count).collect { "session-$it".toString() }
+	}
+
+	private List<String> holders(String id) {
+		shards.findAll { name, shard -> shard.getSessionData(id) != null }.keySet() as List
+	}
+
+	@Test
+	void storesEachSessionOnItsShardOnly() {
+		def persister = sharded(['a', 'b', 'c'])
+		for(id in ids(300)) persister.persistSession(session(id))
+
+		for(id in ids(300)) {
+			def owner = shards.find { name, shard -> shard.is(persister.shardFor(id)) }.key
+			assert holders(id) == [owner]
+			assert persister.getSessionData(id).attrs.id == id
+		}
+	}
+
+	@Test
+	void spreadsSessionsOverTheShards() {
+		def persister = sharded(['a', 'b', 'c'])
+
+		def counts = ids(3000).countBy { id -> persister.shardFor(id) }
+		assert counts.size() == 3
+		assert counts.values().every { it > 600 }
+	}
+
+	@Test
+	void placesSessionsTheSameWayEachTime() {
+		def first = sharded(['a', 'b', 'c'])
+		def second = sharded(['c', 'a', 'b'])
+
+		assert ids(500).every { first.shardFor(it).is(second.shardFor(it)) }
+	}
+
+	@Test
+	void addingAShardOnlyMovesSessionsToIt() {
+		def before = sharded(['a', 'b', 'c'])
+		def after = sharded(['a', 'b', 'c', 'd'])
+
+		def moved = ids(4000).findAll { !before.shardFor(it).is(after.shardFor(it)) }
+		assert moved.every { after.shardFor(it).is(shards.d) }
+		assert moved.size() > 600 && moved.size() < 1400
+	}
+
+	@Test
+	void movesSessionsFromTheirPreviousShardWhenRead() {
+		def old = sharded(['a', 'b'])
+		for(id in ids(200)) old.persistSession(session(id))
+		def persister = sharded(['a', 'b', 'c'], ['a', 'b'])
+
+		def moving = ids(200).findAll { !old.shardFor(it).is(persister.shardFor(it)) }
+		assert moving
+		for(id in ids(200)) {
+			assert persister.isValid(id)
+			assert persister.getSessionData(id).attrs.id == id
+		}
+		for(id in moving) {
+			assert holders(id) == ['c']
+		}
+	}
+
+	@Test
+	void movesSessionsFromTheirPreviousShardWhenReadInBulk() {
+		def old = sharded(['a', 'b'])
+		for(id in ids(200)) old.persistSession(session(id))
+		def persister = sharded(['a', 'b', 'c'], ['a', 'b'])
+
+		def found = persister.getSessionsData(ids(200) + ['unknown'])
+		assert found.keySet() == ids(200) as Set
+		assert ids(200).every { holders(it).size() == 1 && shards[holders(it)[0]].is(persister.shardFor(it)) }
+	}
+
+	@Test
+	void keepsAWriteWhichLandedOnTheNewShardDuringTheMove() {
+		for(bulk in [false, true]) {
+			def old = new ChainPersisterTests.RacingPersister()
+			old.afterPropertiesSet()
+			def fresh = H2Persisters.create()
+			shards = [a: old, b: fresh]
+			def persister = sharded(['a', 'b'], ['a'])
+			def id = ids(100).find { persister.shardFor(it).is(fresh) }
+			old.persistSession(H2Persisters.session(id, [v: 1]))
+			// A request writes the session once the old copy has been read, but before it reaches the new shard
+			old.afterRead = { persister.persistSession(H2Persisters.session(id, [v: 2])) }
+
+			def read = bulk ? persister.getSessionsData([id])[id] : persister.getSessionData(id)
+
+			assert read.attrs.v.decode() == 2
+			assert fresh.getSessionData(id).attrs.v.decode() == 2
+			assert old.getSessionData(id) == null
+		}
+	}
+
+	@Test
+	void invalidatesSessionsWhichHaveNotMovedYet() {
+		def old = sharded(['a', 'b'])
+		for(id in ids(200)) old.persistSession(session(id))
+		def persister = sharded(['a', 'b', 'c'], ['a', 'b'])
+
+		persister.invalidateAll(ids(100))
+		persister.invalidate('session-150')
+
+		assert (ids(100) + ['session-150']).every { !persister.isValid(it) && persister.getSessionData(it) == null }
+		assert ids(200).drop(100).minus('session-150').every { persister.isValid(it) }
+	}
+
+	@Test(expected = IllegalStateException)
+	void rejectsUnknownShardNames() {
+		sharded(['a', 'e'])
+	}
+}
@@ -0,0 +1,214 @@
+package grails.plugin.databasesessionflushable
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+class WriteBehindPersisterTests {
+
+	/**
+	* Records the batches it is given, and fails the first {@code writeFailures} and {@code invalidateFailures} of them.
+	*/
+	static class RecordingPersister extends InMemoryPersister {
+		Closure onWrite
+		int writeFailures = 0
+		int invalidateFailures = 0
+		final List<List<SessionData>> writes = []
+		final List<List<String>> invalidations = []
+
+		@Override
+		synchronized void persistSessions(Collection<SessionData> sessions) {
+			writes << new ArrayList<SessionData>(sessions)
+			if(onWrite) onWrite()
+			if(writeFailures-- > 0) throw new RuntimeException("write failed")
+			super.persistSessions(sessions)
+		}
+
+		@Override
+		synchronized void invalidateAll(Collection<String> sessionIds) {
+			invalidations << new ArrayList<String>(sessionIds)
+			if(invalidateFailures-- > 0) throw new RuntimeException("invalidation failed")
+			super.invalidateAll(sessionIds)
+		}
+	}
+
+	private RecordingPersister store
+	private WriteBehindPersister persister
+
+	@Before
+	void createPersister() {
+		store = new RecordingPersister()
+		store.afterPropertiesSet()
+		// Nothing is flushed until destroy() drains the queue, which keeps the batches predictable
+		persister = new WriteBehindPersister(persister: store, flushIntervalMillis: 60000, maxRetries: 2)
+	}
+
+	@After
+	void destroyPersister() {
+		persister.destroy()
+	}
+
+	private static SessionData session(String id, int value) {
+		def now = System.currentTimeMillis()
+		new SessionData(id, [value: value] as HashMap<String,Serializable>, now, now, 600)
+	}
+
+	@Test
+	void coalescesWritesToTheSameSession() {
+		persister.afterPropertiesSet()
+		(1..10).each { persister.persistSession(session('s1', it)) }
+		persister.persistSession(session('s2', 1))
+
+		assert persister.queueDepth == 2
+		assert persister.getSessionData('s1').attrs.value == 10
+		assert persister.getSessionsData(['s1', 's2'])*.value*.attrs*.value == [10, 1]
+		assert store.writes.empty
+
+		persister.destroy()
+
+		assert store.writes.size() == 1
+		assert store.writes[0]*.sessionId.sort() == ['s1', 's2']
+		assert store.getSessionData('s1').attrs.value == 10
+		assert persister.queueDepth == 0
+	}
+
+	@Test
+	void coalescesAWriteAndALaterInvalidation() {
+		persister.afterPropertiesSet()
+		persister.persistSession(session('s1', 1))
+		persister.invalidate('s1')
+
+		assert persister.queueDepth == 1
+		assert !persister.isValid('s1')
+		assert persister.getSessionData('s1') == null
+
+		persister.destroy()
+
+		assert store.writes.empty
+		assert store.invalidations == [['s1']]
+	}
+
+	@Test
+	void retriesAFailedWrite() {
+		store.writeFailures = 2
+		persister.afterPropertiesSet()
+		persister.persistSession(session('s1', 1))
+
+		persister.destroy()
+
+		assert store.writes.size() == 3
+		assert store.getSessionData('s1').attrs.value == 1
+		assert persister.queueDepth == 0
+	}
+
+	@Test
+	void givesUpAfterMaxRetries() {
+		store.writeFailures = Integer.MAX_VALUE
+		persister.afterPropertiesSet()
+		persister.persistSession(session('s1', 1))
+
+		persister.destroy()
+
+		assert store.writes.size() == 3
+		assert store.getSessionData('s1') == null
+		assert persister.queueDepth == 0
+	}
+
+	@Test
+	void retriesFailedInvalidationsWithoutRewritingSessions() {
+		store.invalidateFailures = 1
+		persister.afterPropertiesSet()
+		persister.persistSession(session('s1', 1))
+		persister.invalidate('s2')
+
+		persister.destroy()
+
+		assert store.writes.size() == 1
+		assert store.invalidations == [['s2'], ['s2']]
+	}
+
+	@Test
+	void keepsANewerWriteOverAFailedOne() {
+		store.writeFailures = 1
+		store.onWrite = {
+			store.onWrite = null
+			persister.persistSession(session('s1', 2))
+		}
+		persister.afterPropertiesSet()
+		persister.persistSession(session('s1', 1))
+
+		persister.destroy()
+
+		assert store.writes*.getAt(0)*.attrs*.value == [1, 2]
+		assert store.getSessionData('s1').attrs.value == 2
+	}
+
+	@Test
+	void writesDirectlyWhenTheQueueIsFull() {
+		persister.maxQueueDepth = 1
+		persister.afterPropertiesSet()
+		persister.persistSession(session('s1', 1))
+		persister.persistSession(session('s2', 1))
+		persister.persistSession(session('s1', 2))
+
+		assert persister.queueDepth == 1
+		assert store.getSessionData('s2').attrs.value == 1
+		assert persister.getSessionData('s1').attrs.value == 2
+	}
+
+	private WriteBehindPersister writeBehindOn(JdbcPersister jdbc) {
+		persister = new WriteBehindPersister(persister: jdbc, flushIntervalMillis: 60000, maxRetries: 2)
+		persister.afterPropertiesSet()
+		persister
+	}
+
+	@Test
+	void retriesAFailedBatchAgainstTheDatabase() {
+		def jdbc = H2Persisters.create()
+		writeBehindOn(jdbc)
+		persister.persistSession(session('s1', 1))
+		persister.persistSession(session('s2', 2))
+
+		jdbc.jdbcTemplate.failures = 2
+		persister.destroy()
+
+		assert jdbc.jdbcTemplate.failures == 0
+		assert jdbc.getSessionData('s1').attrs.value.decode() == 1
+		assert jdbc.getSessionData('s2').attrs.value.decode() == 2
+	}
+
+	@Test
+	void givesUpOnADatabaseThatKeepsFailing() {
+		def jdbc = H2Persisters.create()
+		writeBehindOn(jdbc)
+		persister.persistSession(session('s1', 1))
+
+		jdbc.jdbcTemplate.failures = 3
+		persister.destroy()
+
+		assert jdbc.jdbcTemplate.failures == 0
+		assert jdbc.getSessionData('s1') == null
+		assert persister.queueDepth == 0
+	}
+
+	@Test
+	void retriesOnlyTheSessionsTheDatabaseDidNotStore() {
+		// Attribute storage writes each session on its own, so a single failure only loses one of them
+		def jdbc = H2Persisters.create(attributeStorage: true)
+		writeBehindOn(jdbc)
+		persister.persistSession(session('s1', 1))
+		persister.persistSession(session('s2', 2))
+
+		jdbc.jdbcTemplate.failures = 1
+		persister.destroy()
+
+		assert jdbc.getSessionData('s1').attrs.value.decode() == 1
+		assert jdbc.getSessionData('s2').attrs.value.decode() == 2
+	}
+
+	@Test(expected = IllegalStateException)
+	void requiresAPersister() {
+		persister = new WriteBehindPersister()
+		persister.afterPropertiesSet()
+	}
+}